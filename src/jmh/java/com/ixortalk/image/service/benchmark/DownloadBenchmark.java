@@ -0,0 +1,90 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+import static com.ixortalk.image.service.benchmark.ImageServiceState.KEY;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Serves originals through {@code ImageController}. Small and medium images fit the memory cache, large ones only the
+ * disk cache. Uncached runs evict the image before every request, outside the measured call, so each one is fetched
+ * from the storage backend again. Every thread downloads an image of its own, so an eviction never races with another
+ * thread serving the same file.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(16)
+@State(Scope.Thread)
+public class DownloadBenchmark {
+
+    @Param({"16384", "524288", "4194304"})
+    public int sizeBytes;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private ImageServiceState imageService;
+
+    private String key;
+
+    @Setup(Level.Trial)
+    public void storeImage(ImageServiceState imageService) throws IOException {
+        this.imageService = imageService;
+        key = KEY + "/" + randomUUID() + "/original";
+        imageService.store(key, BenchmarkImages.randomBytes(sizeBytes), IMAGE_PNG_VALUE);
+    }
+
+    @Setup(Level.Invocation)
+    public void evictImage() {
+        if (!cached) {
+            imageService.evict(key);
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        return imageService.download(key);
+    }
+}
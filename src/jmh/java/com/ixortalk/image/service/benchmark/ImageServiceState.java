@@ -0,0 +1,196 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.benchmark;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteStreams;
+import com.ixortalk.aws.s3.library.config.AwsS3Properties;
+import com.ixortalk.aws.s3.library.config.AwsS3Template;
+import com.ixortalk.image.service.ImageServiceApplication;
+import com.ixortalk.image.service.cache.DiskImageCache;
+import com.ixortalk.image.service.cache.ImageCache;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.test.oauth2.OAuth2EmbeddedTestServer;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+
+/**
+ * The image service running on a random port with the {@code test} profile, backed by {@link InMemoryS3} or by the
+ * filesystem storage backend in a temporary directory. It is started once per fork and shared by all benchmark
+ * threads, which reach it over HTTP like real clients.
+ */
+@State(Scope.Benchmark)
+public class ImageServiceState {
+
+    public static final String KEY = "benchmark";
+
+    @Param("5")
+    public long s3LatencyMillis;
+
+    @Param("s3")
+    public String storageBackend;
+
+    private ConfigurableApplicationContext context;
+
+    private CloseableHttpClient httpClient;
+
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        context = new SpringApplicationBuilder(ImageServiceApplication.class, OAuth2EmbeddedTestServer.class, InMemoryS3Configuration.class)
+                .profiles("test")
+                // as arguments, so they take precedence over the test profile
+                .run(
+                        "--server.port=0",
+                        "--logging.level.root=WARN",
+                        "--benchmark.s3.latency-millis=" + s3LatencyMillis,
+                        "--ixortalk.image-service.storage.backend=" + storageBackend,
+                        "--ixortalk.image-service.storage.filesystem.root=" + Files.createTempDirectory("benchmark-storage"),
+                        "--ixortalk.image-service.cache.disk.directory=" + Files.createTempDirectory("benchmark-cache"),
+                        "--ixortalk.image-service.upload.part-size-bytes=" + 8 * 1024 * 1024);
+        baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + context.getEnvironment().getProperty("server.context-path");
+        httpClient = HttpClients.custom()
+                .setMaxConnTotal(256)
+                .setMaxConnPerRoute(256)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        httpClient.close();
+        context.close();
+    }
+
+    public String getBucket() {
+        return getConfig().getBucket();
+    }
+
+    public IxorTalkConfigProperties getConfig() {
+        return context.getBean(IxorTalkConfigProperties.class);
+    }
+
+    public void store(String key, byte[] content, String contentType) throws IOException {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(contentType);
+        objectMetadata.setContentLength(content.length);
+        context.getBean(StorageBackend.class).put(getBucket(), key, objectMetadata, new ByteArrayInputStream(content));
+    }
+
+    public void evict(String key) {
+        context.getBean(ImageCache.class).invalidate(getBucket(), key);
+        context.getBean(DiskImageCache.class).invalidate(getBucket(), key);
+    }
+
+    public long download(String key) throws IOException {
+        return execute(new HttpGet(baseUrl + "/download/" + key), 200);
+    }
+
+    /**
+     * Deletes the stored objects under the prefix.
+     */
+    public void deleteAll(String prefix) throws IOException {
+        StorageBackend storage = context.getBean(StorageBackend.class);
+        for (String key : storage.list(getBucket(), prefix, Integer.MAX_VALUE)) {
+            storage.delete(getBucket(), key);
+        }
+    }
+
+    public long upload(String key, byte[] image, String contentType) throws IOException {
+        HttpPost post = authorized(new HttpPost(baseUrl + "/upload"));
+        post.setEntity(MultipartEntityBuilder.create()
+                .addBinaryBody("file", image, ContentType.create(contentType), "image")
+                .addTextBody("key", key)
+                .build());
+        return execute(post, 201);
+    }
+
+    public long streamUpload(String key, byte[] image, String contentType) throws IOException {
+        HttpPost post = authorized(new HttpPost(baseUrl + "/upload/stream?key=" + key));
+        post.setEntity(new ByteArrayEntity(image, ContentType.create(contentType)));
+        return execute(post, 201);
+    }
+
+    private static <T extends HttpUriRequest> T authorized(T request) {
+        request.setHeader(AUTHORIZATION, "Bearer " + adminToken().getValue());
+        return request;
+    }
+
+    private long execute(HttpUriRequest request, int expectedStatus) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            if (response.getStatusLine().getStatusCode() != expectedStatus) {
+                throw new IllegalStateException(request.getMethod() + " " + request.getURI() + " answered " + response.getStatusLine());
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return 0;
+            }
+            try (InputStream content = entity.getContent()) {
+                return ByteStreams.exhaust(content);
+            }
+        }
+    }
+
+    @Configuration
+    public static class InMemoryS3Configuration {
+
+        @Bean
+        public InMemoryS3 amazonS3(@Value("${benchmark.s3.latency-millis}") long latencyMillis) {
+            return new InMemoryS3(latencyMillis);
+        }
+
+        @Bean
+        public AwsS3Template awsS3Template() {
+            return new AwsS3Template(new AwsS3Properties.S3());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.benchmark;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.base.Strings.nullToEmpty;
+import static java.util.Arrays.copyOfRange;
+import static java.util.UUID.randomUUID;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+/**
+ * In-process stand-in for S3 covering the calls the image service makes, so the benchmarks need no network. Every
+ * request waits {@code latencyMillis} first, roughly the time to first byte of S3 within the same region.
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+    private final long latencyMillis;
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+
+    private final Map<String, Map<Integer, byte[]>> multipartUploads = new ConcurrentHashMap<>();
+
+    private final Map<String, ObjectMetadata> multipartMetadata = new ConcurrentHashMap<>();
+
+    public InMemoryS3(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void put(String bucket, String key, byte[] content, String contentType) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(contentType);
+        store(bucket, key, content, objectMetadata);
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    /**
+     * Answers {@code null} when an ETag constraint is not met, like the SDK does for a {@code 304} or {@code 412}.
+     */
+    @Override
+    public S3Object getObject(GetObjectRequest getObjectRequest) {
+        StoredObject storedObject = lookup(getObjectRequest.getBucketName(), getObjectRequest.getKey());
+        String eTag = storedObject.metadata.getETag();
+        List<String> matchingETags = getObjectRequest.getMatchingETagConstraints();
+        if (!matchingETags.isEmpty() && !matchingETags.contains(eTag) || getObjectRequest.getNonmatchingETagConstraints().contains(eTag)) {
+            return null;
+        }
+        byte[] content = storedObject.content;
+        long[] range = getObjectRequest.getRange();
+        if (range != null) {
+            content = copyOfRange(content, (int) range[0], (int) Math.min(range[1] + 1, content.length));
+        }
+
+        S3Object s3Object = new S3Object();
+        s3Object.setBucketName(getObjectRequest.getBucketName());
+        s3Object.setKey(getObjectRequest.getKey());
+        s3Object.setObjectMetadata(copyOf(storedObject.metadata, content.length));
+        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), new HttpGet()));
+        return s3Object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        StoredObject storedObject = lookup(bucketName, key);
+        return copyOf(storedObject.metadata, storedObject.content.length);
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+        simulateLatency();
+        StoredObject storedObject = store(putObjectRequest.getBucketName(), putObjectRequest.getKey(), read(putObjectRequest.getInputStream()), putObjectRequest.getMetadata());
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag(storedObject.metadata.getETag());
+        return putObjectResult;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        simulateLatency();
+        String uploadId = randomUUID().toString();
+        multipartUploads.put(uploadId, new ConcurrentSkipListMap<>());
+        multipartMetadata.put(uploadId, request.getObjectMetadata());
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        simulateLatency();
+        byte[] part = read(request.getInputStream());
+        multipartUploads.get(request.getUploadId()).put(request.getPartNumber(), part);
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(md5DigestAsHex(part));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        simulateLatency();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Map<Integer, byte[]> parts = multipartUploads.remove(request.getUploadId());
+        for (PartETag partETag : request.getPartETags()) {
+            byte[] part = parts.get(partETag.getPartNumber());
+            content.write(part, 0, part.length);
+        }
+        StoredObject storedObject = store(request.getBucketName(), request.getKey(), content.toByteArray(), multipartMetadata.remove(request.getUploadId()));
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setETag(storedObject.metadata.getETag());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        multipartUploads.remove(request.getUploadId());
+        multipartMetadata.remove(request.getUploadId());
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        simulateLatency();
+        objects.remove(bucketName + "/" + key);
+    }
+
+    /**
+     * Lists all keys under the prefix in one page, up to the requested maximum.
+     */
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request listObjectsV2Request) {
+        simulateLatency();
+        String bucketPrefix = listObjectsV2Request.getBucketName() + "/";
+        String prefix = bucketPrefix + nullToEmpty(listObjectsV2Request.getPrefix());
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        objects.keySet()
+                .stream()
+                .filter(key -> key.startsWith(prefix))
+                .sorted()
+                .limit(listObjectsV2Request.getMaxKeys() != null ? listObjectsV2Request.getMaxKeys() : 1000)
+                .forEach(key -> {
+                    S3ObjectSummary objectSummary = new S3ObjectSummary();
+                    objectSummary.setBucketName(listObjectsV2Request.getBucketName());
+                    objectSummary.setKey(key.substring(bucketPrefix.length()));
+                    listing.getObjectSummaries().add(objectSummary);
+                });
+        listing.setKeyCount(listing.getObjectSummaries().size());
+        return listing;
+    }
+
+    @Override
+    public void shutdown() {
+        objects.clear();
+    }
+
+    private StoredObject lookup(String bucket, String key) {
+        simulateLatency();
+        StoredObject storedObject = objects.get(bucket + "/" + key);
+        if (storedObject == null) {
+            AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+            notFound.setStatusCode(404);
+            throw notFound;
+        }
+        return storedObject;
+    }
+
+    private StoredObject store(String bucket, String key, byte[] content, ObjectMetadata metadata) {
+        ObjectMetadata storedMetadata = copyOf(metadata, content.length);
+        storedMetadata.setHeader("ETag", md5DigestAsHex(content));
+        storedMetadata.setLastModified(new Date());
+        StoredObject storedObject = new StoredObject(content, storedMetadata);
+        objects.put(bucket + "/" + key, storedObject);
+        return storedObject;
+    }
+
+    private void simulateLatency() {
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(new InterruptedIOException("Interrupted while simulating S3 latency"));
+        }
+    }
+
+    private static ObjectMetadata copyOf(ObjectMetadata metadata, long contentLength) {
+        ObjectMetadata copy = metadata.clone();
+        copy.setContentLength(contentLength);
+        return copy;
+    }
+
+    private static byte[] read(InputStream inputStream) {
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the request body", e);
+        }
+    }
+
+    private static class StoredObject {
+
+        private final byte[] content;
+        private final ObjectMetadata metadata;
+
+        private StoredObject(byte[] content, ObjectMetadata metadata) {
+            this.content = content;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.benchmark;
+
+import com.ixortalk.image.service.rendition.ImageCodec;
+import com.ixortalk.image.service.rendition.ImageResizer;
+import com.ixortalk.image.service.rendition.PngOptimizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+
+/**
+ * The stages a rendition goes through, measured in isolation: decoding the original, resizing it to a {@code w-640}
+ * rendition and encoding that as JPEG or optimized PNG.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class RenditionBenchmark {
+
+    private static final int RENDITION_WIDTH = 640;
+
+    @Param({"1024", "4096"})
+    public int originalWidth;
+
+    private byte[] originalJpeg;
+
+    private BufferedImage original;
+
+    private BufferedImage rendition;
+
+    @Setup(Level.Trial)
+    public void createImages() {
+        original = BenchmarkImages.photo(originalWidth, originalWidth * 3 / 4);
+        originalJpeg = BenchmarkImages.encode(original, "jpeg");
+        rendition = ImageResizer.resize(original, RENDITION_WIDTH, RENDITION_WIDTH * 3 / 4);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageCodec.decode(new ByteArrayInputStream(originalJpeg));
+    }
+
+    @Benchmark
+    public BufferedImage resize() {
+        return ImageResizer.resize(original, RENDITION_WIDTH, RENDITION_WIDTH * 3 / 4);
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException {
+        return ImageCodec.encode(rendition, IMAGE_JPEG_VALUE, 0.85f);
+    }
+
+    @Benchmark
+    public byte[] optimizePng() throws IOException {
+        return PngOptimizer.optimize(rendition);
+    }
+}
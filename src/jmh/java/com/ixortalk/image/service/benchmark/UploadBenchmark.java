@@ -0,0 +1,97 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+import static com.ixortalk.image.service.benchmark.ImageServiceState.KEY;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Uploads PNG originals through {@code UploadImageController}, as a multipart upload and as a streamed body. With
+ * optimization enabled every upload is decoded, capped and re-encoded before it is stored. Every thread uploads under a
+ * key of its own, whose uploads are deleted after every call so the stored images do not pile up over a run.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+    @Param({"256", "1024", "3000"})
+    public int dimension;
+
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    private byte[] image;
+
+    @Setup(Level.Trial)
+    public void configure(ImageServiceState imageService) {
+        image = BenchmarkImages.encode(BenchmarkImages.photo(dimension, dimension * 3 / 4), "png");
+        imageService.getConfig().getUpload().getOptimization().setEnabled(optimize);
+        imageService.getConfig().getUpload().getOptimization().setMaxDimension(2048);
+    }
+
+    @Benchmark
+    public long upload(ImageServiceState imageService, UploadKey uploadKey) throws IOException {
+        return imageService.upload(uploadKey.key, image, IMAGE_PNG_VALUE);
+    }
+
+    @Benchmark
+    public long streamUpload(ImageServiceState imageService, UploadKey uploadKey) throws IOException {
+        return imageService.streamUpload(uploadKey.key, image, IMAGE_PNG_VALUE);
+    }
+
+    @State(Scope.Thread)
+    public static class UploadKey {
+
+        private final String key = KEY + "/" + randomUUID();
+
+        @TearDown(Level.Invocation)
+        public void deleteUploads(ImageServiceState imageService) throws IOException {
+            imageService.deleteAll(key + "/");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.MemoryCache;
+import com.ixortalk.image.service.storage.ImageMetadata;
+import com.ixortalk.image.service.storage.backend.ObjectNotFoundException;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.google.common.io.ByteStreams.readFully;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_REVALIDATIONS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Revalidates stale images of the {@link ImageCache} in the background while they are still being served. Only one
+ * revalidation per image runs at a time, later requests for it keep getting the stale image until it is done. The
+ * image is fetched with its ETag as a precondition, so an unchanged image only has its ttl extended and its body is
+ * not transferred again.
+ */
+@Component
+public class CacheRevalidator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheRevalidator.class);
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ImageCache imageCache;
+
+    @Inject
+    private DiskImageCache diskImageCache;
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void startExecutor() {
+        MemoryCache memoryCache = ixorTalkConfigProperties.getCache().getMemory();
+        executor = new ThreadPoolExecutor(
+                memoryCache.getRevalidationPoolSize(),
+                memoryCache.getRevalidationPoolSize(),
+                0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(memoryCache.getRevalidationQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("revalidate-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stopExecutor() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    /**
+     * Schedules a revalidation of the stale image, unless one is in flight already.
+     */
+    public void revalidate(String bucket, String key, CachedImage staleImage) {
+        String cacheKey = bucket + "/" + key;
+        if (!inFlight.add(cacheKey)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    CACHE_REVALIDATIONS.labels(refresh(bucket, key, staleImage)).inc();
+                } catch (ObjectNotFoundException e) {
+                    imageCache.invalidate(bucket, key);
+                    diskImageCache.invalidate(bucket, key);
+                    CACHE_REVALIDATIONS.labels("removed").inc();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Could not revalidate cached key {}: {}", key, e.getMessage());
+                    CACHE_REVALIDATIONS.labels("failed").inc();
+                } finally {
+                    inFlight.remove(cacheKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(cacheKey);
+            CACHE_REVALIDATIONS.labels("rejected").inc();
+        }
+    }
+
+    private String refresh(String bucket, String key, CachedImage staleImage) throws IOException {
+        Optional<StoredObject> changed = storageBackend.getIfChanged(bucket, key, staleImage.getMetadata().getETag());
+        if (!changed.isPresent()) {
+            imageCache.put(bucket, key, new CachedImage(staleImage.getContent(), staleImage.getMetadata()));
+            return "unchanged";
+        }
+
+        StoredObject storedObject = changed.get();
+        boolean fullyRead = false;
+        try {
+            ImageMetadata metadata = ImageMetadata.of(storedObject.getMetadata());
+            diskImageCache.invalidate(bucket, key);
+            if (imageCache.admits(metadata.getContentLength())) {
+                byte[] content = new byte[(int) metadata.getContentLength()];
+                readFully(storedObject.getContent(), content);
+                fullyRead = true;
+                imageCache.put(bucket, key, new CachedImage(content, metadata));
+            } else {
+                imageCache.invalidate(bucket, key);
+            }
+            return "changed";
+        } finally {
+            storedObject.release(fullyRead);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Warmup;
+import com.ixortalk.image.service.storage.ContentAddressedStore;
+import com.ixortalk.image.service.storage.ImageMetadata;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.io.ByteStreams.readFully;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.WARMUP_DURATION;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.WARMUP_KEYS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.WARMUP_PENDING;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.WARMUP_STARTUP_COMPLETE;
+
+/**
+ * Loads known-hot keys into the memory and disk caches ahead of traffic, at startup and on request. Keys are loaded
+ * by a small, fixed number of threads, so a warm-up only ever takes that many storage calls away from live requests.
+ * Keys already cached are left alone, images too large for either cache are skipped.
+ */
+@Component
+public class CacheWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheWarmer.class);
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    @Inject
+    private ImageCache imageCache;
+
+    @Inject
+    private DiskImageCache diskImageCache;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(
+                ixorTalkConfigProperties.getCache().getWarmup().getConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("warmup-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        Warmup warmup = ixorTalkConfigProperties.getCache().getWarmup();
+        if (warmup.getKeys().isEmpty() && warmup.getPrefixes().isEmpty()) {
+            WARMUP_STARTUP_COMPLETE.set(1);
+            return;
+        }
+        try {
+            List<String> keys = keysOf(warmup.getKeys(), warmup.getPrefixes());
+            LOGGER.info("Warming up the caches with {} keys", keys.size());
+            warm(keys).whenComplete((result, failure) -> WARMUP_STARTUP_COMPLETE.set(1));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not list the keys to warm up the caches with: {}", e.getMessage());
+            WARMUP_STARTUP_COMPLETE.set(1);
+        }
+    }
+
+    /**
+     * Returns the given keys followed by the keys under the given prefixes, without duplicates.
+     *
+     * @throws IllegalArgumentException when the given keys alone exceed the configured maximum
+     */
+    public List<String> keysOf(List<String> keys, List<String> prefixes) throws IOException {
+        int maxKeys = ixorTalkConfigProperties.getCache().getWarmup().getMaxKeys();
+        if (keys.size() > maxKeys) {
+            throw new IllegalArgumentException("A warm-up loads at most " + maxKeys + " keys");
+        }
+        Set<String> allKeys = new LinkedHashSet<>(keys);
+        for (String prefix : prefixes) {
+            if (allKeys.size() >= maxKeys) {
+                break;
+            }
+            allKeys.addAll(storageBackend.list(ixorTalkConfigProperties.getBucket(), prefix, maxKeys - allKeys.size()));
+        }
+        return new ArrayList<>(allKeys);
+    }
+
+    /**
+     * Schedules the keys to be loaded, completing once all of them are handled.
+     */
+    public CompletableFuture<Void> warm(List<String> keys) {
+        Histogram.Timer timer = WARMUP_DURATION.startTimer();
+        WARMUP_PENDING.inc(keys.size());
+        return CompletableFuture.allOf(keys
+                .stream()
+                .map(key -> CompletableFuture.runAsync(() -> {
+                    try {
+                        WARMUP_KEYS.labels(load(key)).inc();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.warn("Could not warm up key {}: {}", key, e.getMessage());
+                        WARMUP_KEYS.labels("failed").inc();
+                    } finally {
+                        WARMUP_PENDING.dec();
+                    }
+                }, executor))
+                .toArray(CompletableFuture[]::new))
+                .whenComplete((result, failure) -> timer.observeDuration());
+    }
+
+    private String load(String requestedKey) throws IOException {
+        String bucket = ixorTalkConfigProperties.getBucket();
+        String key = contentAddressedStore.resolve(bucket, requestedKey);
+        if (imageCache.contains(bucket, key) || diskImageCache.contains(bucket, key)) {
+            return "cached";
+        }
+
+        StoredObject storedObject = storageBackend.get(bucket, key);
+        boolean fullyRead = false;
+        try {
+            ImageMetadata metadata = ImageMetadata.of(storedObject.getMetadata());
+            boolean backendFile = storedObject.getPath().isPresent();
+            if (imageCache.admits(metadata.getContentLength())) {
+                byte[] content = new byte[(int) metadata.getContentLength()];
+                readFully(storedObject.getContent(), content);
+                fullyRead = true;
+                imageCache.put(bucket, key, new CachedImage(content, metadata));
+                if (!backendFile && diskImageCache.admits(content.length)) {
+                    diskImageCache.put(bucket, key, metadata, new ByteArrayInputStream(content));
+                }
+                return "loaded";
+            }
+            if (!backendFile && diskImageCache.admits(metadata.getContentLength())) {
+                diskImageCache.put(bucket, key, metadata, storedObject.getContent());
+                fullyRead = true;
+                return "loaded";
+            }
+            return "skipped";
+        } finally {
+            storedObject.release(fullyRead);
+        }
+    }
+}
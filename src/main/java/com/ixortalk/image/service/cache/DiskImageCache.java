@@ -0,0 +1,284 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.cache;
+
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.DiskCache;
+import com.ixortalk.image.service.storage.ImageMetadata;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Strings.emptyToNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.hash.Hashing.sha256;
+import static com.ixortalk.image.service.io.StreamCopier.copy;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_EVICTIONS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_HITS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_MISSES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_RESIDENT_BYTES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_WRITE_DURATION;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.channels.Channels.newInputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Second cache tier keeping images as files in a local directory, so a working set far larger than the heap can be
+ * served without going to the bucket. Each file holds a small header (key and metadata) followed by the image
+ * bytes, which lets the in-memory index be rebuilt from a directory walk when the service restarts.
+ */
+@Component
+public class DiskImageCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskImageCache.class);
+
+    static final String TIER = "disk";
+
+    private static final int HEADER_MAGIC = 0x49584332;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final double EVICTION_LOW_WATERMARK = 0.9;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private Path directory;
+
+    private final ConcurrentMap<String, IndexEntry> index = new ConcurrentHashMap<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    @PostConstruct
+    public void rebuildIndex() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        long start = currentTimeMillis();
+        directory = createDirectories(Paths.get(getDiskCache().getDirectory()));
+        walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_FILE_SUFFIX)) {
+                    deleteIfExists(file);
+                } else {
+                    register(fileName, attributes.size(), attributes.lastModifiedTime().toMillis());
+                }
+                return CONTINUE;
+            }
+        });
+        evictIfNeeded();
+        LOGGER.info("Disk image cache in {} holds {} files ({} bytes), indexed in {} ms", directory, index.size(), residentBytes.get(), currentTimeMillis() - start);
+    }
+
+    /**
+     * Looks the image up in the index only, without reading its file or counting a hit or miss.
+     */
+    public boolean contains(String bucket, String key) {
+        return isEnabled() && index.containsKey(fileName(bucket, key));
+    }
+
+    public CachedFile get(String bucket, String key) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        String fileName = fileName(bucket, key);
+        IndexEntry indexEntry = index.get(fileName);
+        if (indexEntry == null) {
+            CACHE_MISSES.labels(TIER).inc();
+            return null;
+        }
+
+        Path path = path(fileName);
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            DataInputStream header = new DataInputStream(newInputStream(channel));
+            if (header.readInt() != HEADER_MAGIC || !header.readUTF().equals(cacheKey(bucket, key))) {
+                remove(fileName);
+                CACHE_MISSES.labels(TIER).inc();
+                return null;
+            }
+            String contentType = header.readUTF();
+            String eTag = header.readUTF();
+            long lastModified = header.readLong();
+            long offset = channel.position();
+            indexEntry.lastAccess = currentTimeMillis();
+            CACHE_HITS.labels(TIER).inc();
+            return new CachedFile(path, offset, new ImageMetadata(emptyToNull(contentType), channel.size() - offset, emptyToNull(eTag), lastModified));
+        } catch (NoSuchFileException e) {
+            unregister(fileName);
+            CACHE_MISSES.labels(TIER).inc();
+            return null;
+        }
+    }
+
+    public boolean admits(long contentLength) {
+        return isEnabled() && contentLength > 0 && contentLength <= getDiskCache().getMaxEntryBytes();
+    }
+
+    /**
+     * Writes the content to a temporary file which is moved in place once complete, so readers never see partial files.
+     */
+    public CachedFile put(String bucket, String key, ImageMetadata metadata, InputStream content) throws IOException {
+        Histogram.Timer writeTimer = CACHE_WRITE_DURATION.labels(TIER).startTimer();
+        try {
+            return write(bucket, key, metadata, content);
+        } finally {
+            writeTimer.observeDuration();
+        }
+    }
+
+    private CachedFile write(String bucket, String key, ImageMetadata metadata, InputStream content) throws IOException {
+        String fileName = fileName(bucket, key);
+        Path path = path(fileName);
+        createDirectories(path.getParent());
+        Path tempFile = createTempFile(path.getParent(), fileName, TEMP_FILE_SUFFIX);
+        long offset;
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(newOutputStream(tempFile)))) {
+                outputStream.writeInt(HEADER_MAGIC);
+                outputStream.writeUTF(cacheKey(bucket, key));
+                outputStream.writeUTF(nullToEmpty(metadata.getContentType()));
+                outputStream.writeUTF(nullToEmpty(metadata.getETag()));
+                outputStream.writeLong(metadata.getLastModified());
+                offset = outputStream.size();
+                copy(content, outputStream);
+            }
+            move(tempFile, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteIfExists(tempFile);
+            throw e;
+        }
+
+        long size = size(path);
+        unregister(fileName);
+        register(fileName, size, currentTimeMillis());
+        evictIfNeeded();
+        return new CachedFile(path, offset, new ImageMetadata(metadata.getContentType(), size - offset, metadata.getETag(), metadata.getLastModified()));
+    }
+
+    public void invalidate(String bucket, String key) {
+        if (isEnabled()) {
+            remove(fileName(bucket, key));
+        }
+    }
+
+    private synchronized void evictIfNeeded() {
+        long maxBytes = getDiskCache().getMaxBytes();
+        if (residentBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, IndexEntry>> leastRecentlyUsedFirst = index.entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .collect(toList());
+        for (Map.Entry<String, IndexEntry> entry : leastRecentlyUsedFirst) {
+            if (residentBytes.get() <= maxBytes * EVICTION_LOW_WATERMARK) {
+                break;
+            }
+            remove(entry.getKey());
+            CACHE_EVICTIONS.labels(TIER).inc();
+        }
+    }
+
+    private void register(String fileName, long size, long lastAccess) {
+        if (index.putIfAbsent(fileName, new IndexEntry(size, lastAccess)) == null) {
+            residentBytes.addAndGet(size);
+            CACHE_RESIDENT_BYTES.labels(TIER).inc(size);
+        }
+    }
+
+    private void unregister(String fileName) {
+        IndexEntry removed = index.remove(fileName);
+        if (removed != null) {
+            residentBytes.addAndGet(-removed.size);
+            CACHE_RESIDENT_BYTES.labels(TIER).dec(removed.size);
+        }
+    }
+
+    private void remove(String fileName) {
+        unregister(fileName);
+        try {
+            deleteIfExists(path(fileName));
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete cached file {}: {}", fileName, e.getMessage());
+        }
+    }
+
+    private Path path(String fileName) {
+        return directory.resolve(fileName.substring(0, 2)).resolve(fileName);
+    }
+
+    private DiskCache getDiskCache() {
+        return ixorTalkConfigProperties.getCache().getDisk();
+    }
+
+    private boolean isEnabled() {
+        return getDiskCache().isEnabled();
+    }
+
+    private static String fileName(String bucket, String key) {
+        return sha256().hashString(cacheKey(bucket, key), UTF_8).toString();
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private static class IndexEntry {
+
+        private final long size;
+        private volatile long lastAccess;
+
+        private IndexEntry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.MemoryCache;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_EVICTIONS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_HITS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_MISSES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CACHE_RESIDENT_BYTES;
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Byte-budgeted in-memory cache of small, frequently requested images keyed by bucket and key. Images are kept for
+ * their ttl plus the longer of the stale-while-revalidate and stale-if-error periods. Within the stale-while-revalidate
+ * period {@link #get} still hands them out, for the caller to revalidate them when {@link #isStale}; within the
+ * stale-if-error period only {@link #getStale} does.
+ */
+@Component
+public class ImageCache {
+
+    static final String TIER = "memory";
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private Cache<String, CachedImage> cache;
+
+    @PostConstruct
+    public void buildCache() {
+        MemoryCache memoryCache = ixorTalkConfigProperties.getCache().getMemory();
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(memoryCache.getMaxBytes())
+                .weigher((String cacheKey, CachedImage cachedImage) -> cachedImage.getContent().length)
+                .expireAfterWrite(memoryCache.getTtlSeconds() + max(memoryCache.getStaleWhileRevalidateSeconds(), memoryCache.getStaleIfErrorSeconds()), SECONDS)
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    public CachedImage get(String bucket, String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedImage cachedImage = youngerThan(cache.getIfPresent(cacheKey(bucket, key)), getMemoryCache().getStaleWhileRevalidateSeconds());
+        (cachedImage != null ? CACHE_HITS : CACHE_MISSES).labels(TIER).inc();
+        return cachedImage;
+    }
+
+    /**
+     * Returns the image even when it is past its ttl, as long as it is within the stale-if-error period. Meant for
+     * when the image cannot be fetched, so no hit or miss is counted.
+     */
+    public CachedImage getStale(String bucket, String key) {
+        return isEnabled() ? youngerThan(cache.getIfPresent(cacheKey(bucket, key)), getMemoryCache().getStaleIfErrorSeconds()) : null;
+    }
+
+    /**
+     * Looks the image up without reading it or counting a hit or miss.
+     */
+    public boolean contains(String bucket, String key) {
+        return isEnabled() && youngerThan(cache.getIfPresent(cacheKey(bucket, key)), getMemoryCache().getStaleWhileRevalidateSeconds()) != null;
+    }
+
+    /**
+     * Whether the image is past its ttl, and should be revalidated.
+     */
+    public boolean isStale(CachedImage cachedImage) {
+        return youngerThan(cachedImage, 0) == null;
+    }
+
+    /**
+     * Whether an image of the given size should be buffered and cached rather than streamed.
+     */
+    public boolean admits(long contentLength) {
+        return isEnabled() && contentLength > 0 && contentLength <= ixorTalkConfigProperties.getCache().getMemory().getMaxEntryBytes();
+    }
+
+    public void put(String bucket, String key, CachedImage cachedImage) {
+        if (admits(cachedImage.getContent().length)) {
+            cache.put(cacheKey(bucket, key), cachedImage);
+            CACHE_RESIDENT_BYTES.labels(TIER).inc(cachedImage.getContent().length);
+        }
+    }
+
+    public void invalidate(String bucket, String key) {
+        cache.invalidate(cacheKey(bucket, key));
+    }
+
+    private void onRemoval(RemovalNotification<String, CachedImage> notification) {
+        CACHE_RESIDENT_BYTES.labels(TIER).dec(notification.getValue().getContent().length);
+        if (notification.wasEvicted()) {
+            CACHE_EVICTIONS.labels(TIER).inc();
+        }
+    }
+
+    /**
+     * Returns the image when it was cached less than its ttl plus {@code staleSeconds} ago.
+     */
+    private CachedImage youngerThan(CachedImage cachedImage, long staleSeconds) {
+        long maxAgeMillis = SECONDS.toMillis(getMemoryCache().getTtlSeconds() + staleSeconds);
+        return cachedImage != null && System.currentTimeMillis() - cachedImage.getCachedAt() < maxAgeMillis ? cachedImage : null;
+    }
+
+    private boolean isEnabled() {
+        return getMemoryCache().isEnabled();
+    }
+
+    private MemoryCache getMemoryCache() {
+        return ixorTalkConfigProperties.getCache().getMemory();
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+}
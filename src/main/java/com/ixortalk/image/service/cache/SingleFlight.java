@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.COALESCED_REQUESTS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Lets concurrent callers asking for the same key share a single load: the first caller runs it and the others wait
+ * for its result, or its exception. In-flight loads live in a {@link ConcurrentHashMap}, so callers only meet when
+ * their keys share a bin and loads of unrelated keys never wait on each other. Callers wait a bounded time, after which
+ * they run the load themselves rather than hang on a leader that never finishes.
+ */
+public class SingleFlight<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final String operation;
+
+    private final long waitMillis;
+
+    private final ConcurrentMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    public SingleFlight(String operation, long waitMillis) {
+        this.operation = operation;
+        this.waitMillis = waitMillis;
+    }
+
+    public T execute(String key, Callable<T> loader) throws IOException {
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            COALESCED_REQUESTS.labels(operation).inc();
+            return await(key, leader, loader);
+        }
+
+        try {
+            T result = loader.call();
+            flight.complete(result);
+            return result;
+        } catch (Throwable t) {
+            // errors too, or the callers waiting for this flight would only give up once their wait times out
+            flight.completeExceptionally(t);
+            throw rethrow(t);
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private T await(String key, CompletableFuture<T> leader, Callable<T> loader) throws IOException {
+        try {
+            return leader.get(waitMillis, MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a coalesced load");
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (TimeoutException e) {
+            LOGGER.warn("Coalesced {} of {} still in flight after {} ms, loading it again", operation, key, waitMillis);
+            return load(loader);
+        }
+    }
+
+    private static <T> T load(Callable<T> loader) throws IOException {
+        try {
+            return loader.call();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable throwable) throws IOException {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        if (throwable instanceof IOException) {
+            throw (IOException) throwable;
+        }
+        throw new IOException(throwable);
+    }
+}
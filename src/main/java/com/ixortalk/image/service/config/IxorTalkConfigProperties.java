@@ -25,11 +25,29 @@ package com.ixortalk.image.service.config;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+
 @ConfigurationProperties(prefix = "ixortalk.image-service")
 public class IxorTalkConfigProperties {
 
     private String bucket;
     protected static final String DOWNLOAD_PATH = "/download";
+    protected static final String METADATA_PATH = "/metadata";
+    protected static final String SPRITES_PATH = "/sprites";
+
+    private Renditions renditions = new Renditions();
+
+    private Cache cache = new Cache();
+
+    private Download download = new Download();
+
+    private Upload upload = new Upload();
+
+    private Metadata metadata = new Metadata();
+
+    private Storage storage = new Storage();
 
     public String getBucket() {
         return bucket;
@@ -38,4 +56,1217 @@ public class IxorTalkConfigProperties {
     public void setBucket(String bucket) {
         this.bucket = bucket;
     }
+
+    public Renditions getRenditions() {
+        return renditions;
+    }
+
+    public void setRenditions(Renditions renditions) {
+        this.renditions = renditions;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
+    public Download getDownload() {
+        return download;
+    }
+
+    public void setDownload(Download download) {
+        this.download = download;
+    }
+
+    public Upload getUpload() {
+        return upload;
+    }
+
+    public void setUpload(Upload upload) {
+        this.upload = upload;
+    }
+
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    public static class Storage {
+
+        /**
+         * Where images are stored: {@code s3} or {@code filesystem}.
+         */
+        private String backend = "s3";
+
+        private FileSystem filesystem = new FileSystem();
+
+        private S3 s3 = new S3();
+
+        public String getBackend() {
+            return backend;
+        }
+
+        public void setBackend(String backend) {
+            this.backend = backend;
+        }
+
+        public FileSystem getFilesystem() {
+            return filesystem;
+        }
+
+        public void setFilesystem(FileSystem filesystem) {
+            this.filesystem = filesystem;
+        }
+
+        public S3 getS3() {
+            return s3;
+        }
+
+        public void setS3(S3 s3) {
+            this.s3 = s3;
+        }
+    }
+
+    public static class S3 {
+
+        /**
+         * Reads (gets, ranged gets and heads) taking longer than this to answer are given up on, 0 waits forever.
+         * Writes are not timed out as they take as long as the body being uploaded.
+         */
+        private long timeoutMillis = 5000;
+
+        /**
+         * Number of threads the timed reads run on, reads beyond that fail fast.
+         */
+        private int poolSize = 128;
+
+        private Breaker circuitBreaker = new Breaker();
+
+        private Hedge hedge = new Hedge();
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public void setTimeoutMillis(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public Breaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public void setCircuitBreaker(Breaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        public Hedge getHedge() {
+            return hedge;
+        }
+
+        public void setHedge(Hedge hedge) {
+            this.hedge = hedge;
+        }
+    }
+
+    public static class Breaker {
+
+        private boolean enabled = true;
+
+        /**
+         * Number of consecutive failed calls (timeouts, 5xx answers and connection errors) that opens the breaker.
+         */
+        private int failureThreshold = 5;
+
+        /**
+         * How long an open breaker fails calls fast before letting a single trial call through.
+         */
+        private long openMillis = 30 * 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public long getOpenMillis() {
+            return openMillis;
+        }
+
+        public void setOpenMillis(long openMillis) {
+            this.openMillis = openMillis;
+        }
+    }
+
+    public static class Hedge {
+
+        private boolean enabled = false;
+
+        /**
+         * Gets still unanswered at this percentile of the recent get latencies are sent a second time.
+         */
+        private double percentile = 0.95;
+
+        /**
+         * Lower bound of the hedge delay, so a fast, steady backend is not sent every slow request twice.
+         */
+        private long minDelayMillis = 10;
+
+        /**
+         * Number of latencies to observe before hedging starts.
+         */
+        private int minSamples = 100;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public long getMinDelayMillis() {
+            return minDelayMillis;
+        }
+
+        public void setMinDelayMillis(long minDelayMillis) {
+            this.minDelayMillis = minDelayMillis;
+        }
+
+        public int getMinSamples() {
+            return minSamples;
+        }
+
+        public void setMinSamples(int minSamples) {
+            this.minSamples = minSamples;
+        }
+    }
+
+    public static class FileSystem {
+
+        /**
+         * Directory holding a subdirectory per bucket.
+         */
+        private String root = System.getProperty("java.io.tmpdir") + "/ixortalk-image-storage";
+
+        public String getRoot() {
+            return root;
+        }
+
+        public void setRoot(String root) {
+            this.root = root;
+        }
+    }
+
+    public static class Metadata {
+
+        /**
+         * Maximum number of keys a single bulk lookup may ask for.
+         */
+        private int maxBulkKeys = 500;
+
+        /**
+         * Number of keys of a bulk lookup that are looked up in S3 concurrently.
+         */
+        private int lookupParallelism = 16;
+
+        /**
+         * Number of looked up image infos kept in memory, uploaded images never change so they need no expiry.
+         */
+        private int cacheSize = 10000;
+
+        /**
+         * Number of leading bytes fetched to read the header of images stored without their info.
+         */
+        private int headerBytes = 64 * 1024;
+
+        public int getMaxBulkKeys() {
+            return maxBulkKeys;
+        }
+
+        public void setMaxBulkKeys(int maxBulkKeys) {
+            this.maxBulkKeys = maxBulkKeys;
+        }
+
+        public int getLookupParallelism() {
+            return lookupParallelism;
+        }
+
+        public void setLookupParallelism(int lookupParallelism) {
+            this.lookupParallelism = lookupParallelism;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public int getHeaderBytes() {
+            return headerBytes;
+        }
+
+        public void setHeaderBytes(int headerBytes) {
+            this.headerBytes = headerBytes;
+        }
+    }
+
+    public static class Upload {
+
+        /**
+         * Size of the parts streamed uploads are sent to S3 in, S3 requires at least 5 MB for all but the last part.
+         */
+        private int partSizeBytes = 8 * 1024 * 1024;
+
+        /**
+         * Number of part buffers shared by all streamed uploads, which bounds their memory use to {@code partSizeBytes * partBuffers}.
+         */
+        private int partBuffers = 8;
+
+        /**
+         * How long a streamed upload waits for a free part buffer before it is rejected with a 503.
+         */
+        private long partBufferWaitMillis = 10 * 1000;
+
+        private int retryAfterSeconds = 5;
+
+        private int partConcurrency = 4;
+
+        /**
+         * Number of images of a batch upload that are stored concurrently.
+         */
+        private int batchParallelism = 8;
+
+        private Optimization optimization = new Optimization();
+
+        private Deduplication deduplication = new Deduplication();
+
+        private Validation validation = new Validation();
+
+        public int getPartSizeBytes() {
+            return partSizeBytes;
+        }
+
+        public void setPartSizeBytes(int partSizeBytes) {
+            this.partSizeBytes = partSizeBytes;
+        }
+
+        public int getPartBuffers() {
+            return partBuffers;
+        }
+
+        public void setPartBuffers(int partBuffers) {
+            this.partBuffers = partBuffers;
+        }
+
+        public long getPartBufferWaitMillis() {
+            return partBufferWaitMillis;
+        }
+
+        public void setPartBufferWaitMillis(long partBufferWaitMillis) {
+            this.partBufferWaitMillis = partBufferWaitMillis;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public void setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getPartConcurrency() {
+            return partConcurrency;
+        }
+
+        public void setPartConcurrency(int partConcurrency) {
+            this.partConcurrency = partConcurrency;
+        }
+
+        public int getBatchParallelism() {
+            return batchParallelism;
+        }
+
+        public void setBatchParallelism(int batchParallelism) {
+            this.batchParallelism = batchParallelism;
+        }
+
+        public Optimization getOptimization() {
+            return optimization;
+        }
+
+        public void setOptimization(Optimization optimization) {
+            this.optimization = optimization;
+        }
+
+        public Deduplication getDeduplication() {
+            return deduplication;
+        }
+
+        public void setDeduplication(Deduplication deduplication) {
+            this.deduplication = deduplication;
+        }
+
+        public Validation getValidation() {
+            return validation;
+        }
+
+        public void setValidation(Validation validation) {
+            this.validation = validation;
+        }
+    }
+
+    public static class Validation {
+
+        private long maxBytes = 100 * 1024 * 1024;
+
+        /**
+         * Largest width times height accepted, bounding the memory a decode of the image can take.
+         */
+        private long maxPixels = 50_000_000;
+
+        /**
+         * Formats accepted, as told from the magic bytes of the upload whatever content type it was sent with.
+         */
+        private List<String> contentTypes = newArrayList("image/jpeg", "image/png", "image/gif", "image/webp", "image/bmp");
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public long getMaxPixels() {
+            return maxPixels;
+        }
+
+        public void setMaxPixels(long maxPixels) {
+            this.maxPixels = maxPixels;
+        }
+
+        public List<String> getContentTypes() {
+            return contentTypes;
+        }
+
+        public void setContentTypes(List<String> contentTypes) {
+            this.contentTypes = contentTypes;
+        }
+    }
+
+    public static class Deduplication {
+
+        /**
+         * Stores each distinct original once, under {@code <blobPrefix>/<sha256>}, with the uploaded keys pointing to it.
+         * Streamed uploads, and batch entries too large to buffer, are stored as they are, as their hash is only known
+         * once the transfer has started. Existing pointers are followed regardless of this flag.
+         */
+        private boolean enabled = false;
+
+        private String blobPrefix = "blobs";
+
+        /**
+         * Number of resolved {@code <key>/<uuid>} pointers kept in memory.
+         */
+        private int indexSize = 100000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getBlobPrefix() {
+            return blobPrefix;
+        }
+
+        public void setBlobPrefix(String blobPrefix) {
+            this.blobPrefix = blobPrefix;
+        }
+
+        public int getIndexSize() {
+            return indexSize;
+        }
+
+        public void setIndexSize(int indexSize) {
+            this.indexSize = indexSize;
+        }
+    }
+
+    public static class Optimization {
+
+        /**
+         * Re-encodes uploaded originals without metadata, upright according to their EXIF orientation and within
+         * {@code maxDimension}, before they are stored.
+         */
+        private boolean enabled = false;
+
+        private int maxDimension = 4096;
+
+        private float quality = 0.85f;
+
+        /**
+         * Also stores the upload as it was received, next to the original as {@code <key>/<uuid>/source}.
+         */
+        private boolean keepSource = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxDimension() {
+            return maxDimension;
+        }
+
+        public void setMaxDimension(int maxDimension) {
+            this.maxDimension = maxDimension;
+        }
+
+        public float getQuality() {
+            return quality;
+        }
+
+        public void setQuality(float quality) {
+            this.quality = quality;
+        }
+
+        public boolean isKeepSource() {
+            return keepSource;
+        }
+
+        public void setKeepSource(boolean keepSource) {
+            this.keepSource = keepSource;
+        }
+    }
+
+    public static class Download {
+
+        /**
+         * Max age sent for keys in the immutable {@code <key>/<uuid>/...} layout, which are never overwritten.
+         */
+        private long immutableMaxAgeSeconds = 365 * 24 * 60 * 60;
+
+        /**
+         * How long a request waits for a concurrent fetch, render or sprite composition of the same key before doing
+         * it itself.
+         */
+        private long coalescedWaitMillis = 30 * 1000;
+
+        private Async async = new Async();
+
+        private Signing signing = new Signing();
+
+        private Archive archive = new Archive();
+
+        public long getImmutableMaxAgeSeconds() {
+            return immutableMaxAgeSeconds;
+        }
+
+        public void setImmutableMaxAgeSeconds(long immutableMaxAgeSeconds) {
+            this.immutableMaxAgeSeconds = immutableMaxAgeSeconds;
+        }
+
+        public long getCoalescedWaitMillis() {
+            return coalescedWaitMillis;
+        }
+
+        public void setCoalescedWaitMillis(long coalescedWaitMillis) {
+            this.coalescedWaitMillis = coalescedWaitMillis;
+        }
+
+        public Async getAsync() {
+            return async;
+        }
+
+        public void setAsync(Async async) {
+            this.async = async;
+        }
+
+        public Signing getSigning() {
+            return signing;
+        }
+
+        public void setSigning(Signing signing) {
+            this.signing = signing;
+        }
+
+        public Archive getArchive() {
+            return archive;
+        }
+
+        public void setArchive(Archive archive) {
+            this.archive = archive;
+        }
+    }
+
+    public static class Archive {
+
+        private int maxKeys = 10000;
+
+        /**
+         * Number of objects an archive fetches ahead of the one it is writing.
+         */
+        private int concurrency = 4;
+
+        /**
+         * Number of threads fetching objects, shared by all archives.
+         */
+        private int poolSize = 16;
+
+        public int getMaxKeys() {
+            return maxKeys;
+        }
+
+        public void setMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+    }
+
+    public static class Signing {
+
+        /**
+         * Rejects downloads without a valid signature. Signatures on downloads are verified whether required or not.
+         */
+        private boolean required = false;
+
+        /**
+         * Key the download URLs are signed with, required to sign or verify them.
+         */
+        private String secret;
+
+        /**
+         * Validity of a signed URL when the signer asks for none, and the longest validity a signer may ask for.
+         */
+        private long defaultExpirySeconds = 60 * 60;
+
+        private long maxExpirySeconds = 7 * 24 * 60 * 60;
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public void setRequired(boolean required) {
+            this.required = required;
+        }
+
+        public String getSecret() {
+            return secret;
+        }
+
+        public void setSecret(String secret) {
+            this.secret = secret;
+        }
+
+        public long getDefaultExpirySeconds() {
+            return defaultExpirySeconds;
+        }
+
+        public void setDefaultExpirySeconds(long defaultExpirySeconds) {
+            this.defaultExpirySeconds = defaultExpirySeconds;
+        }
+
+        public long getMaxExpirySeconds() {
+            return maxExpirySeconds;
+        }
+
+        public void setMaxExpirySeconds(long maxExpirySeconds) {
+            this.maxExpirySeconds = maxExpirySeconds;
+        }
+    }
+
+    public static class Async {
+
+        /**
+         * Serves downloads on a dedicated pool, releasing the container thread while S3 and the client are slow.
+         */
+        private boolean enabled = true;
+
+        private int poolSize = 64;
+
+        private int queueCapacity = 1000;
+
+        /**
+         * Upper bound on a single download, including writing it to the client.
+         */
+        private long timeoutMillis = 5 * 60 * 1000;
+
+        private int retryAfterSeconds = 1;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public void setTimeoutMillis(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public void setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    public static class Renditions {
+
+        /**
+         * Named variants that may be requested next to the original, e.g. {@code thumb-128} (square crop) or {@code w-640} (fixed width).
+         */
+        private List<String> variants = newArrayList("thumb-128", "w-640", "w-1280");
+
+        private float jpegQuality = 0.85f;
+
+        private Pipeline pipeline = new Pipeline();
+
+        private Negotiation negotiation = new Negotiation();
+
+        private Sprites sprites = new Sprites();
+
+        public List<String> getVariants() {
+            return variants;
+        }
+
+        public void setVariants(List<String> variants) {
+            this.variants = variants;
+        }
+
+        public float getJpegQuality() {
+            return jpegQuality;
+        }
+
+        public void setJpegQuality(float jpegQuality) {
+            this.jpegQuality = jpegQuality;
+        }
+
+        public Pipeline getPipeline() {
+            return pipeline;
+        }
+
+        public void setPipeline(Pipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        public Negotiation getNegotiation() {
+            return negotiation;
+        }
+
+        public void setNegotiation(Negotiation negotiation) {
+            this.negotiation = negotiation;
+        }
+
+        public Sprites getSprites() {
+            return sprites;
+        }
+
+        public void setSprites(Sprites sprites) {
+            this.sprites = sprites;
+        }
+    }
+
+    public static class Negotiation {
+
+        private boolean enabled = true;
+
+        /**
+         * Compact encodings offered to clients accepting them, in order of preference. Encodings without an ImageIO
+         * writer on the classpath are skipped, {@code image/png} stands for a losslessly recompressed PNG.
+         */
+        private List<String> contentTypes = newArrayList("image/webp", "image/png");
+
+        /**
+         * Number of keys whose source content type is remembered, each miss costs a HEAD request when a client
+         * accepts one of the encodings.
+         */
+        private int sourceCacheSize = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getContentTypes() {
+            return contentTypes;
+        }
+
+        public void setContentTypes(List<String> contentTypes) {
+            this.contentTypes = contentTypes;
+        }
+
+        public int getSourceCacheSize() {
+            return sourceCacheSize;
+        }
+
+        public void setSourceCacheSize(int sourceCacheSize) {
+            this.sourceCacheSize = sourceCacheSize;
+        }
+    }
+
+    public static class Sprites {
+
+        private int maxTiles = 200;
+
+        private int maxTileSize = 512;
+
+        /**
+         * Largest canvas a sprite is composed on, in pixels, 4096 x 4096 by default.
+         */
+        private long maxPixels = 4096L * 4096L;
+
+        /**
+         * Number of threads fetching the tiles of sprites, shared by all sprite requests.
+         */
+        private int concurrency = 8;
+
+        /**
+         * Number of sprites composed at the same time, each holding its canvas in memory.
+         */
+        private int composePoolSize = 2;
+
+        private int composeQueueCapacity = 10;
+
+        private int retryAfterSeconds = 5;
+
+        private String contentType = "image/jpeg";
+
+        public int getMaxTiles() {
+            return maxTiles;
+        }
+
+        public void setMaxTiles(int maxTiles) {
+            this.maxTiles = maxTiles;
+        }
+
+        public int getMaxTileSize() {
+            return maxTileSize;
+        }
+
+        public void setMaxTileSize(int maxTileSize) {
+            this.maxTileSize = maxTileSize;
+        }
+
+        public long getMaxPixels() {
+            return maxPixels;
+        }
+
+        public void setMaxPixels(long maxPixels) {
+            this.maxPixels = maxPixels;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public int getComposePoolSize() {
+            return composePoolSize;
+        }
+
+        public void setComposePoolSize(int composePoolSize) {
+            this.composePoolSize = composePoolSize;
+        }
+
+        public int getComposeQueueCapacity() {
+            return composeQueueCapacity;
+        }
+
+        public void setComposeQueueCapacity(int composeQueueCapacity) {
+            this.composeQueueCapacity = composeQueueCapacity;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public void setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+    }
+
+    public static class Pipeline {
+
+        /**
+         * Render all variants right after an upload instead of on first request.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Number of rendering threads, defaults to the number of available processors.
+         */
+        private int poolSize = Runtime.getRuntime().availableProcessors();
+
+        private int queueCapacity = 100;
+
+        private int retryAfterSeconds = 5;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public void setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    public static class Cache {
+
+        private MemoryCache memory = new MemoryCache();
+
+        private DiskCache disk = new DiskCache();
+
+        private Warmup warmup = new Warmup();
+
+        public MemoryCache getMemory() {
+            return memory;
+        }
+
+        public void setMemory(MemoryCache memory) {
+            this.memory = memory;
+        }
+
+        public DiskCache getDisk() {
+            return disk;
+        }
+
+        public void setDisk(DiskCache disk) {
+            this.disk = disk;
+        }
+
+        public Warmup getWarmup() {
+            return warmup;
+        }
+
+        public void setWarmup(Warmup warmup) {
+            this.warmup = warmup;
+        }
+    }
+
+    public static class Warmup {
+
+        /**
+         * Keys loaded into the caches once the service has started.
+         */
+        private List<String> keys = newArrayList();
+
+        /**
+         * Key prefixes whose keys are loaded into the caches once the service has started.
+         */
+        private List<String> prefixes = newArrayList();
+
+        /**
+         * Most keys a single warm-up loads, prefixes included.
+         */
+        private int maxKeys = 10000;
+
+        /**
+         * Number of keys loaded at the same time, kept low so warming up does not starve live traffic.
+         */
+        private int concurrency = 4;
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public void setKeys(List<String> keys) {
+            this.keys = keys;
+        }
+
+        public List<String> getPrefixes() {
+            return prefixes;
+        }
+
+        public void setPrefixes(List<String> prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        public int getMaxKeys() {
+            return maxKeys;
+        }
+
+        public void setMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+    }
+
+    public static class MemoryCache {
+
+        private boolean enabled = true;
+
+        /**
+         * Total size of the cached image bytes.
+         */
+        private long maxBytes = 64 * 1024 * 1024;
+
+        /**
+         * Images larger than this are always streamed from the bucket.
+         */
+        private long maxEntryBytes = 1024 * 1024;
+
+        private long ttlSeconds = 300;
+
+        /**
+         * How long past its ttl an image is still served right away while it is revalidated in the background, 0
+         * fetches expired images on the request.
+         */
+        private long staleWhileRevalidateSeconds = 0;
+
+        /**
+         * How long past its ttl an image is still kept to be served when the storage backend is unavailable, 0 drops
+         * images as soon as they expire.
+         */
+        private long staleIfErrorSeconds = 0;
+
+        /**
+         * Number of threads revalidating expired images, and the number of revalidations that may wait for them.
+         */
+        private int revalidationPoolSize = 4;
+
+        private int revalidationQueueCapacity = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public long getMaxEntryBytes() {
+            return maxEntryBytes;
+        }
+
+        public void setMaxEntryBytes(long maxEntryBytes) {
+            this.maxEntryBytes = maxEntryBytes;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public long getStaleWhileRevalidateSeconds() {
+            return staleWhileRevalidateSeconds;
+        }
+
+        public void setStaleWhileRevalidateSeconds(long staleWhileRevalidateSeconds) {
+            this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
+        }
+
+        public long getStaleIfErrorSeconds() {
+            return staleIfErrorSeconds;
+        }
+
+        public void setStaleIfErrorSeconds(long staleIfErrorSeconds) {
+            this.staleIfErrorSeconds = staleIfErrorSeconds;
+        }
+
+        public int getRevalidationPoolSize() {
+            return revalidationPoolSize;
+        }
+
+        public void setRevalidationPoolSize(int revalidationPoolSize) {
+            this.revalidationPoolSize = revalidationPoolSize;
+        }
+
+        public int getRevalidationQueueCapacity() {
+            return revalidationQueueCapacity;
+        }
+
+        public void setRevalidationQueueCapacity(int revalidationQueueCapacity) {
+            this.revalidationQueueCapacity = revalidationQueueCapacity;
+        }
+    }
+
+    public static class DiskCache {
+
+        private boolean enabled = false;
+
+        private String directory = System.getProperty("java.io.tmpdir") + "/ixortalk-image-cache";
+
+        /**
+         * Total size of the cached files, least recently used files are evicted beyond this size.
+         */
+        private long maxBytes = 10L * 1024 * 1024 * 1024;
+
+        private long maxEntryBytes = 256 * 1024 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public long getMaxEntryBytes() {
+            return maxEntryBytes;
+        }
+
+        public void setMaxEntryBytes(long maxEntryBytes) {
+            this.maxEntryBytes = maxEntryBytes;
+        }
+    }
 }
@@ -28,6 +28,8 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 
 import static com.ixortalk.image.service.config.IxorTalkConfigProperties.DOWNLOAD_PATH;
+import static com.ixortalk.image.service.config.IxorTalkConfigProperties.METADATA_PATH;
+import static com.ixortalk.image.service.config.IxorTalkConfigProperties.SPRITES_PATH;
 
 @Configuration
 public class SecurityConfig implements IxorTalkHttpSecurityConfigurer {
@@ -37,6 +39,8 @@ public class SecurityConfig implements IxorTalkHttpSecurityConfigurer {
         http
                 .authorizeRequests()
                 .antMatchers(DOWNLOAD_PATH + "/**").permitAll()
+                .antMatchers(METADATA_PATH, METADATA_PATH + "/**").permitAll()
+                .antMatchers(SPRITES_PATH).permitAll()
                 .anyRequest().authenticated();
     }
 }
\ No newline at end of file
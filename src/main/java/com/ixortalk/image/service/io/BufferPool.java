@@ -0,0 +1,77 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.io;
+
+import java.io.InterruptedIOException;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A fixed number of equally sized, reusable buffers. Buffers are allocated lazily and callers wait a bounded time when
+ * all of them are in use, which puts a hard bound on the memory held by the pool's users.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final BlockingQueue<byte[]> available = new LinkedBlockingQueue<>();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Returns an empty optional when no buffer was released within {@code waitMillis}.
+     */
+    public Optional<byte[]> acquire(long waitMillis) throws InterruptedIOException {
+        byte[] buffer = available.poll();
+        if (buffer != null) {
+            return Optional.of(buffer);
+        }
+        if (allocated.incrementAndGet() <= maxBuffers) {
+            return Optional.of(new byte[bufferSize]);
+        }
+        allocated.decrementAndGet();
+        try {
+            return Optional.ofNullable(available.poll(waitMillis, MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+    }
+
+    public void release(byte[] buffer) {
+        available.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
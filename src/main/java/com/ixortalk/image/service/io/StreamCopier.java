@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies streams through a bounded, per-thread buffer so serving an object never requires holding it in memory.
+ * When copying to a client, write failures are reported as {@link ClientDisconnectedException} so callers can tell a
+ * client going away apart from a failing source.
+ */
+public final class StreamCopier {
+
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private StreamCopier() {
+    }
+
+    public static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = BUFFER.get();
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    public static long copyToClient(InputStream inputStream, OutputStream clientOutputStream) throws IOException {
+        byte[] buffer = BUFFER.get();
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            try {
+                clientOutputStream.write(buffer, 0, read);
+            } catch (IOException e) {
+                throw new ClientDisconnectedException(e);
+            }
+            total += read;
+        }
+        try {
+            clientOutputStream.flush();
+        } catch (IOException e) {
+            throw new ClientDisconnectedException(e);
+        }
+        return total;
+    }
+
+    public static class ClientDisconnectedException extends IOException {
+
+        public ClientDisconnectedException(IOException cause) {
+            super("Client disconnected: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.metrics;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+import java.util.function.Supplier;
+
+/**
+ * Prometheus collectors of the image service, registered with the default registry exposed by the prometheus endpoint.
+ */
+public final class ImageServiceMetrics {
+
+    public static final Histogram S3_REQUEST_DURATION = Histogram.build()
+            .name("image_service_s3_request_duration_seconds")
+            .help("Latency of S3 requests, for gets up to the response headers as the body is streamed afterwards.")
+            .labelNames("operation")
+            .register();
+
+    public static final Histogram DOWNLOAD_STAGE_DURATION = Histogram.build()
+            .name("image_service_download_stage_duration_seconds")
+            .help("Time spent in the stages of serving a download: reading the body from S3 and writing it to the client.")
+            .labelNames("stage")
+            .register();
+
+    public static final Counter SERVED_BYTES = Counter.build()
+            .name("image_service_served_bytes_total")
+            .help("Number of image bytes written to clients, by the tier they were served from.")
+            .labelNames("tier")
+            .register();
+
+    public static final Counter UPLOADED_BYTES = Counter.build()
+            .name("image_service_uploaded_bytes_total")
+            .help("Number of image bytes stored in S3, originals as well as renditions.")
+            .register();
+
+    public static final Histogram OBJECT_SIZE = Histogram.build()
+            .name("image_service_object_size_bytes")
+            .help("Size of the images served and stored.")
+            .labelNames("direction")
+            .exponentialBuckets(1024, 4, 10)
+            .register();
+
+    public static final Counter ERRORS = Counter.build()
+            .name("image_service_errors_total")
+            .help("Number of requests that failed, by cause.")
+            .labelNames("cause")
+            .register();
+
+    public static final Histogram RENDITION_DECODE_DURATION = Histogram.build()
+            .name("image_service_rendition_decode_duration_seconds")
+            .help("Time spent fetching and decoding originals to render renditions from.")
+            .register();
+
+    public static final Histogram RENDITION_RENDER_DURATION = Histogram.build()
+            .name("image_service_rendition_render_duration_seconds")
+            .help("Time spent resizing and encoding a single rendition.")
+            .labelNames("variant")
+            .register();
+
+    public static final Gauge RENDITION_QUEUE_DEPTH = Gauge.build()
+            .name("image_service_rendition_queue_depth")
+            .help("Number of rendition jobs waiting for a worker.")
+            .register();
+
+    public static final Counter RENDITION_REJECTED = Counter.build()
+            .name("image_service_rendition_rejected_total")
+            .help("Number of rendition jobs rejected because the pipeline queue was full.")
+            .register();
+
+    public static final Histogram UPLOAD_SAVED_BYTES = Histogram.build()
+            .name("image_service_upload_saved_bytes")
+            .help("Number of bytes the upload optimization stage saved per upload.")
+            .exponentialBuckets(1024, 4, 10)
+            .register();
+
+    public static final Counter UPLOAD_DEDUPLICATED = Counter.build()
+            .name("image_service_upload_deduplicated_total")
+            .help("Number of uploaded originals that were stored already and only got a pointer.")
+            .register();
+
+    public static final Counter CACHE_HITS = Counter.build()
+            .name("image_service_cache_hits_total")
+            .help("Number of image requests served from cache.")
+            .labelNames("tier")
+            .register();
+
+    public static final Counter CACHE_MISSES = Counter.build()
+            .name("image_service_cache_misses_total")
+            .help("Number of image requests not found in cache.")
+            .labelNames("tier")
+            .register();
+
+    public static final Counter CACHE_EVICTIONS = Counter.build()
+            .name("image_service_cache_evictions_total")
+            .help("Number of cached images evicted because of size or expiry.")
+            .labelNames("tier")
+            .register();
+
+    public static final Histogram CACHE_WRITE_DURATION = Histogram.build()
+            .name("image_service_cache_write_duration_seconds")
+            .help("Time spent writing an image into cache.")
+            .labelNames("tier")
+            .register();
+
+    public static final Gauge CACHE_RESIDENT_BYTES = Gauge.build()
+            .name("image_service_cache_resident_bytes")
+            .help("Number of image bytes currently held in cache.")
+            .labelNames("tier")
+            .register();
+
+    public static final Counter COALESCED_REQUESTS = Counter.build()
+            .name("image_service_coalesced_requests_total")
+            .help("Number of requests that shared an identical load already in flight instead of starting their own.")
+            .labelNames("operation")
+            .register();
+
+    public static final Gauge DOWNLOAD_IN_FLIGHT = Gauge.build()
+            .name("image_service_download_in_flight")
+            .help("Number of downloads being served, including those waiting for a download thread.")
+            .register();
+
+    public static final Gauge DOWNLOAD_ACTIVE_THREADS = Gauge.build()
+            .name("image_service_download_active_threads")
+            .help("Number of download threads busy serving a download.")
+            .register();
+
+    public static final Gauge DOWNLOAD_QUEUE_DEPTH = Gauge.build()
+            .name("image_service_download_queue_depth")
+            .help("Number of downloads waiting for a download thread.")
+            .register();
+
+    public static final Counter DOWNLOAD_REJECTED = Counter.build()
+            .name("image_service_download_rejected_total")
+            .help("Number of downloads rejected because the download queue was full.")
+            .register();
+
+    public static final Gauge CIRCUIT_BREAKER_STATE = Gauge.build()
+            .name("image_service_circuit_breaker_state")
+            .help("State of the circuit breaker guarding a storage backend: 0 closed, 1 open, 2 half open.")
+            .labelNames("backend")
+            .register();
+
+    public static final Counter CIRCUIT_BREAKER_REJECTED = Counter.build()
+            .name("image_service_circuit_breaker_rejected_total")
+            .help("Number of storage calls failed fast because the circuit breaker was open.")
+            .labelNames("backend")
+            .register();
+
+    public static final Counter STORAGE_TIMEOUTS = Counter.build()
+            .name("image_service_storage_timeouts_total")
+            .help("Number of storage calls given up on because they exceeded their timeout.")
+            .labelNames("operation")
+            .register();
+
+    public static final Counter HEDGED_REQUESTS = Counter.build()
+            .name("image_service_hedged_requests_total")
+            .help("Number of second requests sent because the first exceeded the hedge delay.")
+            .labelNames("operation")
+            .register();
+
+    public static final Counter HEDGE_WINS = Counter.build()
+            .name("image_service_hedge_wins_total")
+            .help("Number of hedged requests that answered before the request they hedged.")
+            .labelNames("operation")
+            .register();
+
+    public static final Counter STALE_SERVED = Counter.build()
+            .name("image_service_stale_served_total")
+            .help("Number of requests served from an expired cache entry, by the reason it was allowed.")
+            .labelNames("reason")
+            .register();
+
+    public static final Counter CACHE_REVALIDATIONS = Counter.build()
+            .name("image_service_cache_revalidations_total")
+            .help("Number of background revalidations of expired cached images, by result.")
+            .labelNames("result")
+            .register();
+
+    public static final Counter WARMUP_KEYS = Counter.build()
+            .name("image_service_warmup_keys_total")
+            .help("Number of keys handled by cache warm-ups, by result.")
+            .labelNames("result")
+            .register();
+
+    public static final Gauge WARMUP_PENDING = Gauge.build()
+            .name("image_service_warmup_pending_keys")
+            .help("Number of keys waiting to be loaded by cache warm-ups.")
+            .register();
+
+    public static final Histogram WARMUP_DURATION = Histogram.build()
+            .name("image_service_warmup_duration_seconds")
+            .help("Time taken by a cache warm-up to load all of its keys.")
+            .buckets(1, 5, 15, 30, 60, 120, 300, 600)
+            .register();
+
+    public static final Gauge WARMUP_STARTUP_COMPLETE = Gauge.build()
+            .name("image_service_warmup_startup_complete")
+            .help("1 once the warm-up configured to run at startup is done, or when none is configured.")
+            .register();
+
+    public static final Counter SPRITES = Counter.build()
+            .name("image_service_sprites_total")
+            .help("Number of sprite requests, by whether the sprite was composed, stored already or rejected.")
+            .labelNames("result")
+            .register();
+
+    public static final Histogram SPRITE_COMPOSE_DURATION = Histogram.build()
+            .name("image_service_sprite_compose_duration_seconds")
+            .help("Time spent fetching the tiles of a sprite and composing it.")
+            .buckets(0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+            .register();
+
+    public static final Counter ARCHIVE_ENTRIES = Counter.build()
+            .name("image_service_archive_entries_total")
+            .help("Number of keys handled by archive downloads, by whether they were written or missing.")
+            .labelNames("result")
+            .register();
+
+    public static final Counter UPLOADS_REJECTED = Counter.build()
+            .name("image_service_uploads_rejected_total")
+            .help("Number of uploads rejected before they were stored, by reason.")
+            .labelNames("reason")
+            .register();
+
+    private ImageServiceMetrics() {
+    }
+
+    /**
+     * Times a request to S3 in {@link #S3_REQUEST_DURATION}, failed requests included.
+     */
+    public static <T> T timeS3(String operation, Supplier<T> request) {
+        Histogram.Timer timer = S3_REQUEST_DURATION.labels(operation).startTimer();
+        try {
+            return request.get();
+        } finally {
+            timer.observeDuration();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Negotiation;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StorageUnavailableException;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+import static com.ixortalk.image.service.rendition.ImageCodec.encodableContentType;
+import static com.ixortalk.image.service.rendition.RenditionService.ENCODING_SEPARATOR;
+import static com.ixortalk.image.service.rendition.RenditionService.encodingKeyOf;
+import static com.ixortalk.image.service.rendition.RenditionService.isEncodingKey;
+import static com.ixortalk.image.service.rendition.RenditionService.isLossless;
+import static com.ixortalk.image.service.rendition.RenditionService.originalKeyOf;
+import static java.util.Collections.emptyList;
+import static java.util.Optional.empty;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang.StringUtils.substringAfterLast;
+import static org.springframework.http.HttpHeaders.ACCEPT;
+import static org.springframework.http.MediaType.IMAGE_PNG;
+
+/**
+ * Picks the most compact encoding a client accepts. Only image types in the {@code Accept} header count, so
+ * {@code *}{@code /*} clients such as scripts keep receiving the stored bytes, while browsers, which list
+ * {@code image/*} or specific image types for images, get the compact encoding. Encodings that cannot be smaller than
+ * the source, such as a lossless encoding of a lossy image, are never picked.
+ */
+@Component
+public class ContentNegotiation {
+
+    private static final String IMAGE = "image";
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private RenditionService renditionService;
+
+    private List<MediaType> encodings;
+
+    private Cache<String, String> sourceContentTypes;
+
+    @PostConstruct
+    public void resolveEncodings() {
+        encodings = getNegotiation().getContentTypes()
+                .stream()
+                .map(MediaType::parseMediaType)
+                .filter(contentType -> contentType.equals(IMAGE_PNG) || ImageIO.getImageWritersByMIMEType(contentType.toString()).hasNext())
+                .collect(toList());
+        sourceContentTypes = CacheBuilder.newBuilder()
+                .maximumSize(getNegotiation().getSourceCacheSize())
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return getNegotiation().isEnabled() && !encodings.isEmpty();
+    }
+
+    /**
+     * Only encodings of the configured content types are served, so requesting any other subtype cannot make the
+     * service decode the source and store an encoding for it.
+     */
+    public boolean isNegotiable(String encodingKey) {
+        String subtype = substringAfterLast(encodingKey, ENCODING_SEPARATOR);
+        return isEnabled() && encodings.stream().anyMatch(encoding -> encoding.getSubtype().equals(subtype));
+    }
+
+    /**
+     * Returns the key of the encoding to serve for the requested key, or the key itself when the client accepts none
+     * that can be smaller than the source. The content type of the source is only looked up when the client accepts
+     * an encoding at all.
+     */
+    public String negotiate(String key, HttpServletRequest request) throws IOException {
+        if (!isEnabled() || isEncodingKey(key)) {
+            return key;
+        }
+        List<MediaType> accepted = acceptedImageTypes(request);
+        List<MediaType> acceptedEncodings = encodings.stream()
+                .filter(encoding -> accepted.stream().anyMatch(acceptedType -> acceptedType.includes(encoding)))
+                .collect(toList());
+        if (acceptedEncodings.isEmpty()) {
+            return key;
+        }
+        Optional<String> sourceContentType = sourceContentType(key);
+        return acceptedEncodings.stream()
+                .filter(encoding -> sourceContentType.filter(contentType -> canBeSmaller(contentType, encoding)).isPresent())
+                .findFirst()
+                .map(encoding -> encodingKeyOf(key, encoding))
+                .orElse(key);
+    }
+
+    /**
+     * Renditions are not looked up themselves, as they may not be rendered yet, but take the content type their
+     * original is rendered in.
+     */
+    private Optional<String> sourceContentType(String key) throws IOException {
+        String cached = sourceContentTypes.getIfPresent(key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        boolean rendition = renditionService.variantOf(key).isPresent();
+        Optional<String> contentType;
+        try {
+            contentType = storageBackend.head(ixorTalkConfigProperties.getBucket(), rendition ? originalKeyOf(key) : key)
+                    .map(ObjectMetadata::getContentType)
+                    .map(originalContentType -> rendition ? encodableContentType(originalContentType) : originalContentType);
+        } catch (StorageUnavailableException e) {
+            // the stored bytes are served, or a stale copy of them
+            return empty();
+        }
+        contentType.ifPresent(sourceContentType -> sourceContentTypes.put(key, sourceContentType));
+        return contentType;
+    }
+
+    private static boolean canBeSmaller(String sourceContentType, MediaType encoding) {
+        return ImageIO.getImageReadersByMIMEType(sourceContentType).hasNext()
+                && (!encoding.equals(IMAGE_PNG) || isLossless(sourceContentType));
+    }
+
+    private static List<MediaType> acceptedImageTypes(HttpServletRequest request) {
+        String accept = request.getHeader(ACCEPT);
+        if (accept == null) {
+            return emptyList();
+        }
+        try {
+            return MediaType.parseMediaTypes(accept)
+                    .stream()
+                    .filter(mediaType -> IMAGE.equals(mediaType.getType()) && mediaType.getQualityValue() > 0)
+                    .collect(toList());
+        } catch (InvalidMediaTypeException e) {
+            return emptyList();
+        }
+    }
+
+    private Negotiation getNegotiation() {
+        return ixorTalkConfigProperties.getRenditions().getNegotiation();
+    }
+}
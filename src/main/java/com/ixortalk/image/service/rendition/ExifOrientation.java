@@ -0,0 +1,131 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Reads the EXIF orientation of a JPEG from its APP1 segment and turns images upright accordingly, as the image data
+ * of camera JPEGs is stored the way the sensor was held.
+ */
+public final class ExifOrientation {
+
+    public static final int NORMAL = 1;
+
+    private static final int START_OF_IMAGE = 0xd8;
+    private static final int START_OF_SCAN = 0xda;
+    private static final int END_OF_IMAGE = 0xd9;
+    private static final int APP1 = 0xe1;
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(US_ASCII);
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * Returns the orientation (1 to 8) of a JPEG, {@link #NORMAL} when it has none or is no JPEG. Only the segments
+     * before the image data are read.
+     */
+    public static int read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        if (input.read() != 0xff || input.read() != START_OF_IMAGE) {
+            return NORMAL;
+        }
+        while (true) {
+            int prefix = input.read();
+            int marker = input.read();
+            if (prefix != 0xff || marker < 0 || marker == START_OF_SCAN || marker == END_OF_IMAGE) {
+                return NORMAL;
+            }
+            int length = input.readUnsignedShort() - 2;
+            if (marker != APP1) {
+                input.skipBytes(length);
+                continue;
+            }
+            byte[] segment = new byte[length];
+            input.readFully(segment);
+            if (segment.length > EXIF_HEADER.length && Arrays.equals(Arrays.copyOf(segment, EXIF_HEADER.length), EXIF_HEADER)) {
+                return orientationOf(ByteBuffer.wrap(segment, EXIF_HEADER.length, segment.length - EXIF_HEADER.length).slice());
+            }
+        }
+    }
+
+    private static int orientationOf(ByteBuffer tiff) {
+        try {
+            tiff.order(tiff.get(0) == 'I' ? LITTLE_ENDIAN : BIG_ENDIAN);
+            int ifd = tiff.getInt(4);
+            int entries = tiff.getShort(ifd) & 0xffff;
+            for (int entry = 0; entry < entries; entry++) {
+                int offset = ifd + 2 + entry * 12;
+                if ((tiff.getShort(offset) & 0xffff) == ORIENTATION_TAG) {
+                    int orientation = tiff.getShort(offset + 8) & 0xffff;
+                    return orientation >= 1 && orientation <= 8 ? orientation : NORMAL;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // malformed EXIF block, leave the image as it is
+        }
+        return NORMAL;
+    }
+
+    public static BufferedImage apply(BufferedImage image, int orientation) {
+        if (orientation == NORMAL) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean transposed = orientation >= 5;
+        BufferedImage upright = new BufferedImage(
+                transposed ? height : width,
+                transposed ? width : height,
+                image.getColorModel().hasAlpha() ? TYPE_INT_ARGB : TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                switch (orientation) {
+                    case 2: upright.setRGB(width - 1 - x, y, row[x]); break;
+                    case 3: upright.setRGB(width - 1 - x, height - 1 - y, row[x]); break;
+                    case 4: upright.setRGB(x, height - 1 - y, row[x]); break;
+                    case 5: upright.setRGB(y, x, row[x]); break;
+                    case 6: upright.setRGB(height - 1 - y, x, row[x]); break;
+                    case 7: upright.setRGB(height - 1 - y, width - 1 - x, row[x]); break;
+                    default: upright.setRGB(y, width - 1 - x, row[x]); break;
+                }
+            }
+        }
+        return upright;
+    }
+}
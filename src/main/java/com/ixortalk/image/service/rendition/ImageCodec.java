@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import static javax.imageio.ImageWriteParam.MODE_EXPLICIT;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+public final class ImageCodec {
+
+    private ImageCodec() {
+    }
+
+    public static BufferedImage decode(InputStream inputStream) throws IOException {
+        BufferedImage image = ImageIO.read(inputStream);
+        if (image == null) {
+            throw new IllegalArgumentException("Unsupported image format");
+        }
+        return image;
+    }
+
+    /**
+     * Returns the content type renditions of an image with the given content type are written in, falling back to PNG
+     * when no writer is available.
+     */
+    public static String encodableContentType(String contentType) {
+        return contentType != null && ImageIO.getImageWritersByMIMEType(contentType).hasNext() ? contentType : IMAGE_PNG_VALUE;
+    }
+
+    public static byte[] encode(BufferedImage image, String contentType, float quality) throws IOException {
+        Iterator<ImageWriter> imageWriters = ImageIO.getImageWritersByMIMEType(contentType);
+        if (!imageWriters.hasNext()) {
+            throw new IllegalArgumentException("No image writer available for " + contentType);
+        }
+        ImageWriter imageWriter = imageWriters.next();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+            imageWriter.setOutput(imageOutputStream);
+            ImageWriteParam writeParam = imageWriter.getDefaultWriteParam();
+            if (writeParam.canWriteCompressed() && !contentType.equals(IMAGE_PNG_VALUE)) {
+                writeParam.setCompressionMode(MODE_EXPLICIT);
+                writeParam.setCompressionQuality(quality);
+            }
+            imageWriter.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            imageWriter.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_INDEXED;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.zip.Deflater.BEST_COMPRESSION;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Losslessly shrinks PNGs: images with at most 256 colours are written with a palette, fully opaque images lose their
+ * alpha channel and the image data is deflated at the best compression level, which the JDK's PNG writer does not
+ * offer.
+ */
+public final class PngOptimizer {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final String IMAGE_DATA_CHUNK = "IDAT";
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private PngOptimizer() {
+    }
+
+    public static byte[] optimize(BufferedImage image) throws IOException {
+        return recompress(ImageCodec.encode(reduce(image), IMAGE_PNG_VALUE, 1f));
+    }
+
+    /**
+     * Pixels are read as 8-bit sRGB, so images with deeper samples or another colour space, such as an embedded ICC
+     * profile, are left as they are rather than quantized.
+     */
+    static BufferedImage reduce(BufferedImage image) {
+        if (!isEightBitSrgb(image.getColorModel())) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        Set<Integer> colors = new LinkedHashSet<>();
+        boolean opaque = true;
+        int[] row = new int[width];
+        for (int y = 0; y < height && (colors.size() <= MAX_PALETTE_SIZE || hasAlpha && opaque); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int argb : row) {
+                opaque &= argb >>> 24 == 0xff;
+                if (colors.size() <= MAX_PALETTE_SIZE) {
+                    colors.add(argb);
+                }
+            }
+        }
+
+        if (colors.size() <= MAX_PALETTE_SIZE && !(image.getColorModel() instanceof IndexColorModel)) {
+            return toIndexed(image, colors, opaque);
+        }
+        if (hasAlpha && opaque) {
+            BufferedImage rgb = new BufferedImage(width, height, TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                rgb.setRGB(0, y, width, 1, row, 0, width);
+            }
+            return rgb;
+        }
+        return image;
+    }
+
+    private static boolean isEightBitSrgb(ColorModel colorModel) {
+        return colorModel.getColorSpace().isCS_sRGB() && IntStream.of(colorModel.getComponentSize()).allMatch(size -> size == 8);
+    }
+
+    private static BufferedImage toIndexed(BufferedImage image, Set<Integer> colors, boolean opaque) {
+        int size = colors.size();
+        byte[] reds = new byte[size], greens = new byte[size], blues = new byte[size], alphas = new byte[size];
+        Map<Integer, Integer> indexes = new HashMap<>();
+        for (int color : colors) {
+            int index = indexes.size();
+            alphas[index] = (byte) (color >>> 24);
+            reds[index] = (byte) (color >> 16);
+            greens[index] = (byte) (color >> 8);
+            blues[index] = (byte) color;
+            indexes.put(color, index);
+        }
+        IndexColorModel colorModel = opaque ?
+                new IndexColorModel(8, size, reds, greens, blues) :
+                new IndexColorModel(8, size, reds, greens, blues, alphas);
+
+        int width = image.getWidth();
+        BufferedImage indexed = new BufferedImage(width, image.getHeight(), TYPE_BYTE_INDEXED, colorModel);
+        WritableRaster raster = indexed.getRaster();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, indexes.get(row[x]));
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Rewrites the image data chunks as a single chunk deflated at {@link Deflater#BEST_COMPRESSION}, keeping the
+     * scanline filters the writer picked. Returns the input when that does not make it any smaller.
+     */
+    static byte[] recompress(byte[] png) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(png));
+        byte[] signature = new byte[SIGNATURE.length];
+        input.readFully(signature);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            return png;
+        }
+
+        ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+        ByteArrayOutputStream chunksBefore = new ByteArrayOutputStream();
+        ByteArrayOutputStream chunksAfter = new ByteArrayOutputStream();
+        while (input.available() > 0) {
+            int length = input.readInt();
+            byte[] type = new byte[4];
+            input.readFully(type);
+            byte[] data = new byte[length];
+            input.readFully(data);
+            int crc = input.readInt();
+            if (IMAGE_DATA_CHUNK.equals(new String(type, US_ASCII))) {
+                imageData.write(data);
+            } else {
+                DataOutputStream chunks = new DataOutputStream(imageData.size() == 0 ? chunksBefore : chunksAfter);
+                chunks.writeInt(length);
+                chunks.write(type);
+                chunks.write(data);
+                chunks.writeInt(crc);
+            }
+        }
+
+        ByteArrayOutputStream optimized = new ByteArrayOutputStream(png.length);
+        optimized.write(SIGNATURE);
+        chunksBefore.writeTo(optimized);
+        writeChunk(new DataOutputStream(optimized), IMAGE_DATA_CHUNK, deflate(inflate(imageData.toByteArray())));
+        chunksAfter.writeTo(optimized);
+        return optimized.size() < png.length ? optimized.toByteArray() : png;
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated PNG image data");
+                }
+                inflated.write(buffer, 0, count);
+            }
+            return inflated.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PNG image data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return deflated.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeChunk(DataOutputStream output, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        output.writeInt(data.length);
+        output.write(typeBytes);
+        output.write(data);
+        output.writeInt((int) crc.getValue());
+    }
+}
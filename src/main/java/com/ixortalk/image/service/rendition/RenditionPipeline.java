@@ -0,0 +1,155 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Pipeline;
+import com.ixortalk.image.service.rendition.RenditionService.SourceImage;
+import com.ixortalk.image.service.storage.ContentAddressedStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.RENDITION_QUEUE_DEPTH;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.RENDITION_REJECTED;
+import static com.ixortalk.image.service.rendition.RenditionService.renditionKeyOf;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Renders all configured variants of a freshly uploaded original in the background. The original is decoded once, after
+ * which every variant is rendered as a separate task on the same CPU-sized pool.
+ */
+@Component
+public class RenditionPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenditionPipeline.class);
+
+    @Inject
+    private RenditionService renditionService;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void startExecutor() {
+        Pipeline pipeline = ixorTalkConfigProperties.getRenditions().getPipeline();
+        executor = new ThreadPoolExecutor(
+                pipeline.getPoolSize(),
+                pipeline.getPoolSize(),
+                0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(pipeline.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("rendition-%d").setDaemon(true).build()) {
+
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                RENDITION_QUEUE_DEPTH.set(getQueue().size());
+            }
+        };
+    }
+
+    @PreDestroy
+    public void stopExecutor() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    /**
+     * Fails fast with a {@link RenditionPipelineSaturatedException} when the pipeline cannot take another upload, so
+     * callers can reject the upload before storing anything.
+     */
+    public void ensureCapacity() {
+        Pipeline pipeline = ixorTalkConfigProperties.getRenditions().getPipeline();
+        if (pipeline.isEnabled() && executor.getQueue().remainingCapacity() == 0) {
+            RENDITION_REJECTED.inc();
+            throw new RenditionPipelineSaturatedException(pipeline.getRetryAfterSeconds());
+        }
+    }
+
+    public void submit(String originalKey) {
+        if (!ixorTalkConfigProperties.getRenditions().getPipeline().isEnabled()) {
+            return;
+        }
+        try {
+            execute(() -> renderAll(originalKey));
+        } catch (RejectedExecutionException e) {
+            // the original is stored already, its renditions will be rendered lazily on first request
+            RENDITION_REJECTED.inc();
+            LOGGER.warn("Rendition pipeline saturated, not pre-rendering {}", originalKey);
+        }
+    }
+
+    private void renderAll(String uploadedKey) {
+        String originalKey;
+        try {
+            originalKey = contentAddressedStore.resolve(ixorTalkConfigProperties.getBucket(), uploadedKey);
+        } catch (Exception e) {
+            LOGGER.error("Could not resolve {} for pre-rendering: {}", uploadedKey, e.getMessage(), e);
+            return;
+        }
+        SourceImage sourceImage;
+        try {
+            sourceImage = renditionService.loadOriginal(originalKey);
+        } catch (Exception e) {
+            LOGGER.error("Could not decode {} for pre-rendering: {}", originalKey, e.getMessage(), e);
+            return;
+        }
+
+        renditionService.getVariants().forEach(variant -> {
+            Runnable renderVariant = () -> renderVariant(sourceImage, originalKey, variant);
+            try {
+                execute(renderVariant);
+            } catch (RejectedExecutionException e) {
+                renderVariant.run();
+            }
+        });
+    }
+
+    private void renderVariant(SourceImage sourceImage, String originalKey, Variant variant) {
+        String renditionKey = renditionKeyOf(originalKey, variant);
+        try {
+            renditionService.store(renditionKey, renditionService.render(sourceImage, variant));
+        } catch (Exception e) {
+            LOGGER.error("Could not pre-render {}: {}", renditionKey, e.getMessage(), e);
+        }
+    }
+
+    private void execute(Runnable task) {
+        executor.execute(task);
+        RENDITION_QUEUE_DEPTH.set(executor.getQueue().size());
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.cache.ImageCache;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.storage.ImageInfo;
+import com.ixortalk.image.service.storage.backend.ObjectNotFoundException;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.amazonaws.services.s3.Headers.ETAG;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.io.ByteStreams.toByteArray;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.OBJECT_SIZE;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.RENDITION_DECODE_DURATION;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.RENDITION_RENDER_DURATION;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOADED_BYTES;
+import static com.ixortalk.image.service.rendition.ImageCodec.decode;
+import static com.ixortalk.image.service.rendition.ImageCodec.encodableContentType;
+import static com.ixortalk.image.service.rendition.ImageCodec.encode;
+import static java.lang.Boolean.TRUE;
+import static java.util.Optional.ofNullable;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+import static org.apache.commons.lang.StringUtils.substringAfterLast;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+/**
+ * Serves named renditions stored next to an original ({@code <key>/<uuid>/<variant>}), rendering and writing them back
+ * to the bucket the first time they are requested.
+ */
+@Service
+public class RenditionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenditionService.class);
+
+    public static final String ORIGINAL = "original";
+
+    static final String ENCODING_SEPARATOR = "@";
+    private static final String IMAGE = "image";
+    private static final Set<String> LOSSLESS_CONTENT_TYPES = newHashSet(IMAGE_PNG_VALUE, IMAGE_GIF_VALUE, "image/bmp");
+
+    /**
+     * User metadata of an empty object stored as encoding when re-encoding did not make the source any smaller.
+     */
+    static final String SOURCE_ENCODING_METADATA = "source-encoding";
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private ImageCache imageCache;
+
+    private Map<String, Variant> variants;
+
+    @PostConstruct
+    public void parseVariants() {
+        variants = ixorTalkConfigProperties.getRenditions().getVariants()
+                .stream()
+                .map(Variant::parse)
+                .collect(toMap(Variant::getName, identity()));
+    }
+
+    public Optional<Variant> variantOf(String key) {
+        return ofNullable(variants.get(substringAfterLast(key, "/")));
+    }
+
+    public StoredObject getRendition(String key, Variant variant) throws IOException {
+        try {
+            return storageBackend.get(ixorTalkConfigProperties.getBucket(), key);
+        } catch (ObjectNotFoundException e) {
+            LOGGER.info("Rendition {} does not exist yet, rendering it from the original", key);
+        }
+
+        Rendition rendition = render(loadOriginal(originalKeyOf(key)), variant);
+        store(key, rendition);
+        return toStoredObject(rendition);
+    }
+
+    /**
+     * Serves a compact encoding of an image or rendition, stored as {@code <key>@<subtype>}. {@link ContentNegotiation}
+     * only asks for encodings that can be smaller than their source. When one still turns out no smaller, an empty
+     * marker is stored in its place instead of a copy of the source, so the comparison is not repeated on every request.
+     */
+    public StoredObject getEncoding(String key) throws IOException {
+        String sourceKey = substringBeforeLast(key, ENCODING_SEPARATOR);
+        try {
+            StoredObject encoding = storageBackend.get(ixorTalkConfigProperties.getBucket(), key);
+            if (!encoding.getMetadata().getUserMetadata().containsKey(SOURCE_ENCODING_METADATA)) {
+                return encoding;
+            }
+            encoding.release(true);
+            return getSource(sourceKey);
+        } catch (ObjectNotFoundException e) {
+            // encoded below
+        }
+
+        StoredObject source = getSource(sourceKey);
+        byte[] sourceBytes;
+        try (InputStream objectContent = source.getContent()) {
+            sourceBytes = toByteArray(objectContent);
+        }
+
+        LOGGER.info("Encoding {} does not exist yet, encoding it from {}", key, sourceKey);
+        Rendition sourceRendition = new Rendition(sourceBytes, source.getMetadata().getContentType());
+        Rendition encoding = reencode(sourceRendition, IMAGE + "/" + substringAfterLast(key, ENCODING_SEPARATOR));
+        if (encoding == sourceRendition) {
+            storeSourceMarker(key);
+        } else {
+            store(key, encoding);
+        }
+        return toStoredObject(encoding);
+    }
+
+    private StoredObject getSource(String sourceKey) throws IOException {
+        Optional<Variant> variant = variantOf(sourceKey);
+        return variant.isPresent() ?
+                getRendition(sourceKey, variant.get()) :
+                storageBackend.get(ixorTalkConfigProperties.getBucket(), sourceKey);
+    }
+
+    private void storeSourceMarker(String key) throws IOException {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(0);
+        objectMetadata.addUserMetadata(SOURCE_ENCODING_METADATA, TRUE.toString());
+        storageBackend.put(ixorTalkConfigProperties.getBucket(), key, objectMetadata, new ByteArrayInputStream(new byte[0]));
+        imageCache.invalidate(ixorTalkConfigProperties.getBucket(), key);
+    }
+
+    private Rendition reencode(Rendition source, String contentType) throws IOException {
+        if (source.getContentType() == null || !ImageIO.getImageReadersByMIMEType(source.getContentType()).hasNext()) {
+            return source;
+        }
+        boolean recompressPng = contentType.equals(IMAGE_PNG_VALUE);
+        if (recompressPng && !isLossless(source.getContentType())) {
+            // a lossless re-encoding of a lossy image only grows it
+            return source;
+        }
+
+        Histogram.Timer renderTimer = RENDITION_RENDER_DURATION.labels(ENCODING_SEPARATOR + substringAfterLast(contentType, "/")).startTimer();
+        try {
+            BufferedImage image = decode(new ByteArrayInputStream(source.getBytes()));
+            byte[] encoded = recompressPng ?
+                    PngOptimizer.optimize(image) :
+                    encode(image, contentType, ixorTalkConfigProperties.getRenditions().getJpegQuality());
+            return encoded.length < source.getBytes().length ? new Rendition(encoded, contentType) : source;
+        } catch (IllegalArgumentException | IOException e) {
+            // no writer for the content type, or one that cannot write this image, such as jpeg with an alpha channel
+            LOGGER.warn("Could not re-encode {} image as {}: {}", source.getContentType(), contentType, e.getMessage());
+            return source;
+        } finally {
+            renderTimer.observeDuration();
+        }
+    }
+
+    public Collection<Variant> getVariants() {
+        return variants.values();
+    }
+
+    public SourceImage loadOriginal(String originalKey) throws IOException {
+        Histogram.Timer decodeTimer = RENDITION_DECODE_DURATION.startTimer();
+        try {
+            StoredObject original = storageBackend.get(ixorTalkConfigProperties.getBucket(), originalKey);
+            byte[] originalBytes;
+            try (InputStream objectContent = original.getContent()) {
+                originalBytes = toByteArray(objectContent);
+            }
+            return new SourceImage(originalBytes, original.getMetadata().getContentType(), decode(new ByteArrayInputStream(originalBytes)));
+        } finally {
+            decodeTimer.observeDuration();
+        }
+    }
+
+    public Rendition render(SourceImage sourceImage, Variant variant) throws IOException {
+        BufferedImage image = sourceImage.getImage();
+        if (!variant.downscales(image.getWidth(), image.getHeight())) {
+            return new Rendition(sourceImage.getOriginalBytes(), sourceImage.getOriginalContentType());
+        }
+        Histogram.Timer renderTimer = RENDITION_RENDER_DURATION.labels(variant.getName()).startTimer();
+        try {
+            String contentType = encodableContentType(sourceImage.getOriginalContentType());
+            return new Rendition(encode(variant.apply(image), contentType, ixorTalkConfigProperties.getRenditions().getJpegQuality()), contentType);
+        } finally {
+            renderTimer.observeDuration();
+        }
+    }
+
+    public void store(String key, Rendition rendition) throws IOException {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(rendition.getContentType());
+        objectMetadata.setContentLength(rendition.getBytes().length);
+        ImageInfo.read(new ByteArrayInputStream(rendition.getBytes()), rendition.getContentType(), rendition.getBytes().length).ifPresent(imageInfo -> imageInfo.addTo(objectMetadata));
+        storageBackend.put(ixorTalkConfigProperties.getBucket(), key, objectMetadata, new ByteArrayInputStream(rendition.getBytes()));
+        UPLOADED_BYTES.inc(rendition.getBytes().length);
+        OBJECT_SIZE.labels("upload").observe(rendition.getBytes().length);
+        imageCache.invalidate(ixorTalkConfigProperties.getBucket(), key);
+    }
+
+    public static boolean isLossless(String contentType) {
+        return LOSSLESS_CONTENT_TYPES.contains(contentType);
+    }
+
+    public static String encodingKeyOf(String key, MediaType contentType) {
+        return key + ENCODING_SEPARATOR + contentType.getSubtype();
+    }
+
+    public static boolean isEncodingKey(String key) {
+        return substringAfterLast(key, "/").contains(ENCODING_SEPARATOR);
+    }
+
+    public static String originalKeyOf(String key) {
+        return substringBeforeLast(key, "/") + "/" + ORIGINAL;
+    }
+
+    public static String renditionKeyOf(String originalKey, Variant variant) {
+        return substringBeforeLast(originalKey, "/") + "/" + variant.getName();
+    }
+
+    private static StoredObject toStoredObject(Rendition rendition) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(rendition.getContentType());
+        objectMetadata.setContentLength(rendition.getBytes().length);
+        // matches the ETag the backend assigns to the stored rendition, so validators stay stable once it is served from there
+        objectMetadata.setHeader(ETAG, md5DigestAsHex(rendition.getBytes()));
+        objectMetadata.setLastModified(new Date());
+        return StoredObject.of(objectMetadata, new ByteArrayInputStream(rendition.getBytes()), null);
+    }
+
+    public static class SourceImage {
+
+        private final byte[] originalBytes;
+        private final String originalContentType;
+        private final BufferedImage image;
+
+        public SourceImage(byte[] originalBytes, String originalContentType, BufferedImage image) {
+            this.originalBytes = originalBytes;
+            this.originalContentType = originalContentType;
+            this.image = image;
+        }
+
+        public byte[] getOriginalBytes() {
+            return originalBytes;
+        }
+
+        public String getOriginalContentType() {
+            return originalContentType;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+    }
+
+    public static class Rendition {
+
+        private final byte[] bytes;
+        private final String contentType;
+
+        public Rendition(byte[] bytes, String contentType) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+}
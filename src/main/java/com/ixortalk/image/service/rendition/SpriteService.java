@@ -0,0 +1,305 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.cache.CachedImage;
+import com.ixortalk.image.service.cache.ImageCache;
+import com.ixortalk.image.service.cache.SingleFlight;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Sprites;
+import com.ixortalk.image.service.rendition.RenditionService.Rendition;
+import com.ixortalk.image.service.rendition.Sprite.Tile;
+import com.ixortalk.image.service.storage.ContentAddressedStore;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import io.prometheus.client.Histogram;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.regex.Pattern;
+
+import static com.google.common.io.ByteStreams.toByteArray;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.SPRITES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.SPRITE_COMPOSE_DURATION;
+import static com.ixortalk.image.service.rendition.ImageCodec.decode;
+import static com.ixortalk.image.service.rendition.ImageCodec.encodableContentType;
+import static com.ixortalk.image.service.rendition.ImageCodec.encode;
+import static com.ixortalk.image.service.rendition.RenditionService.ORIGINAL;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static java.lang.Math.ceil;
+import static java.lang.Math.sqrt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparingInt;
+import static java.util.UUID.nameUUIDFromBytes;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Composes the originals behind many {@code <key>/<uuid>} references into a single grid of square tiles. A sprite is
+ * stored under a key derived from its sorted references, tile size and content type, so it is only composed once and
+ * is served, and cached, like any other immutable image afterwards. Sprites are composed on a bounded pool, as every
+ * composition holds its canvas in memory.
+ */
+@Service
+public class SpriteService {
+
+    private static final String SPRITES_PREFIX = "sprites/";
+    private static final String SPRITE = "sprite";
+    private static final Pattern REFERENCE_PATTERN = Pattern.compile(".+/[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    @Inject
+    private ImageCache imageCache;
+
+    @Inject
+    private RenditionService renditionService;
+
+    private SingleFlight<Sprite> composing;
+
+    private ExecutorService executor;
+
+    private ThreadPoolExecutor composeExecutor;
+
+    @PostConstruct
+    public void startExecutor() {
+        Sprites sprites = getSprites();
+        executor = Executors.newFixedThreadPool(
+                sprites.getConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("sprite-%d").setDaemon(true).build());
+        composeExecutor = new ThreadPoolExecutor(
+                sprites.getComposePoolSize(),
+                sprites.getComposePoolSize(),
+                0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(sprites.getComposeQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("sprite-compose-%d").setDaemon(true).build());
+        composing = new SingleFlight<>("sprite", ixorTalkConfigProperties.getDownload().getCoalescedWaitMillis());
+    }
+
+    @PreDestroy
+    public void stopExecutor() {
+        composeExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the sprite of the given references, composing and storing it first when it was not stored before. The
+     * tiles are laid out in the sorted order of the references, so the same references in any order share a sprite,
+     * and duplicate references share a tile.
+     *
+     * @throws IllegalArgumentException when the references, the tile size or the canvas are out of bounds
+     * @throws SpritesSaturatedException when the sprite has to be composed but no more compositions can be queued
+     */
+    public Sprite sprite(List<String> references, int tileSize) throws IOException {
+        List<String> distinctReferences = new ArrayList<>(new TreeSet<>(references));
+        validate(distinctReferences, tileSize);
+
+        String contentType = encodableContentType(getSprites().getContentType());
+        String key = keyOf(distinctReferences, tileSize, contentType);
+        int columns = (int) ceil(sqrt(distinctReferences.size()));
+        int rows = (distinctReferences.size() + columns - 1) / columns;
+        if ((long) columns * tileSize * rows * tileSize > getSprites().getMaxPixels()) {
+            throw new IllegalArgumentException("A sprite holds at most " + getSprites().getMaxPixels() + " pixels");
+        }
+        Map<String, Tile> tiles = new LinkedHashMap<>();
+        for (int i = 0; i < distinctReferences.size(); i++) {
+            tiles.put(distinctReferences.get(i), new Tile((i % columns) * tileSize, (i / columns) * tileSize, tileSize, tileSize));
+        }
+        Sprite sprite = new Sprite(key, columns * tileSize, rows * tileSize, tiles);
+
+        if (storageBackend.head(ixorTalkConfigProperties.getBucket(), key).isPresent()) {
+            SPRITES.labels("stored").inc();
+            return sprite;
+        }
+        return composing.execute(key, () -> {
+            composeOnPool(sprite, tileSize, contentType);
+            SPRITES.labels("composed").inc();
+            return sprite;
+        });
+    }
+
+    private void composeOnPool(Sprite sprite, int tileSize, String contentType) throws IOException {
+        Future<Void> composition;
+        try {
+            composition = composeExecutor.submit(() -> {
+                compose(sprite, tileSize, contentType);
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            SPRITES.labels("rejected").inc();
+            throw new SpritesSaturatedException(getSprites().getRetryAfterSeconds());
+        }
+        try {
+            composition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            composition.cancel(true);
+            throw new InterruptedIOException("Interrupted while composing " + sprite.getKey());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void validate(List<String> references, int tileSize) {
+        Sprites sprites = getSprites();
+        if (references.isEmpty() || references.size() > sprites.getMaxTiles()) {
+            throw new IllegalArgumentException("A sprite holds between 1 and " + sprites.getMaxTiles() + " references");
+        }
+        if (tileSize <= 0 || tileSize > sprites.getMaxTileSize()) {
+            throw new IllegalArgumentException("The tile size of a sprite is between 1 and " + sprites.getMaxTileSize());
+        }
+        references.stream()
+                .filter(reference -> !REFERENCE_PATTERN.matcher(reference).matches())
+                .findFirst()
+                .ifPresent(reference -> {
+                    throw new IllegalArgumentException("Invalid sprite reference '" + reference + "', expected <key>/<uuid>");
+                });
+    }
+
+    private void compose(Sprite sprite, int tileSize, String contentType) throws IOException {
+        Histogram.Timer composeTimer = SPRITE_COMPOSE_DURATION.startTimer();
+        try {
+            Map<String, CompletableFuture<BufferedImage>> tileImages = new LinkedHashMap<>();
+            sprite.getTiles().keySet().forEach(reference -> tileImages.put(reference, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return loadTile(reference, tileSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor)));
+
+            boolean transparent = contentType.equals(IMAGE_PNG_VALUE);
+            BufferedImage canvas = new BufferedImage(sprite.getWidth(), sprite.getHeight(), transparent ? TYPE_INT_ARGB : TYPE_INT_RGB);
+            Graphics2D graphics = canvas.createGraphics();
+            try {
+                if (!transparent) {
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+                }
+                for (Map.Entry<String, CompletableFuture<BufferedImage>> tileImage : tileImages.entrySet()) {
+                    BufferedImage image = await(tileImage.getValue());
+                    Tile tile = sprite.getTiles().get(tileImage.getKey());
+                    // tiles of images smaller than the tile size are centered in their cell
+                    graphics.drawImage(image, tile.getX() + (tileSize - image.getWidth()) / 2, tile.getY() + (tileSize - image.getHeight()) / 2, null);
+                }
+            } finally {
+                graphics.dispose();
+            }
+
+            renditionService.store(sprite.getKey(), new Rendition(encode(canvas, contentType, ixorTalkConfigProperties.getRenditions().getJpegQuality()), contentType));
+        } finally {
+            composeTimer.observeDuration();
+        }
+    }
+
+    /**
+     * Cuts the tile from the smallest square rendition it fits in, falling back to the original, and prefers the copy
+     * in the memory cache over the one in storage.
+     */
+    private BufferedImage loadTile(String reference, int tileSize) throws IOException {
+        String bucket = ixorTalkConfigProperties.getBucket();
+        Optional<Variant> variant = renditionService.getVariants()
+                .stream()
+                .filter(candidate -> candidate.isSquare() && candidate.getSize() >= tileSize)
+                .min(comparingInt(Variant::getSize));
+        String key = contentAddressedStore.resolve(bucket, reference + "/" + variant.map(Variant::getName).orElse(ORIGINAL));
+
+        byte[] bytes;
+        CachedImage cachedImage = imageCache.get(bucket, key);
+        if (cachedImage != null) {
+            bytes = cachedImage.getContent();
+        } else {
+            StoredObject storedObject = variant.isPresent() ?
+                    renditionService.getRendition(key, variant.get()) :
+                    storageBackend.get(bucket, key);
+            try (InputStream objectContent = storedObject.getContent()) {
+                bytes = toByteArray(objectContent);
+            }
+        }
+        return Variant.parse("thumb-" + tileSize).apply(decode(new ByteArrayInputStream(bytes)));
+    }
+
+    private static BufferedImage await(CompletableFuture<BufferedImage> tileImage) throws IOException {
+        try {
+            return tileImage.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static String keyOf(List<String> references, int tileSize, String contentType) {
+        String inputs = contentType + "\n" + tileSize + "\n" + String.join("\n", references);
+        return SPRITES_PREFIX + nameUUIDFromBytes(inputs.getBytes(UTF_8)) + "/" + SPRITE;
+    }
+
+    private Sprites getSprites() {
+        return ixorTalkConfigProperties.getRenditions().getSprites();
+    }
+}
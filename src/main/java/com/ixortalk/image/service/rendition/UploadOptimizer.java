@@ -0,0 +1,238 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteSource;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Optimization;
+import com.ixortalk.image.service.rendition.RenditionService.Rendition;
+import com.ixortalk.image.service.storage.ContentAddressedStore;
+import com.ixortalk.image.service.storage.UploadValidator;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.inject.Inject;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.zip.InflaterInputStream;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOADED_BYTES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOAD_SAVED_BYTES;
+import static com.ixortalk.image.service.rendition.ImageCodec.encodableContentType;
+import static com.ixortalk.image.service.rendition.ImageCodec.encode;
+import static java.awt.color.ColorSpace.CS_sRGB;
+import static java.lang.Math.max;
+import static java.lang.Math.round;
+import static java.util.Optional.empty;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Optional stage between receiving an upload and storing it as the original. The image is decoded subsampled when it
+ * is well over {@code maxDimension}, so the full resolution bitmap of a camera JPEG is never held, then capped, turned
+ * upright and re-encoded without any of its metadata. Colour profiles are applied rather than dropped: the JPEG reader
+ * converts to sRGB itself, PNGs with an RGB profile are converted here and any other profile leaves the upload as
+ * received, as do GIFs, which may be animated. The result is only stored when it is smaller, or had to be downscaled or
+ * turned.
+ */
+@Component
+public class UploadOptimizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadOptimizer.class);
+
+    public static final String SOURCE = "source";
+
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private UploadValidator uploadValidator;
+
+    public void store(String bucket, String location, MultipartFile multipartFile) throws IOException {
+        store(bucket, location, new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return multipartFile.getInputStream();
+            }
+
+            @Override
+            public long size() {
+                return multipartFile.getSize();
+            }
+        });
+    }
+
+    /**
+     * Stores the upload in the format found by the {@link UploadValidator}, whatever content type it was sent with.
+     */
+    public void store(String bucket, String location, ByteSource upload) throws IOException {
+        String contentType = uploadValidator.validate(upload);
+        Optional<Rendition> optimized = getOptimization().isEnabled() ? optimize(upload, contentType) : empty();
+        if (!optimized.isPresent()) {
+            contentAddressedStore.save(bucket, location, upload, contentType);
+            return;
+        }
+
+        Rendition rendition = optimized.get();
+        String storedKey = contentAddressedStore.save(bucket, location, ByteSource.wrap(rendition.getBytes()), rendition.getContentType());
+        if (getOptimization().isKeepSource()) {
+            // next to the stored original, that is where the logical key resolves to
+            ObjectMetadata sourceMetadata = objectMetadata(contentType, upload.size());
+            storageBackend.put(bucket, sourceKeyOf(storedKey), sourceMetadata, upload.openStream());
+            UPLOADED_BYTES.inc(sourceMetadata.getContentLength());
+        }
+        UPLOAD_SAVED_BYTES.observe(max(0, upload.size() - rendition.getBytes().length));
+    }
+
+    Optional<Rendition> optimize(ByteSource upload, String contentType) throws IOException {
+        if (contentType.equals(IMAGE_GIF_VALUE)) {
+            // only the first frame would be kept
+            return empty();
+        }
+        Optimization optimization = getOptimization();
+        try {
+            int orientation;
+            try (InputStream inputStream = upload.openStream()) {
+                orientation = ExifOrientation.read(inputStream);
+            }
+            BufferedImage image;
+            try (InputStream inputStream = upload.openStream()) {
+                image = decodeWithin(inputStream, optimization.getMaxDimension());
+            }
+            boolean downscaled = max(image.getWidth(), image.getHeight()) > optimization.getMaxDimension();
+            if (downscaled) {
+                double scale = (double) optimization.getMaxDimension() / max(image.getWidth(), image.getHeight());
+                image = ImageResizer.resize(image, (int) max(1, round(image.getWidth() * scale)), (int) max(1, round(image.getHeight() * scale)));
+            }
+            image = ExifOrientation.apply(image, orientation);
+
+            String optimizedContentType = encodableContentType(contentType);
+            byte[] bytes = optimizedContentType.equals(IMAGE_PNG_VALUE) ?
+                    PngOptimizer.optimize(image) :
+                    encode(image, optimizedContentType, optimization.getQuality());
+            return downscaled || orientation != ExifOrientation.NORMAL || bytes.length < upload.size() ? Optional.of(new Rendition(bytes, optimizedContentType)) : empty();
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Could not optimize {} upload, storing it as received: {}", contentType, e.getMessage());
+            return empty();
+        }
+    }
+
+    /**
+     * Decodes the image, skipping rows and columns while it stays at least {@code maxDimension} in size.
+     */
+    private static BufferedImage decodeWithin(InputStream inputStream, int maxDimension) throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(imageInputStream);
+            if (!imageReaders.hasNext()) {
+                throw new IllegalArgumentException("Unsupported image format");
+            }
+            ImageReader imageReader = imageReaders.next();
+            try {
+                // only the PNG metadata is read, for its colour profile
+                boolean png = PNG_METADATA_FORMAT.equals(imageReader.getOriginatingProvider().getNativeImageMetadataFormatName());
+                imageReader.setInput(imageInputStream, true, !png);
+                int subsampling = max(1, max(imageReader.getWidth(0), imageReader.getHeight(0)) / maxDimension);
+                ImageReadParam readParam = imageReader.getDefaultReadParam();
+                readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = imageReader.read(0, readParam);
+                Optional<ICC_Profile> pngProfile = png ? pngProfileOf(imageReader.getImageMetadata(0)) : empty();
+                return pngProfile.isPresent() ? toSrgb(image, pngProfile.get()) : image;
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The PNG reader ignores the {@code iCCP} chunk and hands out the samples as if they were sRGB.
+     */
+    private static Optional<ICC_Profile> pngProfileOf(IIOMetadata metadata) throws IOException {
+        IIOMetadataNode profileChunk = (IIOMetadataNode) ((IIOMetadataNode) metadata.getAsTree(PNG_METADATA_FORMAT)).getElementsByTagName("iCCP").item(0);
+        if (profileChunk == null || !(profileChunk.getUserObject() instanceof byte[])) {
+            return empty();
+        }
+        try (InputStream profile = new InflaterInputStream(new ByteArrayInputStream((byte[]) profileChunk.getUserObject()))) {
+            return Optional.of(ICC_Profile.getInstance(profile));
+        }
+    }
+
+    private static BufferedImage toSrgb(BufferedImage image, ICC_Profile profile) {
+        ColorModel colorModel = image.getColorModel();
+        if (profile.getColorSpaceType() != ColorSpace.TYPE_RGB || !(colorModel instanceof ComponentColorModel) || colorModel.getNumColorComponents() != 3) {
+            throw new IllegalArgumentException("Unsupported colour profile");
+        }
+        BufferedImage tagged = new BufferedImage(withColorSpace(colorModel, new ICC_ColorSpace(profile)), image.getRaster(), false, null);
+        ColorModel srgbModel = withColorSpace(colorModel, ColorSpace.getInstance(CS_sRGB));
+        BufferedImage converted = new BufferedImage(srgbModel, srgbModel.createCompatibleWritableRaster(image.getWidth(), image.getHeight()), false, null);
+        return new ColorConvertOp(null).filter(tagged, converted);
+    }
+
+    private static ColorModel withColorSpace(ColorModel colorModel, ColorSpace colorSpace) {
+        return new ComponentColorModel(colorSpace, colorModel.getComponentSize(), colorModel.hasAlpha(), colorModel.isAlphaPremultiplied(), colorModel.getTransparency(), colorModel.getTransferType());
+    }
+
+    public static String sourceKeyOf(String originalKey) {
+        return substringBeforeLast(originalKey, "/") + "/" + SOURCE;
+    }
+
+    private static ObjectMetadata objectMetadata(String contentType, long contentLength) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(contentLength);
+        objectMetadata.setContentType(contentType);
+        return objectMetadata;
+    }
+
+    private Optimization getOptimization() {
+        return ixorTalkConfigProperties.getUpload().getOptimization();
+    }
+}
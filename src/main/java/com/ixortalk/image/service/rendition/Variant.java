@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rendition;
+
+import java.awt.image.BufferedImage;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.ixortalk.image.service.rendition.ImageResizer.resize;
+import static java.lang.Integer.parseInt;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+
+public final class Variant {
+
+    private static final Pattern VARIANT_PATTERN = Pattern.compile("(thumb|w)-(\\d+)");
+
+    private enum Type {
+        THUMB, WIDTH
+    }
+
+    private final String name;
+    private final Type type;
+    private final int size;
+
+    private Variant(String name, Type type, int size) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+    }
+
+    public static Variant parse(String name) {
+        Matcher matcher = VARIANT_PATTERN.matcher(name);
+        if (!matcher.matches() || parseInt(matcher.group(2)) <= 0) {
+            throw new IllegalArgumentException("Invalid rendition variant '" + name + "', expected thumb-<size> or w-<width>");
+        }
+        return new Variant(name, matcher.group(1).equals("thumb") ? Type.THUMB : Type.WIDTH, parseInt(matcher.group(2)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isSquare() {
+        return type == Type.THUMB;
+    }
+
+    /**
+     * Whether rendering this variant from a source of the given dimensions changes it at all.
+     */
+    public boolean downscales(int width, int height) {
+        return type == Type.THUMB ? width != height || width > size : width > size;
+    }
+
+    /**
+     * Renders this variant from the given source, never upscaling beyond the source dimensions.
+     */
+    public BufferedImage apply(BufferedImage source) {
+        switch (type) {
+            case THUMB:
+                int side = min(source.getWidth(), source.getHeight());
+                BufferedImage square = source.getSubimage((source.getWidth() - side) / 2, (source.getHeight() - side) / 2, side, side);
+                return resize(square, min(side, size), min(side, size));
+            case WIDTH:
+                if (source.getWidth() <= size) {
+                    return resize(source, source.getWidth(), source.getHeight());
+                }
+                return resize(source, size, max(1, (int) round((double) source.getHeight() * size / source.getWidth())));
+            default:
+                throw new IllegalStateException("Unsupported variant type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
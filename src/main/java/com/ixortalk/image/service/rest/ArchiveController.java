@@ -0,0 +1,68 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.io.StreamCopier.ClientDisconnectedException;
+import com.ixortalk.image.service.storage.ImageArchiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+
+@RestController
+@PreAuthorize("hasRole('ADMIN')")
+public class ArchiveController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveController.class);
+
+    static final String APPLICATION_ZIP_VALUE = "application/zip";
+
+    @Inject
+    private ImageArchiver imageArchiver;
+
+    /**
+     * Streams the images as a zip archive while they are fetched, see {@link ImageArchiver}. The keys are listed before
+     * anything is written, so too many or no keys are still answered with an error status.
+     */
+    @PostMapping(path = "/archive")
+    public void archive(@RequestBody ArchiveRequest archiveRequest, HttpServletResponse response) throws IOException {
+        List<String> keys = imageArchiver.keysOf(archiveRequest.getKeys(), archiveRequest.getPrefixes());
+        response.setContentType(APPLICATION_ZIP_VALUE);
+        response.setHeader(CONTENT_DISPOSITION, "attachment; filename=\"images.zip\"");
+        try {
+            imageArchiver.write(keys, response.getOutputStream());
+        } catch (ClientDisconnectedException e) {
+            LOGGER.debug("Client disconnected while downloading an archive of {} keys: {}", keys.size(), e.getMessage());
+        }
+    }
+}
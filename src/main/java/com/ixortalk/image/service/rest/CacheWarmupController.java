@@ -0,0 +1,58 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.cache.CacheWarmer;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+
+import static org.springframework.http.ResponseEntity.accepted;
+
+@RestController
+@PreAuthorize("hasRole('ADMIN')")
+public class CacheWarmupController {
+
+    @Inject
+    private CacheWarmer cacheWarmer;
+
+    /**
+     * Lists the keys to load and answers right away, progress is tracked in the {@code image_service_warmup_*} metrics.
+     */
+    @PostMapping(path = "/cache/warmup")
+    public ResponseEntity<ScheduledWarmup> warmUp(@RequestBody WarmupRequest warmupRequest) throws IOException {
+        if (warmupRequest.getKeys().isEmpty() && warmupRequest.getPrefixes().isEmpty()) {
+            throw new IllegalArgumentException("A warm-up needs keys or prefixes");
+        }
+        List<String> keys = cacheWarmer.keysOf(warmupRequest.getKeys(), warmupRequest.getPrefixes());
+        cacheWarmer.warm(keys);
+        return accepted().body(new ScheduledWarmup(keys.size()));
+    }
+}
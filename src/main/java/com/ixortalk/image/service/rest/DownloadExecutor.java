@@ -0,0 +1,110 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Async;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.DOWNLOAD_ACTIVE_THREADS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.DOWNLOAD_IN_FLIGHT;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.DOWNLOAD_QUEUE_DEPTH;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.DOWNLOAD_REJECTED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Runs downloads on a dedicated, bounded pool as Servlet 3 async requests, so the container thread is handed back
+ * while the image is fetched from S3 and written to the client.
+ */
+@Component
+public class DownloadExecutor {
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private ThreadPoolExecutor executor;
+
+    private TaskExecutorAdapter taskExecutor;
+
+    @PostConstruct
+    public void startExecutor() {
+        Async async = ixorTalkConfigProperties.getDownload().getAsync();
+        executor = new ThreadPoolExecutor(
+                async.getPoolSize(),
+                async.getPoolSize(),
+                0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(async.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("download-%d").setDaemon(true).build()) {
+
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                DOWNLOAD_QUEUE_DEPTH.set(getQueue().size());
+                DOWNLOAD_ACTIVE_THREADS.inc();
+            }
+
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable) {
+                DOWNLOAD_ACTIVE_THREADS.dec();
+            }
+        };
+        taskExecutor = new TaskExecutorAdapter(executor);
+    }
+
+    @PreDestroy
+    public void stopExecutor() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    public boolean isEnabled() {
+        return ixorTalkConfigProperties.getDownload().getAsync().isEnabled();
+    }
+
+    /**
+     * Rejects the download before async processing starts when the queue is full. Downloads losing the race for the
+     * last queue slot still end up as a {@link org.springframework.core.task.TaskRejectedException}.
+     */
+    public <T> WebAsyncTask<T> submit(Callable<T> download) {
+        Async async = ixorTalkConfigProperties.getDownload().getAsync();
+        if (executor.getQueue().remainingCapacity() == 0) {
+            DOWNLOAD_REJECTED.inc();
+            throw new DownloadsSaturatedException(async.getRetryAfterSeconds());
+        }
+        DOWNLOAD_IN_FLIGHT.inc();
+        WebAsyncTask<T> webAsyncTask = new WebAsyncTask<>(async.getTimeoutMillis(), taskExecutor, download);
+        webAsyncTask.onCompletion(DOWNLOAD_IN_FLIGHT::dec);
+        return webAsyncTask;
+    }
+}
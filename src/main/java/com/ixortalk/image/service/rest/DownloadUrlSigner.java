@@ -0,0 +1,157 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.google.common.hash.HashFunction;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Signing;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.google.common.hash.Hashing.hmacSha256;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Signs download URLs with an HMAC over the exact requested key, which names the variant, the expiry and any other
+ * query parameters, and verifies those signatures locally so signed downloads need no token. A signature is only valid
+ * for the URL it was made for: another rendition, or other parameters, need their own.
+ */
+@Component
+public class DownloadUrlSigner {
+
+    public static final String EXPIRES = "expires";
+    public static final String SIGNATURE = "signature";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private HashFunction hmac;
+
+    @PostConstruct
+    public void initHmac() {
+        Signing signing = ixorTalkConfigProperties.getDownload().getSigning();
+        if (signing.getSecret() != null) {
+            hmac = hmacSha256(signing.getSecret().getBytes(UTF_8));
+        } else if (signing.isRequired()) {
+            throw new IllegalStateException("Signed downloads are required but no signing secret is configured");
+        }
+    }
+
+    /**
+     * Returns the query parameters to download {@code key} with, {@code parameters} followed by the expiry and
+     * signature.
+     */
+    public SortedMap<String, String> sign(String key, Map<String, String> parameters, long expiresInSeconds) {
+        if (hmac == null) {
+            throw new IllegalStateException("No signing secret is configured");
+        }
+        if (expiresInSeconds <= 0 || expiresInSeconds > ixorTalkConfigProperties.getDownload().getSigning().getMaxExpirySeconds()) {
+            throw new IllegalArgumentException("Signed URLs expire in 1 to " + ixorTalkConfigProperties.getDownload().getSigning().getMaxExpirySeconds() + " seconds");
+        }
+        SortedMap<String, String> signed = new TreeMap<>(parameters);
+        signed.remove(SIGNATURE);
+        long expires = MILLISECONDS.toSeconds(currentTimeMillis()) + expiresInSeconds;
+        signed.put(EXPIRES, String.valueOf(expires));
+        signed.put(SIGNATURE, ENCODER.encodeToString(signature(key, signed)));
+        return signed;
+    }
+
+    /**
+     * Verifies the signature of a download, when it has one or when signatures are required, returning how many
+     * seconds the signed URL remains valid.
+     *
+     * @throws AccessDeniedException when the signature is missing but required, expired or invalid
+     */
+    public OptionalLong verify(String key, HttpServletRequest request) {
+        String signature = request.getParameter(SIGNATURE);
+        String expires = request.getParameter(EXPIRES);
+        if (signature == null && expires == null && !ixorTalkConfigProperties.getDownload().getSigning().isRequired()) {
+            return OptionalLong.empty();
+        }
+        if (signature == null || expires == null || hmac == null) {
+            throw new AccessDeniedException("Download of " + key + " requires a signed URL");
+        }
+
+        long validForSeconds;
+        byte[] presented;
+        try {
+            validForSeconds = Long.parseLong(expires) - MILLISECONDS.toSeconds(currentTimeMillis());
+            presented = DECODER.decode(signature);
+        } catch (IllegalArgumentException e) {
+            throw new AccessDeniedException("Malformed signed URL for " + key);
+        }
+        SortedMap<String, String> parameters = new TreeMap<>();
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            if (parameter.getValue().length != 1) {
+                throw new AccessDeniedException("Repeated parameter " + parameter.getKey() + " in signed URL for " + key);
+            }
+            parameters.put(parameter.getKey(), parameter.getValue()[0]);
+        }
+        parameters.remove(SIGNATURE);
+        if (!MessageDigest.isEqual(signature(key, parameters), presented)) {
+            throw new AccessDeniedException("Invalid signature for " + key);
+        }
+        if (validForSeconds <= 0) {
+            throw new AccessDeniedException("Signed URL for " + key + " has expired");
+        }
+        return OptionalLong.of(validForSeconds);
+    }
+
+    /**
+     * Signs the key and the parameters sorted by name, names and values encoded so none can pass for another.
+     */
+    private byte[] signature(String key, SortedMap<String, String> parameters) {
+        String query = parameters.entrySet()
+                .stream()
+                .map(parameter -> encode(parameter.getKey()) + "=" + encode(parameter.getValue()))
+                .collect(joining("&"));
+        return hmac.hashString(key + "\n" + query, UTF_8).asBytes();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
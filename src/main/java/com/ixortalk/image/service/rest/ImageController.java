@@ -23,44 +23,547 @@
  */
 package com.ixortalk.image.service.rest;
 
-import com.amazonaws.services.s3.model.S3Object;
-import com.ixortalk.aws.s3.library.config.AwsS3Template;
+import com.ixortalk.image.service.cache.CacheRevalidator;
+import com.ixortalk.image.service.cache.CachedFile;
+import com.ixortalk.image.service.cache.CachedImage;
+import com.ixortalk.image.service.cache.DiskImageCache;
+import com.ixortalk.image.service.cache.ImageCache;
+import com.ixortalk.image.service.cache.SingleFlight;
 import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.MemoryCache;
+import com.ixortalk.image.service.io.StreamCopier.ClientDisconnectedException;
+import com.ixortalk.image.service.rendition.ContentNegotiation;
+import com.ixortalk.image.service.rendition.RenditionService;
+import com.ixortalk.image.service.rest.RangeRequests.RangeSource;
+import com.ixortalk.image.service.rest.RangeRequests.SourceChangedException;
+import com.ixortalk.image.service.rendition.Variant;
+import com.ixortalk.image.service.storage.ContentAddressedStore;
+import com.ixortalk.image.service.storage.ImageMetadata;
+import com.ixortalk.image.service.storage.backend.ObjectNotFoundException;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StorageUnavailableException;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import io.prometheus.client.Histogram;
 import org.apache.commons.lang.StringUtils;
-import org.springframework.http.ResponseEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpRange;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.servlet.HandlerMapping;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
-import static com.google.common.io.ByteStreams.toByteArray;
-import static org.springframework.http.MediaType.valueOf;
-import static org.springframework.http.ResponseEntity.ok;
+import static com.google.common.io.ByteStreams.readFully;
+import static com.ixortalk.image.service.io.StreamCopier.copyToClient;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.DOWNLOAD_STAGE_DURATION;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.OBJECT_SIZE;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.SERVED_BYTES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.STALE_SERVED;
+import static com.ixortalk.image.service.rest.RangeRequests.BYTES;
+import static com.ixortalk.image.service.rest.RangeRequests.isRangeRequest;
+import static com.ixortalk.image.service.rest.RangeRequests.notSatisfiable;
+import static com.ixortalk.image.service.rest.RangeRequests.requestedRanges;
+import static com.ixortalk.image.service.rest.RangeRequests.satisfiableRanges;
+import static com.ixortalk.image.service.rendition.RenditionService.isEncodingKey;
+import static java.lang.Math.min;
+import static java.nio.channels.Channels.newChannel;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.http.CacheControl.maxAge;
+import static org.springframework.http.HttpHeaders.ACCEPT;
+import static org.springframework.http.HttpHeaders.ACCEPT_RANGES;
+import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
+import static org.springframework.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpHeaders.VARY;
+import static org.springframework.http.HttpHeaders.WARNING;
 
 @RestController
 public class ImageController {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageController.class);
+
+    private static final Pattern IMMUTABLE_KEY_PATTERN = Pattern.compile(".+/[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}/[^/]+");
+
+    private static final String MEMORY = "memory";
+    private static final String DISK = "disk";
+    private static final String S3_READ = "s3_read";
+    private static final String CLIENT_WRITE = "client_write";
+    private static final String DOWNLOAD = "download";
+    private static final String ERROR = "error";
+    private static final String REVALIDATE = "revalidate";
+    private static final String STALE_IF_ERROR_WARNING = "111 - \"Revalidation Failed\"";
+    private static final String CACHE_CONTROL_ATTRIBUTE = ImageController.class.getName() + ".cacheControl";
+
     @Inject
-    private AwsS3Template awsS3Template;
+    private StorageBackend storageBackend;
 
     @Inject
     private IxorTalkConfigProperties ixorTalkConfigProperties;
 
+    @Inject
+    private RenditionService renditionService;
+
+    @Inject
+    private ImageCache imageCache;
+
+    @Inject
+    private DiskImageCache diskImageCache;
+
+    @Inject
+    private CacheRevalidator cacheRevalidator;
+
+    @Inject
+    private DownloadUrlSigner downloadUrlSigner;
+
+    @Inject
+    private DownloadExecutor downloadExecutor;
+
+    @Inject
+    private ContentNegotiation contentNegotiation;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    private SingleFlight<Object> downloads;
+
+    @PostConstruct
+    public void createDownloads() {
+        downloads = new SingleFlight<>("download", ixorTalkConfigProperties.getDownload().getCoalescedWaitMillis());
+    }
+
+    /**
+     * Serves the image on the {@link DownloadExecutor} when async downloads are enabled. Signed URLs are verified
+     * before anything else, see {@link DownloadUrlSigner}.
+     */
     @GetMapping(path = "/download/**")
-    public ResponseEntity<?> getImage(HttpServletRequest request) {
+    public WebAsyncTask<Void> getImage(HttpServletRequest request, HttpServletResponse response) throws IOException {
         String requestAttribute = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
-        String key = StringUtils.substringAfterLast(requestAttribute, "download/");
+        String requestedKey = StringUtils.substringAfter(requestAttribute, "download/");
+        OptionalLong signatureValidity = downloadUrlSigner.verify(requestedKey, request);
+        request.setAttribute(CACHE_CONTROL_ATTRIBUTE, cacheControl(requestedKey, signatureValidity));
+        if (contentNegotiation.isEnabled()) {
+            response.setHeader(VARY, ACCEPT);
+        }
+        if (!downloadExecutor.isEnabled()) {
+            serve(requestedKey, request, response);
+            return null;
+        }
+        return downloadExecutor.submit(() -> {
+            serve(requestedKey, request, response);
+            return null;
+        });
+    }
+
+    private void serve(String requestedKey, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String bucket = ixorTalkConfigProperties.getBucket();
+        String key = contentNegotiation.negotiate(contentAddressedStore.resolve(bucket, requestedKey), request);
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        response.setHeader(ACCEPT_RANGES, BYTES);
+        try {
+            serve(bucket, key, webRequest);
+        } catch (TruncatedFileException e) {
+            diskImageCache.invalidate(bucket, key);
+            throw e;
+        } catch (StorageUnavailableException e) {
+            if (!servedStale(bucket, key, webRequest)) {
+                throw e;
+            }
+            LOGGER.warn("Served stale key {} as storage is unavailable: {}", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Serves an expired in-memory image while the {@link StorageBackend} is unavailable, as long as it is within its
+     * stale-if-error period. Storage calls fail before any of the body is written, so the response is still untouched.
+     */
+    private boolean servedStale(String bucket, String key, ServletWebRequest webRequest) throws IOException {
+        CachedImage staleImage = imageCache.getStale(bucket, key);
+        if (staleImage == null || webRequest.getResponse().isCommitted()) {
+            return false;
+        }
+        webRequest.getResponse().setHeader(WARNING, STALE_IF_ERROR_WARNING);
+        STALE_SERVED.labels(ERROR).inc();
+        return servedCached(key, staleImage, webRequest);
+    }
+
+    private void serve(String bucket, String key, ServletWebRequest webRequest) throws IOException {
+        HttpServletRequest request = webRequest.getRequest();
+        HttpServletResponse response = webRequest.getResponse();
+        CachedImage cachedImage = cachedImage(bucket, key);
+        CachedFile cachedFile = cachedImage == null ? diskImageCache.get(bucket, key) : null;
+        if (isRangeRequest(request) && servedRanges(webRequest, bucket, key, cachedImage, cachedFile)) {
+            return;
+        }
+
+        if (servedCached(key, cachedImage, webRequest) || servedCached(key, cachedFile, webRequest)) {
+            return;
+        }
+        if (isConditional(request)) {
+            ImageMetadata metadata = headObject(bucket, key);
+            if (metadata != null && notModified(webRequest, metadata)) {
+                return;
+            }
+        }
+
+        AtomicReference<StoredObject> uncacheable = new AtomicReference<>();
+        Object fetched = downloads.execute(bucket + "/" + key, () -> fetchIntoCache(bucket, key, uncacheable));
+        if (servedCached(key, fetched, webRequest)) {
+            return;
+        }
+
+        // too large to cache: only the leading request got a stream, the ones that waited for it fetch their own
+        StoredObject storedObject = uncacheable.get() != null ? uncacheable.get() : fetch(bucket, key);
+        boolean fullyRead = false;
+        try {
+            ImageMetadata metadata = ImageMetadata.of(storedObject.getMetadata());
+            if (notModified(webRequest, metadata)) {
+                return;
+            }
+            setCacheControl(webRequest);
+            response.setContentType(metadata.getContentType());
+            if (metadata.getContentLength() > 0) {
+                response.setContentLengthLong(metadata.getContentLength());
+            }
+            Histogram.Timer writeTimer = DOWNLOAD_STAGE_DURATION.labels(CLIENT_WRITE).startTimer();
+            try {
+                SERVED_BYTES.labels(storageBackend.getName()).inc(copyToClient(storedObject.getContent(), response.getOutputStream()));
+            } finally {
+                writeTimer.observeDuration();
+            }
+            fullyRead = true;
+        } catch (ClientDisconnectedException e) {
+            LOGGER.debug("Client disconnected while downloading key {}: {}", key, e.getMessage());
+        } finally {
+            storedObject.release(fullyRead);
+        }
+    }
+
+    /**
+     * Looks the image up in memory. A stale image is still returned within its stale-while-revalidate period, with a
+     * revalidation scheduled in the background, so an expiring image never makes a request wait for the backend.
+     */
+    private CachedImage cachedImage(String bucket, String key) {
+        CachedImage cachedImage = imageCache.get(bucket, key);
+        if (cachedImage != null && imageCache.isStale(cachedImage)) {
+            STALE_SERVED.labels(REVALIDATE).inc();
+            cacheRevalidator.revalidate(bucket, key, cachedImage);
+        }
+        return cachedImage;
+    }
+
+    /**
+     * Serves a {@link CachedImage} or {@link CachedFile}, returns false when there is none or its file is gone.
+     */
+    private static boolean servedCached(String key, Object cached, ServletWebRequest webRequest) throws IOException {
+        if (cached instanceof CachedImage) {
+            CachedImage cachedImage = (CachedImage) cached;
+            if (!notModified(webRequest, cachedImage.getMetadata())) {
+                write(key, cachedImage, webRequest);
+            }
+            return true;
+        }
+        if (cached instanceof CachedFile) {
+            CachedFile cachedFile = (CachedFile) cached;
+            return notModified(webRequest, cachedFile.getMetadata())
+                    || write(key, cachedFile, webRequest);
+        }
+        return false;
+    }
 
-        S3Object s3Object = awsS3Template.get(ixorTalkConfigProperties.getBucket(), key);
+    /**
+     * Fetches the image, or renders its rendition, and puts it in the first cache tier that admits it. Runs once for
+     * all concurrent requests of the same key, which is why the image always ends up cached, even when the request
+     * that fetched it turns out not to need the body. Images too large for any tier are handed back unread through
+     * {@code uncacheable}. Images the backend keeps in a local file are never copied to the disk cache, they are
+     * served from that file instead.
+     */
+    private Object fetchIntoCache(String bucket, String key, AtomicReference<StoredObject> uncacheable) throws IOException {
+        StoredObject storedObject = fetch(bucket, key);
+        InputStream objectContent = storedObject.getContent();
+        boolean fullyRead = false;
         try {
-            return ok()
-                    .contentType(valueOf(s3Object.getObjectMetadata().getContentType()))
-                    .body(toByteArray(s3Object.getObjectContent()));
+            ImageMetadata metadata = ImageMetadata.of(storedObject.getMetadata());
+            OBJECT_SIZE.labels(DOWNLOAD).observe(metadata.getContentLength());
+            if (imageCache.admits(metadata.getContentLength())) {
+                byte[] content = new byte[(int) metadata.getContentLength()];
+                Histogram.Timer readTimer = DOWNLOAD_STAGE_DURATION.labels(S3_READ).startTimer();
+                try {
+                    readFully(objectContent, content);
+                } finally {
+                    readTimer.observeDuration();
+                }
+                fullyRead = true;
+                CachedImage cachedImage = new CachedImage(content, metadata);
+                imageCache.put(bucket, key, cachedImage);
+                if (!storedObject.getPath().isPresent() && diskImageCache.admits(content.length)) {
+                    diskImageCache.put(bucket, key, metadata, new ByteArrayInputStream(content));
+                }
+                return cachedImage;
+            }
+            if (storedObject.getPath().isPresent()) {
+                return new CachedFile(storedObject.getPath().get(), storedObject.getOffset(), metadata);
+            }
+            if (diskImageCache.admits(metadata.getContentLength())) {
+                CachedFile cachedFile;
+                Histogram.Timer readTimer = DOWNLOAD_STAGE_DURATION.labels(S3_READ).startTimer();
+                try {
+                    cachedFile = diskImageCache.put(bucket, key, metadata, objectContent);
+                } finally {
+                    readTimer.observeDuration();
+                }
+                fullyRead = true;
+                return cachedFile;
+            }
+            uncacheable.set(storedObject);
+            return null;
+        } finally {
+            if (uncacheable.get() == null) {
+                storedObject.release(fullyRead);
+            }
+        }
+    }
+
+    private StoredObject fetch(String bucket, String key) throws IOException {
+        if (isEncodingKey(key)) {
+            if (!contentNegotiation.isNegotiable(key)) {
+                throw new ObjectNotFoundException(storageBackend.getName(), key);
+            }
+            return renditionService.getEncoding(key);
+        }
+        Optional<Variant> variant = renditionService.variantOf(key);
+        return variant.isPresent() ?
+                renditionService.getRendition(key, variant.get()) :
+                storageBackend.get(bucket, key);
+    }
+
+    /**
+     * Serves the requested ranges from whichever tier holds the image, translating them into ranged gets from the
+     * {@link StorageBackend} when it is not cached. Returns false when the range header is to be ignored and the full image served instead.
+     */
+    private boolean servedRanges(ServletWebRequest webRequest, String bucket, String key, CachedImage cachedImage, CachedFile cachedFile) throws IOException {
+        ImageMetadata metadata;
+        RangeSource rangeSource;
+        if (cachedImage != null) {
+            metadata = cachedImage.getMetadata();
+            rangeSource = memoryRange(cachedImage);
+        } else if (cachedFile != null) {
+            metadata = cachedFile.getMetadata();
+            rangeSource = fileRange(cachedFile);
+        } else {
+            metadata = headObject(bucket, key);
+            if (metadata == null) {
+                return false;
+            }
+            rangeSource = storageRange(bucket, key, metadata);
+        }
+
+        if (notModified(webRequest, metadata)) {
+            return true;
+        }
+        List<HttpRange> ranges = requestedRanges(webRequest.getRequest(), metadata);
+        if (ranges.isEmpty()) {
+            return false;
+        }
+        List<HttpRange> satisfiableRanges = satisfiableRanges(ranges, metadata);
+        if (satisfiableRanges.isEmpty()) {
+            notSatisfiable(webRequest.getResponse(), metadata);
+            return true;
+        }
+        setCacheControl(webRequest);
+        try {
+            RangeRequests.write(webRequest.getResponse(), satisfiableRanges, metadata, rangeSource);
+        } catch (ClientDisconnectedException e) {
+            LOGGER.debug("Client disconnected while downloading ranges of key {}: {}", key, e.getMessage());
+        } catch (SourceChangedException e) {
+            LOGGER.warn("Ended range response of key {} early: {}", key, e.getMessage());
+        }
+        return true;
+    }
+
+    private static RangeSource memoryRange(CachedImage cachedImage) {
+        return (start, end, outputStream) -> {
+            try {
+                outputStream.write(cachedImage.getContent(), (int) start, (int) (end - start + 1));
+                SERVED_BYTES.labels(MEMORY).inc(end - start + 1);
+            } catch (IOException e) {
+                throw new ClientDisconnectedException(e);
+            }
+        };
+    }
+
+    private static RangeSource fileRange(CachedFile cachedFile) {
+        return (start, end, outputStream) -> {
+            try (FileChannel fileChannel = FileChannel.open(cachedFile.getPath(), READ)) {
+                transfer(fileChannel, cachedFile.getOffset() + start, cachedFile.getOffset() + end + 1, newChannel(outputStream));
+                SERVED_BYTES.labels(DISK).inc(end - start + 1);
+            }
+        };
+    }
+
+    /**
+     * Fetches a single range with a ranged get, pinned to the ETag the response was started with. When the image
+     * changed meanwhile the response can only be ended, as its headers and earlier ranges may have been sent already.
+     */
+    private RangeSource storageRange(String bucket, String key, ImageMetadata metadata) {
+        return (start, end, outputStream) -> {
+            StoredObject storedObject = storageBackend.getRange(bucket, key, start, end, metadata.getETag())
+                    .orElseThrow(() -> new SourceChangedException("key " + key + " changed while serving a range request"));
+            boolean fullyRead = false;
+            try {
+                SERVED_BYTES.labels(storageBackend.getName()).inc(copyToClient(storedObject.getContent(), outputStream));
+                fullyRead = true;
+            } finally {
+                storedObject.release(fullyRead);
+            }
+        };
+    }
+
+    /**
+     * Fetches only the metadata of an object, so conditional requests for unchanged images never transfer the body.
+     */
+    private ImageMetadata headObject(String bucket, String key) throws IOException {
+        return storageBackend.head(bucket, key).map(ImageMetadata::of).orElse(null);
+    }
+
+    /**
+     * Immutable keys are cached for long by clients, other keys only get a {@code Cache-Control} when stale images
+     * are served, to let caches in front of the service serve them stale for as long as this service would. Signed
+     * downloads are never cached past the expiry of their signature. Returns null when no header is to be sent.
+     */
+    private String cacheControl(String key, OptionalLong signatureValidity) {
+        long maxAgeLimit = signatureValidity.orElse(Long.MAX_VALUE);
+        if (IMMUTABLE_KEY_PATTERN.matcher(key).matches()) {
+            return maxAge(min(ixorTalkConfigProperties.getDownload().getImmutableMaxAgeSeconds(), maxAgeLimit), SECONDS).cachePublic().getHeaderValue() + ", immutable";
+        }
+        MemoryCache memoryCache = ixorTalkConfigProperties.getCache().getMemory();
+        if (memoryCache.getStaleWhileRevalidateSeconds() > 0 || memoryCache.getStaleIfErrorSeconds() > 0) {
+            CacheControl cacheControl = maxAge(min(memoryCache.getTtlSeconds(), maxAgeLimit), SECONDS);
+            if (memoryCache.getStaleWhileRevalidateSeconds() > 0) {
+                cacheControl.staleWhileRevalidate(memoryCache.getStaleWhileRevalidateSeconds(), SECONDS);
+            }
+            if (memoryCache.getStaleIfErrorSeconds() > 0) {
+                cacheControl.staleIfError(memoryCache.getStaleIfErrorSeconds(), SECONDS);
+            }
+            return cacheControl.getHeaderValue();
+        }
+        return null;
+    }
+
+    /**
+     * Sends the {@code Cache-Control} worked out for the request, only once the image itself is being answered with,
+     * so errors are never cached.
+     */
+    private static void setCacheControl(ServletWebRequest webRequest) {
+        String cacheControl = (String) webRequest.getRequest().getAttribute(CACHE_CONTROL_ATTRIBUTE);
+        if (cacheControl != null) {
+            webRequest.getResponse().setHeader(CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    private static boolean isConditional(HttpServletRequest request) {
+        return request.getHeader(IF_NONE_MATCH) != null || request.getHeader(IF_MODIFIED_SINCE) != null;
+    }
+
+    /**
+     * Sends the validators of the image and answers with 304 when the client's copy is still current.
+     */
+    private static boolean notModified(ServletWebRequest webRequest, ImageMetadata metadata) {
+        if (!webRequest.checkNotModified(metadata.getETag(), metadata.getLastModified())) {
+            return false;
+        }
+        setCacheControl(webRequest);
+        return true;
+    }
+
+    private static void write(String key, CachedImage cachedImage, ServletWebRequest webRequest) throws IOException {
+        HttpServletResponse response = webRequest.getResponse();
+        setCacheControl(webRequest);
+        response.setContentType(cachedImage.getMetadata().getContentType());
+        response.setContentLength(cachedImage.getContent().length);
+        Histogram.Timer writeTimer = DOWNLOAD_STAGE_DURATION.labels(CLIENT_WRITE).startTimer();
+        try {
+            response.getOutputStream().write(cachedImage.getContent());
+            SERVED_BYTES.labels(MEMORY).inc(cachedImage.getContent().length);
         } catch (IOException e) {
-            throw new IllegalArgumentException("Could not get key " + key + " from S3: " + e.getMessage(), e);
+            LOGGER.debug("Client disconnected while downloading key {}: {}", key, e.getMessage());
+        } finally {
+            writeTimer.observeDuration();
+        }
+    }
+
+    /**
+     * Copies the file to the client with {@link FileChannel#transferTo}. The file may be evicted or deleted
+     * concurrently, so it is opened before the response is committed to it, returning false when it is gone. Once
+     * open it can be read to the end, even when it is deleted meanwhile. The container's sendfile support is not used
+     * for this reason, it only opens the file after the request has completed.
+     */
+    private static boolean write(String key, CachedFile cachedFile, ServletWebRequest webRequest) throws IOException {
+        HttpServletResponse response = webRequest.getResponse();
+        long end = cachedFile.getOffset() + cachedFile.getLength();
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(cachedFile.getPath(), READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        setCacheControl(webRequest);
+        response.setContentType(cachedFile.getMetadata().getContentType());
+        response.setContentLengthLong(cachedFile.getLength());
+        Histogram.Timer writeTimer = DOWNLOAD_STAGE_DURATION.labels(CLIENT_WRITE).startTimer();
+        try {
+            transfer(fileChannel, cachedFile.getOffset(), end, newChannel(response.getOutputStream()));
+            SERVED_BYTES.labels(DISK).inc(cachedFile.getLength());
+        } catch (ClientDisconnectedException e) {
+            LOGGER.debug("Client disconnected while downloading key {}: {}", key, e.getMessage());
+        } finally {
+            fileChannel.close();
+            writeTimer.observeDuration();
+        }
+        return true;
+    }
+
+    /**
+     * Nothing is transferred past the end of the file, so a file truncated while it is served ends the response rather
+     * than looping forever.
+     */
+    private static void transfer(FileChannel fileChannel, long position, long end, WritableByteChannel clientChannel) throws IOException {
+        while (position < end) {
+            long transferred;
+            try {
+                transferred = fileChannel.transferTo(position, end - position, clientChannel);
+            } catch (IOException e) {
+                throw new ClientDisconnectedException(e);
+            }
+            if (transferred == 0 && position >= fileChannel.size()) {
+                throw new TruncatedFileException("Cached file ends at " + position + " instead of " + end);
+            }
+            position += transferred;
+        }
+    }
+
+    private static class TruncatedFileException extends IOException {
+
+        TruncatedFileException(String message) {
+            super(message);
         }
     }
 }
@@ -0,0 +1,86 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.storage.ImageInfo;
+import com.ixortalk.image.service.storage.ImageInfoLookup;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.http.ResponseEntity.notFound;
+import static org.springframework.http.ResponseEntity.ok;
+
+@RestController
+public class MetadataController {
+
+    @Inject
+    private ImageInfoLookup imageInfoLookup;
+
+    @Inject
+    private DownloadUrlSigner downloadUrlSigner;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    /**
+     * When downloads need signed URLs, so does the metadata of a key, unless requested by an administrator. The
+     * signature of the key's download URL is accepted.
+     */
+    @GetMapping(path = "/metadata/**")
+    public ResponseEntity<ImageInfo> getMetadata(HttpServletRequest request) throws IOException {
+        String requestAttribute = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+        String key = StringUtils.substringAfter(requestAttribute, "metadata/");
+        if (!request.isUserInRole("ADMIN")) {
+            downloadUrlSigner.verify(key, request);
+        }
+        return imageInfoLookup.lookup(key)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> notFound().build());
+    }
+
+    /**
+     * Looks up many keys in one request, keys that do not exist are left out of the response. When downloads need
+     * signed URLs only administrators get to look up keys in bulk.
+     */
+    @PostMapping(path = "/metadata")
+    public ResponseEntity<Map<String, ImageInfo>> getMetadata(@RequestBody List<String> keys, HttpServletRequest request) throws IOException {
+        if (ixorTalkConfigProperties.getDownload().getSigning().isRequired() && !request.isUserInRole("ADMIN")) {
+            throw new AccessDeniedException("Metadata of images that need signed URLs is only looked up in bulk by administrators");
+        }
+        return ok(imageInfoLookup.lookupAll(keys));
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.storage.ImageMetadata;
+import org.springframework.http.HttpRange;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.springframework.http.HttpHeaders.*;
+import static org.springframework.util.MimeTypeUtils.generateMultipartBoundaryString;
+
+/**
+ * Answers {@code Range} requests with {@code 206 Partial Content}, as a single part or as {@code multipart/byteranges}.
+ * The bytes of every range are pulled from a {@link RangeSource}, so only the requested ranges are ever fetched.
+ */
+final class RangeRequests {
+
+    static final String BYTES = "bytes";
+
+    /**
+     * Requests with more ranges than this are served in full, which protects against requests of many tiny overlapping ranges.
+     */
+    private static final int MAX_RANGES = 16;
+
+    interface RangeSource {
+
+        /**
+         * Writes the bytes from {@code start} up to and including {@code end} to the output stream.
+         */
+        void write(long start, long end, OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Thrown by a {@link RangeSource} whose image no longer matches the one the response was started for.
+     */
+    static class SourceChangedException extends IOException {
+
+        SourceChangedException(String message) {
+            super(message);
+        }
+    }
+
+    private RangeRequests() {
+    }
+
+    static boolean isRangeRequest(HttpServletRequest request) {
+        return request.getHeader(RANGE) != null;
+    }
+
+    /**
+     * Returns the requested ranges, or an empty list when the range header should be ignored and the full image served.
+     */
+    static List<HttpRange> requestedRanges(HttpServletRequest request, ImageMetadata metadata) {
+        if (!ifRangeMatches(request, metadata)) {
+            return emptyList();
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(request.getHeader(RANGE));
+            return ranges.size() > MAX_RANGES ? emptyList() : ranges;
+        } catch (IllegalArgumentException e) {
+            return emptyList();
+        }
+    }
+
+    static List<HttpRange> satisfiableRanges(List<HttpRange> ranges, ImageMetadata metadata) {
+        long length = metadata.getContentLength();
+        return ranges.stream()
+                .filter(range -> range.getRangeStart(length) < length && range.getRangeStart(length) <= range.getRangeEnd(length))
+                .collect(toList());
+    }
+
+    static void notSatisfiable(HttpServletResponse response, ImageMetadata metadata) {
+        response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader(CONTENT_RANGE, BYTES + " */" + metadata.getContentLength());
+    }
+
+    /**
+     * Writes the satisfiable ranges, see {@link #satisfiableRanges(List, ImageMetadata)}.
+     */
+    static void write(HttpServletResponse response, List<HttpRange> satisfiableRanges, ImageMetadata metadata, RangeSource rangeSource) throws IOException {
+        long length = metadata.getContentLength();
+        response.setStatus(SC_PARTIAL_CONTENT);
+        if (satisfiableRanges.size() == 1) {
+            long start = satisfiableRanges.get(0).getRangeStart(length);
+            long end = satisfiableRanges.get(0).getRangeEnd(length);
+            response.setContentType(metadata.getContentType());
+            response.setHeader(CONTENT_RANGE, contentRange(start, end, length));
+            response.setContentLengthLong(end - start + 1);
+            rangeSource.write(start, end, response.getOutputStream());
+            return;
+        }
+
+        String boundary = generateMultipartBoundaryString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        ServletOutputStream outputStream = response.getOutputStream();
+        for (HttpRange range : satisfiableRanges) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            outputStream.write(("\r\n--" + boundary + "\r\n").getBytes(US_ASCII));
+            if (metadata.getContentType() != null) {
+                outputStream.write((CONTENT_TYPE + ": " + metadata.getContentType() + "\r\n").getBytes(US_ASCII));
+            }
+            outputStream.write((CONTENT_RANGE + ": " + contentRange(start, end, length) + "\r\n\r\n").getBytes(US_ASCII));
+            rangeSource.write(start, end, outputStream);
+        }
+        outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII));
+    }
+
+    /**
+     * A range request is only honoured when its {@code If-Range} validator, if any, still matches the stored image.
+     */
+    private static boolean ifRangeMatches(HttpServletRequest request, ImageMetadata metadata) {
+        String ifRange = request.getHeader(IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return metadata.getETag() != null && ifRange.equals("\"" + metadata.getETag() + "\"");
+        }
+        try {
+            long ifRangeDate = request.getDateHeader(IF_RANGE);
+            return metadata.getLastModified() >= 0 && ifRangeDate / 1000 == metadata.getLastModified() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return BYTES + " " + start + "-" + end + "/" + length;
+    }
+}
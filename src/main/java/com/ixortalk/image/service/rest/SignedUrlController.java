@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static com.ixortalk.image.service.rest.DownloadUrlSigner.EXPIRES;
+import static org.springframework.http.ResponseEntity.ok;
+
+/**
+ * Hands out signed download URLs, to be given to clients that are not to hold a token themselves.
+ */
+@RestController
+@PreAuthorize("hasRole('ADMIN')")
+public class SignedUrlController {
+
+    static final String EXPIRES_IN = "expiresIn";
+
+    @Inject
+    private DownloadUrlSigner downloadUrlSigner;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    /**
+     * Signs the download URL of the key, variant included, binding any other query parameters into the signature.
+     */
+    @GetMapping(path = "/sign/**")
+    public ResponseEntity<SignedUrl> sign(@RequestParam(name = EXPIRES_IN, required = false) Long expiresInSeconds,
+                                          @RequestParam Map<String, String> parameters,
+                                          HttpServletRequest request) {
+        String requestAttribute = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+        String key = StringUtils.substringAfter(requestAttribute, "sign/");
+        parameters.remove(EXPIRES_IN);
+        SortedMap<String, String> signed = downloadUrlSigner.sign(
+                key,
+                parameters,
+                expiresInSeconds != null ? expiresInSeconds : ixorTalkConfigProperties.getDownload().getSigning().getDefaultExpirySeconds());
+
+        UriComponentsBuilder url = ServletUriComponentsBuilder.fromCurrentContextPath().path("/download/").path(key);
+        signed.forEach(url::queryParam);
+        return ok(new SignedUrl(url.build().encode().toUriString(), Long.parseLong(signed.get(EXPIRES))));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Signing;
+import com.ixortalk.image.service.rendition.Sprite;
+import com.ixortalk.image.service.rendition.SpriteService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+import static java.util.Collections.emptyMap;
+import static org.springframework.http.ResponseEntity.ok;
+
+/**
+ * Serves the thumbnails of a gallery page as one sprite image instead of a download per thumbnail.
+ */
+@RestController
+public class SpriteController {
+
+    @Inject
+    private SpriteService spriteService;
+
+    @Inject
+    private DownloadUrlSigner downloadUrlSigner;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    /**
+     * Composes the sprite, unless it was before, and answers with its download URL and the cell of every reference.
+     * When downloads need signed URLs only administrators get sprites, with a signed URL.
+     */
+    @PostMapping(path = "/sprites")
+    public ResponseEntity<SpriteSheet> sprite(@RequestBody SpriteRequest spriteRequest, HttpServletRequest request) throws IOException {
+        Signing signing = ixorTalkConfigProperties.getDownload().getSigning();
+        if (signing.isRequired() && !request.isUserInRole("ADMIN")) {
+            throw new AccessDeniedException("Sprites of images that need signed URLs are only handed out to administrators");
+        }
+
+        Sprite sprite = spriteService.sprite(spriteRequest.getReferences(), spriteRequest.getTileSize());
+
+        UriComponentsBuilder url = ServletUriComponentsBuilder.fromCurrentContextPath().path("/download/").path(sprite.getKey());
+        if (signing.isRequired()) {
+            downloadUrlSigner.sign(sprite.getKey(), emptyMap(), signing.getDefaultExpirySeconds()).forEach(url::queryParam);
+        }
+        return ok(new SpriteSheet(url.build().encode().toUriString(), sprite));
+    }
+}
@@ -23,52 +23,98 @@
  */
 package com.ixortalk.image.service.rest;
 
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.ixortalk.aws.s3.library.config.AwsS3Template;
 import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.rendition.RenditionPipeline;
+import com.ixortalk.image.service.rendition.UploadOptimizer;
+import com.ixortalk.image.service.storage.BatchUploadResult;
+import com.ixortalk.image.service.storage.BatchUploader;
+import com.ixortalk.image.service.storage.StreamingUploader;
+import com.ixortalk.image.service.storage.UploadValidator;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
 
 import static java.util.UUID.randomUUID;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
 import static org.springframework.http.ResponseEntity.created;
+import static org.springframework.http.ResponseEntity.ok;
 
 @RestController
 @PreAuthorize("hasRole('ADMIN')")
 public class UploadImageController {
 
+    private static final String APPLICATION_ZIP_VALUE = "application/zip";
+
     @Inject
-    private AwsS3Template awsS3Template;
+    private UploadOptimizer uploadOptimizer;
 
     @Inject
     private IxorTalkConfigProperties ixorTalkConfigProperties;
 
+    @Inject
+    private RenditionPipeline renditionPipeline;
+
+    @Inject
+    private StreamingUploader streamingUploader;
+
+    @Inject
+    private BatchUploader batchUploader;
+
+    @Inject
+    private UploadValidator uploadValidator;
+
     @PostMapping(path = "/upload")
     public ResponseEntity<?> uploadImage(@RequestPart("file") MultipartFile multipartFile,
                                          @RequestPart("key") String key) throws URISyntaxException, IOException {
+        renditionPipeline.ensureCapacity();
         String location = key + "/" + randomUUID() + "/original";
-        awsS3Template.save(
+        uploadOptimizer.store(ixorTalkConfigProperties.getBucket(), location, multipartFile);
+        renditionPipeline.submit(location);
+        return created(new URI(location)).build();
+    }
+
+    /**
+     * Streams the raw request body to S3 as it arrives, for originals too large to buffer as a multipart form part.
+     * A body announced as too large is rejected before any of it is read.
+     */
+    @PostMapping(path = "/upload/stream")
+    public ResponseEntity<?> uploadImageStream(@RequestParam("key") String key,
+                                               HttpServletRequest request) throws URISyntaxException, IOException {
+        uploadValidator.checkSize(request.getContentLengthLong());
+        renditionPipeline.ensureCapacity();
+        String location = key + "/" + randomUUID() + "/original";
+        streamingUploader.upload(
                 ixorTalkConfigProperties.getBucket(),
                 location,
-                createObjectMetaData(multipartFile),
-                multipartFile.getInputStream()
+                request.getInputStream()
         );
+        renditionPipeline.submit(location);
         return created(new URI(location)).build();
     }
 
-    private ObjectMetadata createObjectMetaData(MultipartFile multipartFile) {
-        ObjectMetadata objectMetadata = new ObjectMetadata();
-        objectMetadata.setContentLength(multipartFile.getSize());
-        objectMetadata.setContentType(multipartFile.getContentType());
-        return objectMetadata;
+    @PostMapping(path = "/upload/batch", consumes = MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<List<BatchUploadResult>> uploadImages(@RequestPart("file") List<MultipartFile> multipartFiles,
+                                                                @RequestPart("key") String key) throws IOException {
+        renditionPipeline.ensureCapacity();
+        return ok(batchUploader.uploadFiles(key, multipartFiles));
+    }
+
+    @PostMapping(path = "/upload/batch", consumes = APPLICATION_ZIP_VALUE)
+    public ResponseEntity<List<BatchUploadResult>> uploadImageArchive(@RequestParam("key") String key,
+                                                                      HttpServletRequest request) throws IOException {
+        renditionPipeline.ensureCapacity();
+        return ok(batchUploader.uploadZip(key, request.getInputStream()));
     }
 
 }
@@ -25,17 +25,29 @@ package com.ixortalk.image.service.rest.exception;
 
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.ixortalk.image.service.ImageServiceApplication;
+import com.ixortalk.image.service.rendition.RenditionPipelineSaturatedException;
+import com.ixortalk.image.service.rendition.SpritesSaturatedException;
+import com.ixortalk.image.service.rest.DownloadsSaturatedException;
+import com.ixortalk.image.service.storage.ImageTooLargeException;
+import com.ixortalk.image.service.storage.UnsupportedImageException;
+import com.ixortalk.image.service.storage.UploadsSaturatedException;
+import com.ixortalk.image.service.storage.backend.ObjectNotFoundException;
+import com.ixortalk.image.service.storage.backend.StorageUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.web.bind.MethodArgumentNotValidException;
+import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 import org.springframework.web.multipart.support.MissingServletRequestPartException;
 
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.ERRORS;
 import static java.util.UUID.randomUUID;
 import static org.springframework.http.HttpStatus.*;
 
@@ -44,30 +56,99 @@ public class GenericExceptionHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GenericExceptionHandler.class);
 
-    @ExceptionHandler(value = {IllegalArgumentException.class, MethodArgumentNotValidException.class, MissingServletRequestPartException.class})
+    @ExceptionHandler(value = {IllegalArgumentException.class, MethodArgumentNotValidException.class, MissingServletRequestPartException.class, MissingServletRequestParameterException.class})
     public ResponseEntity handleBadRequests(Exception e) {
+        ERRORS.labels("bad_request").inc();
         String errorUUID = logError(e);
         return new ResponseEntity("Invalid request - " + errorUUID, new HttpHeaders(), BAD_REQUEST);
     }
 
     @ExceptionHandler(value = AccessDeniedException.class)
     public ResponseEntity handleAccessDeniedException(Exception e) {
+        ERRORS.labels("access_denied").inc();
         String errorUUID = logError(e);
         return new ResponseEntity("Access denied - " + errorUUID, new HttpHeaders(), FORBIDDEN);
     }
 
     @ExceptionHandler(value = Exception.class)
     public ResponseEntity handleException(Exception e) {
+        ERRORS.labels("internal").inc();
         String errorUUID = logError(e);
         return new ResponseEntity("Internal Server Error - " + errorUUID, new HttpHeaders(), INTERNAL_SERVER_ERROR);
     }
 
+    @ExceptionHandler(value = UnsupportedImageException.class)
+    public ResponseEntity handleUnsupportedImageException(UnsupportedImageException e) {
+        ERRORS.labels("unsupported_image").inc();
+        String errorUUID = logError(e);
+        return new ResponseEntity("Unsupported Media Type - " + errorUUID, new HttpHeaders(), UNSUPPORTED_MEDIA_TYPE);
+    }
+
+    @ExceptionHandler(value = ImageTooLargeException.class)
+    public ResponseEntity handleImageTooLargeException(ImageTooLargeException e) {
+        ERRORS.labels("image_too_large").inc();
+        String errorUUID = logError(e);
+        return new ResponseEntity("Payload Too Large - " + errorUUID, new HttpHeaders(), PAYLOAD_TOO_LARGE);
+    }
+
     @ExceptionHandler(value = AmazonS3Exception.class)
     public ResponseEntity handleAmazonS3Exception(AmazonS3Exception e) {
+        ERRORS.labels(e.getStatusCode() == NOT_FOUND.value() ? "s3_not_found" : "s3").inc();
         String errorUUID = logError(e);
         return new ResponseEntity("Amazon S3 Error - " + errorUUID, new HttpHeaders(), HttpStatus.valueOf(e.getStatusCode()));
     }
 
+    @ExceptionHandler(value = ObjectNotFoundException.class)
+    public ResponseEntity handleObjectNotFoundException(ObjectNotFoundException e) {
+        ERRORS.labels(e.getBackend() + "_not_found").inc();
+        String errorUUID = logError(e);
+        return new ResponseEntity("Not Found - " + errorUUID, new HttpHeaders(), NOT_FOUND);
+    }
+
+    @ExceptionHandler(value = RenditionPipelineSaturatedException.class)
+    public ResponseEntity handleRenditionPipelineSaturatedException(RenditionPipelineSaturatedException e) {
+        ERRORS.labels("renditions_saturated").inc();
+        return serviceUnavailable(e, e.getRetryAfterSeconds());
+    }
+
+    @ExceptionHandler(value = SpritesSaturatedException.class)
+    public ResponseEntity handleSpritesSaturatedException(SpritesSaturatedException e) {
+        ERRORS.labels("sprites_saturated").inc();
+        return serviceUnavailable(e, e.getRetryAfterSeconds());
+    }
+
+    @ExceptionHandler(value = DownloadsSaturatedException.class)
+    public ResponseEntity handleDownloadsSaturatedException(DownloadsSaturatedException e) {
+        ERRORS.labels("downloads_saturated").inc();
+        return serviceUnavailable(e, e.getRetryAfterSeconds());
+    }
+
+    @ExceptionHandler(value = UploadsSaturatedException.class)
+    public ResponseEntity handleUploadsSaturatedException(UploadsSaturatedException e) {
+        ERRORS.labels("uploads_saturated").inc();
+        return serviceUnavailable(e, e.getRetryAfterSeconds());
+    }
+
+    @ExceptionHandler(value = StorageUnavailableException.class)
+    public ResponseEntity handleStorageUnavailableException(StorageUnavailableException e) {
+        ERRORS.labels("storage_unavailable").inc();
+        return serviceUnavailable(e, e.getRetryAfterSeconds());
+    }
+
+    @ExceptionHandler(value = {TaskRejectedException.class, AsyncRequestTimeoutException.class})
+    public ResponseEntity handleAsyncRejection(Exception e) {
+        ERRORS.labels(e instanceof AsyncRequestTimeoutException ? "timeout" : "async_rejected").inc();
+        String errorUUID = logError(e);
+        return new ResponseEntity("Service Unavailable - " + errorUUID, new HttpHeaders(), SERVICE_UNAVAILABLE);
+    }
+
+    private static ResponseEntity serviceUnavailable(Exception e, int retryAfterSeconds) {
+        String errorUUID = logError(e);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return new ResponseEntity("Service Unavailable - " + errorUUID, headers, SERVICE_UNAVAILABLE);
+    }
+
     public static String logError(Exception e) {
         String errorUUID = randomUUID().toString();
         LOGGER.error("Invalid request - {}: {}", errorUUID, e.getMessage(), e);
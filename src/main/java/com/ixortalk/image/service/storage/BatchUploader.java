@@ -0,0 +1,206 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.rendition.RenditionPipeline;
+import com.ixortalk.image.service.rendition.UploadOptimizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Stores a batch of originals under one key, at most {@code batchParallelism} at a time. Every image is stored and
+ * handed to the {@link RenditionPipeline} on its own, so one failing image does not fail the batch.
+ */
+@Component
+public class BatchUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchUploader.class);
+
+    @Inject
+    private StreamingUploader streamingUploader;
+
+    @Inject
+    private UploadOptimizer uploadOptimizer;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private RenditionPipeline renditionPipeline;
+
+    private ExecutorService executor;
+
+    private Semaphore permits;
+
+    @PostConstruct
+    public void start() {
+        int parallelism = ixorTalkConfigProperties.getUpload().getBatchParallelism();
+        permits = new Semaphore(parallelism);
+        executor = newFixedThreadPool(
+                parallelism,
+                new ThreadFactoryBuilder().setNameFormat("batch-upload-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    public List<BatchUploadResult> uploadFiles(String key, List<MultipartFile> files) throws IOException {
+        List<Future<BatchUploadResult>> results = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            String location = newLocation(key);
+            results.add(submit(file.getOriginalFilename(), location, () -> {
+                uploadOptimizer.store(ixorTalkConfigProperties.getBucket(), location, file);
+                return null;
+            }));
+        }
+        return awaitAll(results);
+    }
+
+    /**
+     * Entries that fit in a single upload part are buffered and stored concurrently, larger ones are streamed straight
+     * from the archive, as the next entry can only be read once they are done.
+     */
+    public List<BatchUploadResult> uploadZip(String key, InputStream inputStream) throws IOException {
+        int maxBufferedEntryBytes = ixorTalkConfigProperties.getUpload().getPartSizeBytes();
+        List<Future<BatchUploadResult>> results = new ArrayList<>();
+        ZipInputStream zip = new ZipInputStream(inputStream);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            String name = entry.getName();
+            String location = newLocation(key);
+
+            byte[] head = ByteStreams.toByteArray(ByteStreams.limit(zip, maxBufferedEntryBytes + 1));
+            if (head.length <= maxBufferedEntryBytes) {
+                results.add(submit(name, location, () -> {
+                    uploadOptimizer.store(ixorTalkConfigProperties.getBucket(), location, ByteSource.wrap(head));
+                    return null;
+                }));
+            } else {
+                results.add(immediateFuture(store(name, location, () -> {
+                    streamingUploader.upload(ixorTalkConfigProperties.getBucket(), location, new SequenceInputStream(new ByteArrayInputStream(head), unclosable(zip)));
+                    return null;
+                })));
+            }
+        }
+        return awaitAll(results);
+    }
+
+    private Future<BatchUploadResult> submit(String name, String location, Callable<Void> save) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a batch upload slot");
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    return store(name, location, save);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private BatchUploadResult store(String name, String location, Callable<Void> save) {
+        try {
+            save.call();
+            renditionPipeline.submit(location);
+            return BatchUploadResult.stored(name, location);
+        } catch (Exception e) {
+            LOGGER.warn("Could not store {} of batch upload at {}: {}", name, location, e.getMessage());
+            return BatchUploadResult.failed(name, location, e);
+        }
+    }
+
+    private static List<BatchUploadResult> awaitAll(List<Future<BatchUploadResult>> results) throws InterruptedIOException {
+        List<BatchUploadResult> batchUploadResults = new ArrayList<>(results.size());
+        for (Future<BatchUploadResult> result : results) {
+            try {
+                batchUploadResults.add(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for batch uploads");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch upload task failed", e.getCause());
+            }
+        }
+        return batchUploadResults;
+    }
+
+    /**
+     * {@link SequenceInputStream} closes its streams once they are exhausted, which would end the archive after the entry.
+     */
+    private static InputStream unclosable(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static String newLocation(String key) {
+        return key + "/" + randomUUID() + "/original";
+    }
+}
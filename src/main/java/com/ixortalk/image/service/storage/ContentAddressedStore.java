@@ -0,0 +1,156 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteSource;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Deduplication;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import static com.google.common.hash.Hashing.sha256;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.OBJECT_SIZE;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOADED_BYTES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOAD_DEDUPLICATED;
+import static java.util.Optional.ofNullable;
+import static org.apache.commons.lang.StringUtils.substringAfterLast;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+
+/**
+ * Stores originals once per distinct content when deduplication is enabled. The upload is hashed and kept under
+ * {@code <blobPrefix>/<sha256>/original}, the put being skipped when that blob exists already, while the logical
+ * {@code <key>/<uuid>/original} becomes an empty pointer object carrying the blob directory in its user metadata.
+ * Renditions and encodings are derived from the resolved key, so they are rendered, stored and cached once per blob
+ * as well. Logical directories never change once uploaded, so resolved pointers are kept in a bounded index. Pointers
+ * are followed whether deduplication is enabled or not, so images stored while it was stay readable once it is turned off.
+ */
+@Component
+public class ContentAddressedStore {
+
+    public static final String BLOB_METADATA = "blob";
+
+    private static final Pattern UPLOAD_DIRECTORY_PATTERN = Pattern.compile(".+/[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private Cache<String, String> index;
+
+    @PostConstruct
+    public void createIndex() {
+        index = CacheBuilder.newBuilder()
+                .maximumSize(getDeduplication().getIndexSize())
+                .build();
+    }
+
+    /**
+     * Stores the upload at {@code location}, or at the blob holding the same content with a pointer at
+     * {@code location}, and returns the key the content is actually stored under.
+     */
+    public String save(String bucket, String location, ByteSource content, String contentType) throws IOException {
+        ObjectMetadata objectMetadata = objectMetadata(contentType, content.size());
+        try (InputStream inputStream = content.openStream()) {
+            ImageInfo.read(inputStream, contentType, content.size()).ifPresent(imageInfo -> imageInfo.addTo(objectMetadata));
+        }
+        if (!getDeduplication().isEnabled()) {
+            put(bucket, location, objectMetadata, content);
+            return location;
+        }
+
+        String blobDirectory = getDeduplication().getBlobPrefix() + "/" + content.hash(sha256());
+        String blobKey = blobDirectory + "/" + substringAfterLast(location, "/");
+        if (exists(bucket, blobKey)) {
+            UPLOAD_DEDUPLICATED.inc();
+        } else {
+            put(bucket, blobKey, objectMetadata, content);
+        }
+
+        ObjectMetadata pointer = objectMetadata(contentType, 0);
+        pointer.addUserMetadata(BLOB_METADATA, blobDirectory);
+        storageBackend.put(bucket, location, pointer, new ByteArrayInputStream(new byte[0]));
+        index.put(indexKey(bucket, substringBeforeLast(location, "/")), blobDirectory);
+        return blobKey;
+    }
+
+    /**
+     * Maps a logical key to the key its content is stored under, reading the pointer of its directory from storage when
+     * it is not indexed yet. Only directories of uploads, {@code <key>/<uuid>}, can hold a pointer.
+     */
+    public String resolve(String bucket, String key) throws IOException {
+        String directory = substringBeforeLast(key, "/");
+        if (!UPLOAD_DIRECTORY_PATTERN.matcher(directory).matches()) {
+            return key;
+        }
+        String blobDirectory = index.getIfPresent(indexKey(bucket, directory));
+        if (blobDirectory == null) {
+            Optional<ObjectMetadata> original = storageBackend.head(bucket, directory + "/original");
+            if (!original.isPresent()) {
+                // not uploaded (yet), so nothing can be remembered about it
+                return key;
+            }
+            blobDirectory = ofNullable(original.get().getUserMetaDataOf(BLOB_METADATA)).orElse(directory);
+            index.put(indexKey(bucket, directory), blobDirectory);
+        }
+        return blobDirectory + "/" + substringAfterLast(key, "/");
+    }
+
+    private void put(String bucket, String key, ObjectMetadata objectMetadata, ByteSource content) throws IOException {
+        storageBackend.put(bucket, key, objectMetadata, content.openStream());
+        UPLOADED_BYTES.inc(objectMetadata.getContentLength());
+        OBJECT_SIZE.labels("upload").observe(objectMetadata.getContentLength());
+    }
+
+    private boolean exists(String bucket, String key) throws IOException {
+        return storageBackend.head(bucket, key).isPresent();
+    }
+
+    private static ObjectMetadata objectMetadata(String contentType, long contentLength) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(contentLength);
+        objectMetadata.setContentType(contentType);
+        return objectMetadata;
+    }
+
+    private static String indexKey(String bucket, String directory) {
+        return bucket + "/" + directory;
+    }
+
+    private Deduplication getDeduplication() {
+        return ixorTalkConfigProperties.getUpload().getDeduplication();
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Archive;
+import com.ixortalk.image.service.storage.backend.ObjectNotFoundException;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static com.ixortalk.image.service.io.StreamCopier.copyToClient;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.ARCHIVE_ENTRIES;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.SERVED_BYTES;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * Streams many objects as one zip archive. The next {@code concurrency} objects are fetched while one is written, and
+ * every object is copied from its stream straight into the archive, so an archive holds no more than a copy buffer and
+ * a few open streams, however many or large its objects are.
+ */
+@Component
+public class ImageArchiver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageArchiver.class);
+
+    private static final Set<String> COMPRESSED_CONTENT_TYPES = newHashSet(IMAGE_JPEG_VALUE, IMAGE_PNG_VALUE, IMAGE_GIF_VALUE, "image/webp");
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void startExecutor() {
+        executor = newFixedThreadPool(
+                getArchive().getPoolSize(),
+                new ThreadFactoryBuilder().setNameFormat("archive-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the given keys followed by the keys under the given prefixes, without duplicates. Listed keys that cannot
+     * be extracted safely, as they would escape the directory the archive is extracted in, are left out.
+     *
+     * @throws IllegalArgumentException when there are no keys, more than the configured maximum or an unsafe given key
+     */
+    public List<String> keysOf(List<String> keys, List<String> prefixes) throws IOException {
+        int maxKeys = getArchive().getMaxKeys();
+        if (keys.size() > maxKeys) {
+            throw new IllegalArgumentException("An archive holds at most " + maxKeys + " keys");
+        }
+        for (String key : keys) {
+            if (!isSafeEntryName(key)) {
+                throw new IllegalArgumentException("Key " + key + " cannot be archived");
+            }
+        }
+        Set<String> allKeys = new LinkedHashSet<>(keys);
+        for (String prefix : prefixes) {
+            if (allKeys.size() > maxKeys) {
+                break;
+            }
+            // one more than allowed, to tell a prefix that exactly fits from one that does not
+            for (String key : storageBackend.list(ixorTalkConfigProperties.getBucket(), prefix, maxKeys + 1 - allKeys.size())) {
+                if (isSafeEntryName(key)) {
+                    allKeys.add(key);
+                } else {
+                    LOGGER.warn("Leaving key {} out of the archive, it cannot be extracted safely", key);
+                }
+            }
+        }
+        if (allKeys.isEmpty()) {
+            throw new IllegalArgumentException("No keys to archive");
+        }
+        if (allKeys.size() > maxKeys) {
+            throw new IllegalArgumentException("An archive holds at most " + maxKeys + " keys");
+        }
+        return new ArrayList<>(allKeys);
+    }
+
+    /**
+     * Writes an entry per key, named after the key, in the order of the keys. Keys that do not exist are left out.
+     * Images that are compressed already are stored without deflating them again.
+     */
+    public void write(List<String> keys, OutputStream outputStream) throws IOException {
+        Deque<Fetch> fetches = new ArrayDeque<>();
+        Iterator<String> remainingKeys = keys.iterator();
+        try {
+            ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+            fetchAhead(fetches, remainingKeys);
+            while (!fetches.isEmpty()) {
+                Fetch fetch = fetches.poll();
+                fetchAhead(fetches, remainingKeys);
+                Optional<StoredObject> storedObject = fetch.await();
+                if (storedObject.isPresent()) {
+                    writeEntry(zipOutputStream, fetch.key, storedObject.get());
+                    ARCHIVE_ENTRIES.labels("written").inc();
+                } else {
+                    LOGGER.info("Leaving missing key {} out of the archive", fetch.key);
+                    ARCHIVE_ENTRIES.labels("missing").inc();
+                }
+            }
+            // only closed once complete, closing a failed archive would finish it as if nothing was missing
+            zipOutputStream.close();
+        } finally {
+            fetches.forEach(Fetch::discard);
+        }
+    }
+
+    private void fetchAhead(Deque<Fetch> fetches, Iterator<String> remainingKeys) {
+        while (fetches.size() < getArchive().getConcurrency() && remainingKeys.hasNext()) {
+            String key = remainingKeys.next();
+            fetches.add(new Fetch(key, CompletableFuture.supplyAsync(() -> fetch(key), executor)));
+        }
+    }
+
+    private Optional<StoredObject> fetch(String key) {
+        try {
+            String bucket = ixorTalkConfigProperties.getBucket();
+            return Optional.of(storageBackend.get(bucket, contentAddressedStore.resolve(bucket, key)));
+        } catch (ObjectNotFoundException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeEntry(ZipOutputStream zipOutputStream, String key, StoredObject storedObject) throws IOException {
+        boolean fullyRead = false;
+        try {
+            ObjectMetadata metadata = storedObject.getMetadata();
+            ZipEntry zipEntry = new ZipEntry(key);
+            if (metadata.getLastModified() != null) {
+                zipEntry.setTime(metadata.getLastModified().getTime());
+            }
+            zipOutputStream.setLevel(COMPRESSED_CONTENT_TYPES.contains(metadata.getContentType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            zipOutputStream.putNextEntry(zipEntry);
+            SERVED_BYTES.labels(storageBackend.getName()).inc(copyToClient(storedObject.getContent(), zipOutputStream));
+            zipOutputStream.closeEntry();
+            fullyRead = true;
+        } finally {
+            storedObject.release(fullyRead);
+        }
+    }
+
+    private static boolean isSafeEntryName(String key) {
+        return !key.startsWith("/") && !key.contains("\\") && Stream.of(key.split("/")).noneMatch(".."::equals);
+    }
+
+    private Archive getArchive() {
+        return ixorTalkConfigProperties.getDownload().getArchive();
+    }
+
+    private static class Fetch {
+
+        private final String key;
+        private final CompletableFuture<Optional<StoredObject>> storedObject;
+
+        Fetch(String key, CompletableFuture<Optional<StoredObject>> storedObject) {
+            this.key = key;
+            this.storedObject = storedObject;
+        }
+
+        Optional<StoredObject> await() throws IOException {
+            try {
+                return storedObject.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + key);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Aborts the object once it is fetched, for archives that end before getting to it.
+         */
+        void discard() {
+            storedObject.thenAccept(fetched -> fetched.ifPresent(object -> object.release(false)));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Optional;
+
+import static java.util.Optional.empty;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+/**
+ * The format and dimensions of an image, told from its magic bytes and read from its header by hand, so neither the
+ * content type a client claims nor a decoder is trusted with an image that was not checked yet. Only the leading bytes
+ * are read, for JPEG up to its frame header, skipping the segments before it, and for GIF up to its trailer, as each of
+ * its frames has its own dimensions.
+ */
+public final class ImageHeader {
+
+    private static final String IMAGE_WEBP_VALUE = "image/webp";
+    private static final String IMAGE_BMP_VALUE = "image/bmp";
+
+    private static final int SIGNATURE_BYTES = 30;
+
+    private final String contentType;
+    private final int width;
+    private final int height;
+
+    private ImageHeader(String contentType, int width, int height) {
+        this.contentType = contentType;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reads the header, returns nothing for formats that are not recognized or headers that are cut short or invalid.
+     */
+    public static Optional<ImageHeader> read(InputStream inputStream) throws IOException {
+        byte[] signature = new byte[SIGNATURE_BYTES];
+        int length = ByteStreams.read(inputStream, signature, 0, signature.length);
+        try {
+            if (startsWith(signature, length, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n') && length >= 24) {
+                return valid(IMAGE_PNG_VALUE, int32BigEndian(signature, 16), int32BigEndian(signature, 20));
+            }
+            if ((startsWith(signature, length, 'G', 'I', 'F', '8', '7', 'a') || startsWith(signature, length, 'G', 'I', 'F', '8', '9', 'a')) && length >= 10) {
+                return gif(signature, length, inputStream);
+            }
+            if (startsWith(signature, length, 'B', 'M') && length >= 26) {
+                return int32LittleEndian(signature, 14) == 12 ?
+                        valid(IMAGE_BMP_VALUE, uint16LittleEndian(signature, 18), uint16LittleEndian(signature, 20)) :
+                        // bottom-up bitmaps have a positive height, top-down ones a negative height
+                        valid(IMAGE_BMP_VALUE, int32LittleEndian(signature, 18), Math.abs(int32LittleEndian(signature, 22)));
+            }
+            if (startsWith(signature, length, 'R', 'I', 'F', 'F') && length >= SIGNATURE_BYTES && matchesAt(signature, 8, length, 'W', 'E', 'B', 'P')) {
+                return webp(signature);
+            }
+            if (startsWith(signature, length, 0xff, 0xd8, 0xff)) {
+                return jpeg(new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(signature, 2, length - 2), inputStream)));
+            }
+            return empty();
+        } catch (EOFException e) {
+            return empty();
+        }
+    }
+
+    private static Optional<ImageHeader> webp(byte[] signature) {
+        if (matchesAt(signature, 12, SIGNATURE_BYTES, 'V', 'P', '8', ' ')) {
+            return valid(IMAGE_WEBP_VALUE, uint16LittleEndian(signature, 26) & 0x3fff, uint16LittleEndian(signature, 28) & 0x3fff);
+        }
+        if (matchesAt(signature, 12, SIGNATURE_BYTES, 'V', 'P', '8', 'L')) {
+            int bits = int32LittleEndian(signature, 21);
+            return valid(IMAGE_WEBP_VALUE, (bits & 0x3fff) + 1, ((bits >> 14) & 0x3fff) + 1);
+        }
+        if (matchesAt(signature, 12, SIGNATURE_BYTES, 'V', 'P', '8', 'X')) {
+            return valid(IMAGE_WEBP_VALUE, uint24LittleEndian(signature, 24) + 1, uint24LittleEndian(signature, 27) + 1);
+        }
+        return empty();
+    }
+
+    /**
+     * Walks the blocks up to the trailer, or as far as the stream goes, as every frame is decoded at its own size: the
+     * dimensions cover the logical screen and every frame found, wherever it is placed.
+     */
+    private static Optional<ImageHeader> gif(byte[] signature, int length, InputStream inputStream) throws IOException {
+        int width = uint16LittleEndian(signature, 6);
+        int height = uint16LittleEndian(signature, 8);
+        DataInputStream dataInputStream = new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(signature, 13, length - 13), inputStream));
+        try {
+            skipColorTable(dataInputStream, signature[10]);
+            while (true) {
+                int block = dataInputStream.readUnsignedByte();
+                if (block == 0x21) {
+                    dataInputStream.readUnsignedByte();
+                    skipSubBlocks(dataInputStream);
+                } else if (block == 0x2c) {
+                    int left = readUint16LittleEndian(dataInputStream);
+                    int top = readUint16LittleEndian(dataInputStream);
+                    width = Math.max(width, left + readUint16LittleEndian(dataInputStream));
+                    height = Math.max(height, top + readUint16LittleEndian(dataInputStream));
+                    skipColorTable(dataInputStream, dataInputStream.readByte());
+                    dataInputStream.readUnsignedByte();
+                    skipSubBlocks(dataInputStream);
+                } else {
+                    // the trailer, or a block that is not part of a GIF
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // a streamed upload only hands over its leading part, the frames found in it are checked
+        }
+        return valid(IMAGE_GIF_VALUE, width, height);
+    }
+
+    private static void skipColorTable(DataInputStream dataInputStream, byte flags) throws IOException {
+        if ((flags & 0x80) != 0) {
+            skipFully(dataInputStream, 3 << ((flags & 0x07) + 1));
+        }
+    }
+
+    private static void skipSubBlocks(DataInputStream dataInputStream) throws IOException {
+        int size;
+        while ((size = dataInputStream.readUnsignedByte()) != 0) {
+            skipFully(dataInputStream, size);
+        }
+    }
+
+    private static int readUint16LittleEndian(DataInputStream dataInputStream) throws IOException {
+        int low = dataInputStream.readUnsignedByte();
+        return low | dataInputStream.readUnsignedByte() << 8;
+    }
+
+    /**
+     * Walks the segments up to the first start of frame, which holds the dimensions.
+     */
+    private static Optional<ImageHeader> jpeg(DataInputStream dataInputStream) throws IOException {
+        while (true) {
+            int marker = dataInputStream.readUnsignedByte();
+            if (marker != 0xff) {
+                return empty();
+            }
+            while (marker == 0xff) {
+                marker = dataInputStream.readUnsignedByte();
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // end of image or start of scan, without a frame
+                return empty();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                continue;
+            }
+            int segmentLength = dataInputStream.readUnsignedShort();
+            if (segmentLength < 2) {
+                return empty();
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                dataInputStream.readUnsignedByte();
+                int height = dataInputStream.readUnsignedShort();
+                int width = dataInputStream.readUnsignedShort();
+                return valid(IMAGE_JPEG_VALUE, width, height);
+            }
+            skipFully(dataInputStream, segmentLength - 2);
+        }
+    }
+
+    private static Optional<ImageHeader> valid(String contentType, int width, int height) {
+        return width > 0 && height > 0 ? Optional.of(new ImageHeader(contentType, width, height)) : empty();
+    }
+
+    private static void skipFully(DataInputStream dataInputStream, int bytes) throws IOException {
+        // reads what skipping does not get past, unlike skipBytes, which gives up as soon as a skip returns nothing
+        ByteStreams.skipFully(dataInputStream, bytes);
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int... expected) {
+        return matchesAt(bytes, 0, length, expected);
+    }
+
+    private static boolean matchesAt(byte[] bytes, int offset, int length, int... expected) {
+        if (length < offset + expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if ((bytes[offset + i] & 0xff) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int uint16LittleEndian(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int uint24LittleEndian(byte[] bytes, int offset) {
+        return uint16LittleEndian(bytes, offset) | (bytes[offset + 2] & 0xff) << 16;
+    }
+
+    private static int int32LittleEndian(byte[] bytes, int offset) {
+        return uint16LittleEndian(bytes, offset) | uint16LittleEndian(bytes, offset + 2) << 16;
+    }
+
+    private static int int32BigEndian(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getPixels() {
+        return (long) width * height;
+    }
+}
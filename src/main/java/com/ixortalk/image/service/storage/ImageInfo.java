@@ -0,0 +1,125 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Optional;
+
+import static java.util.Optional.empty;
+
+/**
+ * What clients need to lay out an image without downloading it. The dimensions and format are read from the image
+ * header once, when the image is stored, and kept in the user metadata of the S3 object so a HEAD request returns them.
+ */
+public class ImageInfo {
+
+    static final String WIDTH_METADATA = "width";
+    static final String HEIGHT_METADATA = "height";
+    static final String FORMAT_METADATA = "format";
+
+    private final int width;
+    private final int height;
+    private final String format;
+    private final String contentType;
+    private final long size;
+
+    public ImageInfo(int width, int height, String format, String contentType, long size) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.contentType = contentType;
+        this.size = size;
+    }
+
+    /**
+     * Reads the dimensions and format from the image header, without decoding the pixels.
+     */
+    public static Optional<ImageInfo> read(InputStream inputStream, String contentType, long size) {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            Iterator<ImageReader> imageReaders = imageInputStream == null ? null : ImageIO.getImageReaders(imageInputStream);
+            if (imageReaders == null || !imageReaders.hasNext()) {
+                return empty();
+            }
+            ImageReader imageReader = imageReaders.next();
+            try {
+                imageReader.setInput(imageInputStream, true, true);
+                return Optional.of(new ImageInfo(imageReader.getWidth(0), imageReader.getHeight(0), imageReader.getFormatName().toLowerCase(), contentType, size));
+            } finally {
+                imageReader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return empty();
+        }
+    }
+
+    /**
+     * Reads back the image info stored in the user metadata, if the object was stored with it.
+     */
+    public static Optional<ImageInfo> of(ObjectMetadata objectMetadata) {
+        String width = objectMetadata.getUserMetaDataOf(WIDTH_METADATA);
+        String height = objectMetadata.getUserMetaDataOf(HEIGHT_METADATA);
+        String format = objectMetadata.getUserMetaDataOf(FORMAT_METADATA);
+        if (width == null || height == null || format == null) {
+            return empty();
+        }
+        try {
+            return Optional.of(new ImageInfo(Integer.parseInt(width), Integer.parseInt(height), format, objectMetadata.getContentType(), objectMetadata.getContentLength()));
+        } catch (NumberFormatException e) {
+            return empty();
+        }
+    }
+
+    public void addTo(ObjectMetadata objectMetadata) {
+        objectMetadata.addUserMetadata(WIDTH_METADATA, String.valueOf(width));
+        objectMetadata.addUserMetadata(HEIGHT_METADATA, String.valueOf(height));
+        objectMetadata.addUserMetadata(FORMAT_METADATA, format);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
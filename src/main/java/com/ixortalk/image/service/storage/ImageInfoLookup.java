@@ -0,0 +1,162 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Metadata;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import com.ixortalk.image.service.storage.backend.StoredObject;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.util.Optional.empty;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Looks up the {@link ImageInfo} of stored images with a HEAD request. Images stored before their info was recorded
+ * get it read from a ranged GET of their first {@code headerBytes}, which holds the header of any common format.
+ */
+@Component
+public class ImageInfoLookup {
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private ContentAddressedStore contentAddressedStore;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private Cache<String, ImageInfo> cache;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(getMetadata().getCacheSize())
+                .build();
+        executor = newFixedThreadPool(
+                getMetadata().getLookupParallelism(),
+                new ThreadFactoryBuilder().setNameFormat("metadata-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    public Optional<ImageInfo> lookup(String key) throws IOException {
+        String bucket = ixorTalkConfigProperties.getBucket();
+        String storedKey = contentAddressedStore.resolve(bucket, key);
+        ImageInfo cached = cache.getIfPresent(storedKey);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        Optional<ObjectMetadata> objectMetadata = storageBackend.head(bucket, storedKey);
+        if (!objectMetadata.isPresent()) {
+            return empty();
+        }
+        Optional<ImageInfo> imageInfo = ImageInfo.of(objectMetadata.get());
+        if (!imageInfo.isPresent()) {
+            imageInfo = readHeader(bucket, storedKey, objectMetadata.get());
+        }
+        imageInfo.ifPresent(info -> cache.put(storedKey, info));
+        return imageInfo;
+    }
+
+    /**
+     * Looks up all keys concurrently, the result keeps their order and leaves out the ones that do not exist.
+     */
+    public Map<String, ImageInfo> lookupAll(List<String> keys) throws IOException {
+        if (keys.size() > getMetadata().getMaxBulkKeys()) {
+            throw new IllegalArgumentException("At most " + getMetadata().getMaxBulkKeys() + " keys can be looked up at once");
+        }
+
+        List<Future<Optional<ImageInfo>>> lookups = new ArrayList<>(keys.size());
+        keys.forEach(key -> lookups.add(executor.submit(() -> lookup(key))));
+
+        Map<String, ImageInfo> imageInfos = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            try {
+                lookups.get(i).get().ifPresent(imageInfo -> imageInfos.put(key, imageInfo));
+            } catch (InterruptedException e) {
+                lookups.forEach(lookup -> lookup.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while looking up image metadata");
+            } catch (ExecutionException e) {
+                lookups.forEach(lookup -> lookup.cancel(true));
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Metadata lookup failed", e.getCause());
+            }
+        }
+        return imageInfos;
+    }
+
+    private Optional<ImageInfo> readHeader(String bucket, String key, ObjectMetadata objectMetadata) throws IOException {
+        Optional<StoredObject> header = storageBackend.getRange(bucket, key, 0, getMetadata().getHeaderBytes() - 1, null);
+        if (!header.isPresent()) {
+            return empty();
+        }
+        try (InputStream objectContent = header.get().getContent()) {
+            Optional<ImageInfo> imageInfo = ImageInfo.read(objectContent, objectMetadata.getContentType(), objectMetadata.getContentLength());
+            // the range is small, draining what the header did not need keeps the connection reusable
+            ByteStreams.exhaust(objectContent);
+            return imageInfo;
+        }
+    }
+
+    private Metadata getMetadata() {
+        return ixorTalkConfigProperties.getMetadata();
+    }
+}
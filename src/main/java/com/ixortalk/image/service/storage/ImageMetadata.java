@@ -0,0 +1,71 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * The metadata of a stored image needed to serve it: content type and length plus the validators used for conditional requests.
+ */
+public class ImageMetadata {
+
+    private final String contentType;
+    private final long contentLength;
+    private final String eTag;
+    private final long lastModified;
+
+    public ImageMetadata(String contentType, long contentLength, String eTag, long lastModified) {
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public static ImageMetadata of(ObjectMetadata objectMetadata) {
+        return new ImageMetadata(
+                objectMetadata.getContentType(),
+                objectMetadata.getContentLength(),
+                objectMetadata.getETag(),
+                objectMetadata.getLastModified() == null ? -1 : objectMetadata.getLastModified().getTime());
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * The last modification time in milliseconds since the epoch, or -1 when unknown.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
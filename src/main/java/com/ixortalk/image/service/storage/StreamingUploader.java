@@ -0,0 +1,227 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Upload;
+import com.ixortalk.image.service.io.BufferPool;
+import com.ixortalk.image.service.storage.backend.MultipartUpload;
+import com.ixortalk.image.service.storage.backend.StorageBackend;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.OBJECT_SIZE;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOADED_BYTES;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Streams a request body of unknown length to the {@link StorageBackend} without spooling it. Bodies that fit in a single part are stored with
+ * a plain put, larger ones are sent as a multipart upload whose parts are uploaded in parallel from a shared
+ * {@link BufferPool}. Reading the next part blocks while all buffers are in flight, so a slow S3 throttles the client
+ * instead of growing the heap. A failed transfer aborts the multipart upload so no orphaned parts are left behind.
+ * The image header in the first part is checked by the {@link UploadValidator} before anything is stored, and a body
+ * growing beyond the maximum upload size is cut off.
+ */
+@Component
+public class StreamingUploader {
+
+    @Inject
+    private StorageBackend storageBackend;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    @Inject
+    private UploadValidator uploadValidator;
+
+    private BufferPool bufferPool;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        Upload upload = ixorTalkConfigProperties.getUpload();
+        bufferPool = new BufferPool(upload.getPartSizeBytes(), upload.getPartBuffers());
+        executor = newFixedThreadPool(
+                upload.getPartConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("upload-part-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+    }
+
+    public void upload(String bucket, String key, InputStream inputStream) throws IOException {
+        byte[] firstPart = acquireBuffer();
+        int firstPartLength;
+        String contentType;
+        try {
+            firstPartLength = ByteStreams.read(inputStream, firstPart, 0, firstPart.length);
+            uploadValidator.checkSize(firstPartLength);
+            contentType = uploadValidator.validate(new ByteArrayInputStream(firstPart, 0, firstPartLength));
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(firstPart);
+            throw e;
+        }
+
+        if (firstPartLength < firstPart.length) {
+            try {
+                ObjectMetadata objectMetadata = objectMetadata(contentType);
+                objectMetadata.setContentLength(firstPartLength);
+                storageBackend.put(bucket, key, objectMetadata, new ByteArrayInputStream(firstPart, 0, firstPartLength));
+                UPLOADED_BYTES.inc(firstPartLength);
+                OBJECT_SIZE.labels("upload").observe(firstPartLength);
+            } finally {
+                bufferPool.release(firstPart);
+            }
+            return;
+        }
+
+        MultipartUpload multipartUpload;
+        try {
+            multipartUpload = storageBackend.initiateMultipartUpload(bucket, key, objectMetadata(contentType));
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(firstPart);
+            throw e;
+        }
+        List<Future<Void>> parts = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            byte[] part = firstPart;
+            int partLength = firstPartLength;
+            long size = 0;
+            firstPart = null;
+            while (true) {
+                parts.add(uploadPart(multipartUpload, parts.size() + 1, part, partLength, aborted));
+                size += partLength;
+                if (partLength < bufferPool.getBufferSize()) {
+                    break;
+                }
+                part = acquireBuffer();
+                try {
+                    partLength = ByteStreams.read(inputStream, part, 0, part.length);
+                    uploadValidator.checkSize(size + partLength);
+                } catch (IOException | RuntimeException e) {
+                    bufferPool.release(part);
+                    throw e;
+                }
+                if (partLength == 0) {
+                    bufferPool.release(part);
+                    break;
+                }
+            }
+            awaitAll(parts);
+            multipartUpload.complete();
+            OBJECT_SIZE.labels("upload").observe(size);
+        } catch (IOException | RuntimeException e) {
+            if (firstPart != null) {
+                bufferPool.release(firstPart);
+            }
+            aborted.set(true);
+            abort(multipartUpload, parts);
+            throw e;
+        }
+    }
+
+    private byte[] acquireBuffer() throws InterruptedIOException {
+        Upload upload = ixorTalkConfigProperties.getUpload();
+        return bufferPool.acquire(upload.getPartBufferWaitMillis())
+                .orElseThrow(() -> new UploadsSaturatedException(upload.getRetryAfterSeconds()));
+    }
+
+    private Future<Void> uploadPart(MultipartUpload multipartUpload, int partNumber, byte[] buffer, int length, AtomicBoolean aborted) {
+        return executor.submit(() -> {
+            try {
+                if (aborted.get()) {
+                    throw new CancellationException("Multipart upload was aborted");
+                }
+                multipartUpload.uploadPart(partNumber, buffer, length);
+                UPLOADED_BYTES.inc(length);
+                return null;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        });
+    }
+
+    private static void awaitAll(List<Future<Void>> parts) throws IOException {
+        for (Future<Void> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for part uploads");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Part upload failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Waits for the parts still in flight before aborting, as S3 only frees the storage of parts that completed before
+     * the abort. Queued parts see the aborted flag and skip their upload, handing their buffer straight back.
+     */
+    private static void abort(MultipartUpload multipartUpload, List<Future<Void>> parts) {
+        for (Future<Void> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | CancellationException e) {
+                // the failure that triggered the abort has already been reported
+            }
+        }
+        multipartUpload.abort();
+    }
+
+    private static ObjectMetadata objectMetadata(String contentType) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(contentType);
+        return objectMetadata;
+    }
+}
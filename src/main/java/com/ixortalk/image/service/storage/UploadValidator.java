@@ -0,0 +1,90 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage;
+
+import com.google.common.io.ByteSource;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Validation;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.UPLOADS_REJECTED;
+
+/**
+ * Checks an upload before anything is stored or decoded: its size, its format as told from its magic bytes and its
+ * dimensions as read from its header. The format found replaces the content type the upload was sent with.
+ */
+@Component
+public class UploadValidator {
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    /**
+     * Validates a fully received upload, returning its content type.
+     */
+    public String validate(ByteSource upload) throws IOException {
+        checkSize(upload.size());
+        try (InputStream inputStream = upload.openStream()) {
+            return validate(inputStream);
+        }
+    }
+
+    /**
+     * Validates the header at the start of the given stream, returning the content type of the image.
+     */
+    public String validate(InputStream header) throws IOException {
+        Validation validation = getValidation();
+        ImageHeader imageHeader = ImageHeader.read(header).orElseThrow(() -> {
+            UPLOADS_REJECTED.labels("format").inc();
+            return new UnsupportedImageException("Not a supported image, or its header could not be read");
+        });
+        if (!validation.getContentTypes().contains(imageHeader.getContentType())) {
+            UPLOADS_REJECTED.labels("format").inc();
+            throw new UnsupportedImageException("Images of type " + imageHeader.getContentType() + " are not accepted");
+        }
+        if (imageHeader.getPixels() > validation.getMaxPixels()) {
+            UPLOADS_REJECTED.labels("pixels").inc();
+            throw new ImageTooLargeException("Image of " + imageHeader.getWidth() + "x" + imageHeader.getHeight() + " exceeds " + validation.getMaxPixels() + " pixels");
+        }
+        return imageHeader.getContentType();
+    }
+
+    /**
+     * Checks the number of bytes received so far, or announced, against the maximum upload size.
+     */
+    public void checkSize(long size) {
+        if (size > getValidation().getMaxBytes()) {
+            UPLOADS_REJECTED.labels("size").inc();
+            throw new ImageTooLargeException("Upload exceeds " + getValidation().getMaxBytes() + " bytes");
+        }
+    }
+
+    private Validation getValidation() {
+        return ixorTalkConfigProperties.getUpload().getValidation();
+    }
+}
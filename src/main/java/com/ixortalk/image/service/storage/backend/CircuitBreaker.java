@@ -0,0 +1,122 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CIRCUIT_BREAKER_REJECTED;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.CIRCUIT_BREAKER_STATE;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Opens after a number of consecutive failed calls and fails every call fast while open. Once the open period is over
+ * a single trial call is let through: its success closes the breaker again, its failure reopens it.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String backend;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String backend, int failureThreshold, long openMillis) {
+        this.backend = backend;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = MILLISECONDS.toNanos(openMillis);
+        transition(State.CLOSED);
+    }
+
+    /**
+     * Lets a call through, or throws {@link StorageUnavailableException} when the breaker is open or its trial call
+     * is still in flight. Every call let through must report its outcome.
+     */
+    public synchronized void acquire() {
+        if (state == State.OPEN) {
+            long openFor = openNanos - (nanoTime() - openedAt);
+            if (openFor > 0) {
+                throw rejected((int) Math.max(1, NANOSECONDS.toSeconds(openFor + 999_999_999)));
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                throw rejected(1);
+            }
+            trialInFlight = true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            openedAt = nanoTime();
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Ends a call that was let through without an outcome, so an aborted trial call does not keep the breaker half
+     * open.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized void reset() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        transition(State.CLOSED);
+    }
+
+    private StorageUnavailableException rejected(int retryAfterSeconds) {
+        CIRCUIT_BREAKER_REJECTED.labels(backend).inc();
+        return new StorageUnavailableException("Circuit breaker of the " + backend + " backend is " + state, retryAfterSeconds);
+    }
+
+    private void transition(State state) {
+        this.state = state;
+        CIRCUIT_BREAKER_STATE.labels(backend).set(state.ordinal());
+    }
+}
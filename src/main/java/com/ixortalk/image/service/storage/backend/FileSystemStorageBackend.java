@@ -0,0 +1,348 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteSource;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static com.amazonaws.services.s3.Headers.ETAG;
+import static com.google.common.base.Strings.emptyToNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.io.BaseEncoding.base16;
+import static com.google.common.io.ByteStreams.limit;
+import static com.google.common.io.Files.asByteSource;
+import static com.ixortalk.image.service.io.StreamCopier.copy;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.channels.Channels.newInputStream;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Comparator.comparingInt;
+import static java.util.UUID.randomUUID;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps objects as files under {@code <root>/<bucket>/<key>}, for deployments next to fast local or network attached
+ * storage. Like the disk cache, each file holds a small header (ETag, last modified date, content type and user
+ * metadata) followed by the object bytes, and is written to a temporary file that is moved in place once complete.
+ * Objects are read through a {@link FileChannel} and expose their path, so they are sent to the client without passing
+ * through the heap. Parts of multipart uploads are staged under {@code <root>/.multipart} until the upload completes.
+ */
+@Component
+@ConditionalOnProperty(name = "ixortalk.image-service.storage.backend", havingValue = FileSystemStorageBackend.NAME)
+public class FileSystemStorageBackend implements StorageBackend {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemStorageBackend.class);
+
+    public static final String NAME = "filesystem";
+
+    private static final int HEADER_MAGIC = 0x49585331;
+    private static final int ETAG_POSITION = 4;
+    private static final int ETAG_LENGTH = 32;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String MULTIPART_DIRECTORY = ".multipart";
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private Path root;
+
+    @PostConstruct
+    public void createRoot() throws IOException {
+        root = createDirectories(Paths.get(ixorTalkConfigProperties.getStorage().getFilesystem().getRoot())).toRealPath();
+        Path multipartDirectory = createDirectories(root.resolve(MULTIPART_DIRECTORY));
+        try (Stream<Path> abandonedUploads = Files.list(multipartDirectory)) {
+            abandonedUploads.forEach(FileSystemStorageBackend::deleteParts);
+        }
+        LOGGER.info("Storing images in {}", root);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public StoredObject get(String bucket, String key) throws IOException {
+        Path path = path(bucket, key);
+        FileChannel channel = open(key, path);
+        try {
+            ObjectMetadata metadata = readHeader(key, channel);
+            long offset = channel.position();
+            metadata.setContentLength(channel.size() - offset);
+            return StoredObject.ofFile(metadata, newInputStream(channel), path, offset);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<StoredObject> getRange(String bucket, String key, long start, long end, String matchingETag) throws IOException {
+        FileChannel channel = open(key, path(bucket, key));
+        try {
+            ObjectMetadata metadata = readHeader(key, channel);
+            if (matchingETag != null && !matchingETag.equals(metadata.getETag())) {
+                channel.close();
+                return Optional.empty();
+            }
+            long contentEnd = min(end + 1, channel.size() - channel.position());
+            metadata.setContentLength(max(0, contentEnd - start));
+            channel.position(channel.position() + start);
+            return Optional.of(StoredObject.of(metadata, limit(newInputStream(channel), metadata.getContentLength()), null));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<StoredObject> getIfChanged(String bucket, String key, String eTag) throws IOException {
+        Path path = path(bucket, key);
+        FileChannel channel = open(key, path);
+        try {
+            ObjectMetadata metadata = readHeader(key, channel);
+            if (eTag.equals(metadata.getETag())) {
+                channel.close();
+                return Optional.empty();
+            }
+            long offset = channel.position();
+            metadata.setContentLength(channel.size() - offset);
+            return Optional.of(StoredObject.ofFile(metadata, newInputStream(channel), path, offset));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<ObjectMetadata> head(String bucket, String key) throws IOException {
+        try (FileChannel channel = open(key, path(bucket, key))) {
+            ObjectMetadata metadata = readHeader(key, channel);
+            metadata.setContentLength(channel.size() - channel.position());
+            return Optional.of(metadata);
+        } catch (ObjectNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void put(String bucket, String key, ObjectMetadata metadata, InputStream content) throws IOException {
+        try (InputStream closedOnceStored = content) {
+            write(path(bucket, key), metadata, closedOnceStored);
+        }
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String bucket, String key, ObjectMetadata metadata) throws IOException {
+        Path path = path(bucket, key);
+        Path parts = createDirectories(root.resolve(MULTIPART_DIRECTORY).resolve(randomUUID().toString()));
+        return new MultipartUpload() {
+            @Override
+            public void uploadPart(int partNumber, byte[] buffer, int length) throws IOException {
+                try (OutputStream outputStream = newOutputStream(parts.resolve(String.valueOf(partNumber)))) {
+                    outputStream.write(buffer, 0, length);
+                }
+            }
+
+            @Override
+            public void complete() throws IOException {
+                List<Path> partFiles;
+                try (Stream<Path> files = Files.list(parts)) {
+                    partFiles = files.sorted(comparingInt(part -> Integer.parseInt(part.getFileName().toString()))).collect(toList());
+                }
+                try (InputStream content = ByteSource.concat(partFiles.stream().map(part -> asByteSource(part.toFile())).collect(toList())).openStream()) {
+                    write(path, metadata, content);
+                }
+                abort();
+            }
+
+            @Override
+            public void abort() {
+                deleteParts(parts);
+            }
+        };
+    }
+
+    @Override
+    public void delete(String bucket, String key) throws IOException {
+        deleteIfExists(path(bucket, key));
+    }
+
+    /**
+     * Deletes the staged parts of a multipart upload, which was either completed or abandoned.
+     */
+    private static void deleteParts(Path parts) {
+        try (Stream<Path> files = Files.list(parts)) {
+            for (Path part : (Iterable<Path>) files::iterator) {
+                deleteIfExists(part);
+            }
+            deleteIfExists(parts);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete the multipart upload parts in {}: {}", parts, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the header with a blank ETag, which is filled in with the MD5 of the content once that has been copied.
+     */
+    private void write(Path path, ObjectMetadata metadata, InputStream content) throws IOException {
+        createDirectories(path.getParent());
+        Path tempFile = createTempFile(path.getParent(), path.getFileName().toString(), TEMP_FILE_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, WRITE)) {
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                outputStream.writeInt(HEADER_MAGIC);
+                outputStream.write(new byte[ETAG_LENGTH]);
+                outputStream.writeLong(currentTimeMillis());
+                outputStream.writeUTF(nullToEmpty(metadata.getContentType()));
+                Map<String, String> userMetadata = metadata.getUserMetadata();
+                outputStream.writeInt(userMetadata.size());
+                for (Map.Entry<String, String> entry : userMetadata.entrySet()) {
+                    outputStream.writeUTF(entry.getKey());
+                    outputStream.writeUTF(entry.getValue());
+                }
+                DigestInputStream digestingContent = new DigestInputStream(content, md5());
+                copy(digestingContent, outputStream);
+                outputStream.flush();
+                String eTag = base16().lowerCase().encode(digestingContent.getMessageDigest().digest());
+                channel.write(ByteBuffer.wrap(eTag.getBytes(US_ASCII)), ETAG_POSITION);
+            }
+            move(tempFile, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the header, leaving the channel positioned at the start of the object bytes.
+     */
+    private static ObjectMetadata readHeader(String key, FileChannel channel) throws IOException {
+        DataInputStream header = new DataInputStream(newInputStream(channel));
+        if (header.readInt() != HEADER_MAGIC) {
+            throw new IOException("File of " + key + " is not a stored object");
+        }
+        byte[] eTag = new byte[ETAG_LENGTH];
+        header.readFully(eTag);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader(ETAG, new String(eTag, US_ASCII));
+        metadata.setLastModified(new Date(header.readLong()));
+        metadata.setContentType(emptyToNull(header.readUTF()));
+        int userMetadataCount = header.readInt();
+        for (int i = 0; i < userMetadataCount; i++) {
+            metadata.addUserMetadata(header.readUTF(), header.readUTF());
+        }
+        return metadata;
+    }
+
+    private static FileChannel open(String key, Path path) throws IOException {
+        if (!isRegularFile(path)) {
+            throw new ObjectNotFoundException(NAME, key);
+        }
+        try {
+            return FileChannel.open(path, READ);
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(NAME, key, e);
+        }
+    }
+
+    /**
+     * Walks the deepest directory the prefix names, leaving out files still being written.
+     */
+    @Override
+    public List<String> list(String bucket, String prefix, int maxKeys) throws IOException {
+        Path bucketDirectory = root.resolve(bucket);
+        Path directory = prefix.contains("/") ? path(bucket, prefix.substring(0, prefix.lastIndexOf('/'))) : bucketDirectory;
+        if (!isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = walk(directory)) {
+            return files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX))
+                    .map(file -> bucketDirectory.relativize(file).toString().replace(File.separatorChar, '/'))
+                    .filter(key -> key.startsWith(prefix))
+                    .sorted()
+                    .limit(maxKeys)
+                    .collect(toList());
+        }
+    }
+
+    /**
+     * Resolves the file of a key, refusing keys that would point outside of the bucket directory.
+     */
+    private Path path(String bucket, String key) {
+        Path bucketDirectory = root.resolve(bucket);
+        Path path = bucketDirectory.resolve(key).normalize();
+        if (!path.startsWith(bucketDirectory) || path.equals(bucketDirectory)) {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+        return path;
+    }
+}
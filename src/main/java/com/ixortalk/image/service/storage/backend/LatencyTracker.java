@@ -0,0 +1,67 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls in a ring buffer to estimate a percentile from. The sorted copy the
+ * estimate is read from is only refreshed every {@link #REFRESH_INTERVAL} samples.
+ */
+class LatencyTracker {
+
+    private static final int CAPACITY = 1024;
+    private static final int REFRESH_INTERVAL = 64;
+
+    private final long[] samples = new long[CAPACITY];
+    private int count;
+    private int next;
+
+    private long[] sorted = new long[0];
+    private int sinceRefresh;
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+        sinceRefresh++;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the recent calls answered, or -1 when fewer than
+     * {@code minSamples} calls were recorded.
+     */
+    synchronized long percentile(double percentile, int minSamples) {
+        if (count == 0 || count < minSamples) {
+            return -1;
+        }
+        if (sorted.length != count || sinceRefresh >= REFRESH_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceRefresh = 0;
+        }
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Breaker;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.Hedge;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties.S3;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.HEDGED_REQUESTS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.HEDGE_WINS;
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.STORAGE_TIMEOUTS;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Guards the calls of a storage backend with a {@link CircuitBreaker}. Reads additionally run on a bounded pool, so the
+ * caller can give up on them after a timeout, and gets can be hedged: when the first request has not answered by the
+ * configured percentile of the recent latencies a second one is sent and whichever answers first is used. Results
+ * arriving after the caller gave up on them are handed to a discard callback, so their connections are released.
+ */
+class ResilientCalls {
+
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private final String backend;
+    private final S3 settings;
+    private final Optional<CircuitBreaker> circuitBreaker;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    ResilientCalls(String backend, S3 settings) {
+        this.backend = backend;
+        this.settings = settings;
+        Breaker breaker = settings.getCircuitBreaker();
+        this.circuitBreaker = breaker.isEnabled() ?
+                Optional.of(new CircuitBreaker(backend, breaker.getFailureThreshold(), breaker.getOpenMillis())) :
+                Optional.empty();
+        this.executor = new ThreadPoolExecutor(
+                settings.getPoolSize(),
+                settings.getPoolSize(),
+                60, SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat(backend + "-call-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    Optional<CircuitBreaker> getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs a write through the circuit breaker, writes are never timed out.
+     */
+    <T> T write(Supplier<T> call) {
+        return guarded(call);
+    }
+
+    /**
+     * Runs a read through the circuit breaker, giving up on it after the configured timeout.
+     */
+    <T> T read(String operation, Supplier<T> call, Consumer<T> discard) {
+        return guarded(() -> timed(operation, call, discard, false));
+    }
+
+    /**
+     * Runs a get like {@link #read}, hedging it when hedging is enabled.
+     */
+    <T> T get(String operation, Supplier<T> call, Consumer<T> discard) {
+        return guarded(() -> timed(operation, call, discard, settings.getHedge().isEnabled()));
+    }
+
+    private <T> T guarded(Supplier<T> call) {
+        if (!circuitBreaker.isPresent()) {
+            return call.get();
+        }
+        circuitBreaker.get().acquire();
+        boolean reported = false;
+        try {
+            T result = call.get();
+            circuitBreaker.get().onSuccess();
+            reported = true;
+            return result;
+        } catch (RuntimeException e) {
+            if (isFailure(e)) {
+                circuitBreaker.get().onFailure();
+                reported = true;
+            } else if (!(e instanceof StoragePoolSaturatedException)) {
+                circuitBreaker.get().onSuccess();
+                reported = true;
+            }
+            throw e;
+        } finally {
+            if (!reported) {
+                circuitBreaker.get().release();
+            }
+        }
+    }
+
+    private <T> T timed(String operation, Supplier<T> call, Consumer<T> discard, boolean hedged) {
+        if (settings.getTimeoutMillis() <= 0 && !hedged) {
+            return call.get();
+        }
+        long deadline = settings.getTimeoutMillis() > 0 ? nanoTime() + MILLISECONDS.toNanos(settings.getTimeoutMillis()) : Long.MAX_VALUE;
+        CompletableFuture<T> first = submit(operation, call);
+        long hedgeDelay = hedged ? hedgeDelay(operation) : -1;
+        if (hedgeDelay < 0 || nanoTime() + hedgeDelay >= deadline) {
+            return await(operation, first, deadline, discard);
+        }
+
+        try {
+            return first.get(hedgeDelay, NANOSECONDS);
+        } catch (TimeoutException e) {
+            // hedged below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.thenAccept(discard);
+            throw new StorageUnavailableException("Interrupted while waiting for " + backend + " " + operation, RETRY_AFTER_SECONDS);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+
+        CompletableFuture<T> hedge;
+        try {
+            hedge = submit(operation, call);
+        } catch (StoragePoolSaturatedException e) {
+            return await(operation, first, deadline, discard);
+        }
+        HEDGED_REQUESTS.labels(operation).inc();
+        return await(operation, firstAnswer(operation, first, hedge, discard), deadline, discard);
+    }
+
+    private long hedgeDelay(String operation) {
+        Hedge hedge = settings.getHedge();
+        long percentile = latencies(operation).percentile(hedge.getPercentile(), hedge.getMinSamples());
+        return percentile < 0 ? -1 : Math.max(percentile, MILLISECONDS.toNanos(hedge.getMinDelayMillis()));
+    }
+
+    private <T> CompletableFuture<T> submit(String operation, Supplier<T> call) {
+        LatencyTracker latencyTracker = latencies(operation);
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = nanoTime();
+                T result = call.get();
+                latencyTracker.record(nanoTime() - start);
+                return result;
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            throw new StoragePoolSaturatedException("No thread left to call " + backend + " " + operation, RETRY_AFTER_SECONDS);
+        }
+    }
+
+    /**
+     * Completes with the first successful answer, or with the failure of the hedge once both failed. The answer that
+     * loses the race is discarded.
+     */
+    private static <T> CompletableFuture<T> firstAnswer(String operation, CompletableFuture<T> first, CompletableFuture<T> hedge, Consumer<T> discard) {
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        first.whenComplete((result, failure) -> complete(answer, result, failure, failures, discard));
+        hedge.whenComplete((result, failure) -> {
+            if (complete(answer, result, failure, failures, discard)) {
+                HEDGE_WINS.labels(operation).inc();
+            }
+        });
+        return answer;
+    }
+
+    private static <T> boolean complete(CompletableFuture<T> answer, T result, Throwable failure, AtomicInteger failures, Consumer<T> discard) {
+        if (failure != null) {
+            if (failures.incrementAndGet() == 2) {
+                answer.completeExceptionally(failure);
+            }
+            return false;
+        }
+        if (answer.complete(result)) {
+            return true;
+        }
+        discard.accept(result);
+        return false;
+    }
+
+    private <T> T await(String operation, CompletableFuture<T> future, long deadline, Consumer<T> discard) {
+        try {
+            return deadline == Long.MAX_VALUE ? future.get() : future.get(deadline - nanoTime(), NANOSECONDS);
+        } catch (TimeoutException e) {
+            STORAGE_TIMEOUTS.labels(operation).inc();
+            future.thenAccept(discard);
+            throw new StorageUnavailableException(backend + " " + operation + " did not answer within " + settings.getTimeoutMillis() + " ms", RETRY_AFTER_SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.thenAccept(discard);
+            throw new StorageUnavailableException("Interrupted while waiting for " + backend + " " + operation, RETRY_AFTER_SECONDS);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private LatencyTracker latencies(String operation) {
+        return latencies.computeIfAbsent(operation, key -> new LatencyTracker());
+    }
+
+    /**
+     * Timeouts, server errors and errors reaching the backend count as failures. Answers like a missing key or a
+     * failed precondition show the backend is up, a saturated local pool shows nothing about it.
+     */
+    private static boolean isFailure(RuntimeException e) {
+        if (e instanceof StorageUnavailableException) {
+            return !(e instanceof StoragePoolSaturatedException);
+        }
+        if (e instanceof AmazonServiceException) {
+            return ((AmazonServiceException) e).getStatusCode() >= 500;
+        }
+        return e instanceof AmazonClientException;
+    }
+
+    private static RuntimeException rethrow(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        throw new IllegalStateException(throwable);
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.ixortalk.aws.s3.library.config.AwsS3Template;
+import com.ixortalk.image.service.config.IxorTalkConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import static com.ixortalk.image.service.metrics.ImageServiceMetrics.timeS3;
+import static java.lang.Math.min;
+import static java.util.Optional.empty;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+/**
+ * The default backend, every request is timed in the S3 request metrics. Missing objects are reported as
+ * {@link ObjectNotFoundException}, any other S3 error is passed on as is. Requests go through {@link ResilientCalls},
+ * so reads time out, gets can be hedged and an open circuit breaker fails them fast with
+ * {@link StorageUnavailableException}.
+ */
+@Component
+@ConditionalOnProperty(name = "ixortalk.image-service.storage.backend", havingValue = S3StorageBackend.NAME, matchIfMissing = true)
+public class S3StorageBackend implements StorageBackend {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3StorageBackend.class);
+
+    public static final String NAME = "s3";
+
+    private static final int MAX_KEYS_PER_LISTING = 1000;
+
+    @Inject
+    private AwsS3Template awsS3Template;
+
+    @Inject
+    private AmazonS3 amazonS3;
+
+    @Inject
+    private IxorTalkConfigProperties ixorTalkConfigProperties;
+
+    private ResilientCalls calls;
+
+    @PostConstruct
+    public void startCalls() {
+        calls = new ResilientCalls(NAME, ixorTalkConfigProperties.getStorage().getS3());
+    }
+
+    @PreDestroy
+    public void stopCalls() {
+        calls.shutdown();
+    }
+
+    public Optional<CircuitBreaker> getCircuitBreaker() {
+        return calls.getCircuitBreaker();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public StoredObject get(String bucket, String key) {
+        return toStoredObject(notFoundAsException(key, () -> calls.get("get", () -> timeS3("get", () -> awsS3Template.get(bucket, key)), S3StorageBackend::abort)));
+    }
+
+    @Override
+    public Optional<StoredObject> getRange(String bucket, String key, long start, long end, String matchingETag) {
+        GetObjectRequest getObjectRequest = new GetObjectRequest(bucket, key).withRange(start, end);
+        if (matchingETag != null) {
+            getObjectRequest.withMatchingETagConstraint(matchingETag);
+        }
+        // S3 answers a failed ETag constraint without an object
+        return Optional.ofNullable(notFoundAsException(key, () -> calls.get("get_range", () -> timeS3("get_range", () -> amazonS3.getObject(getObjectRequest)), S3StorageBackend::abort)))
+                .map(S3StorageBackend::toStoredObject);
+    }
+
+    @Override
+    public Optional<StoredObject> getIfChanged(String bucket, String key, String eTag) {
+        GetObjectRequest getObjectRequest = new GetObjectRequest(bucket, key).withNonmatchingETagConstraint(eTag);
+        // S3 answers an object that is not modified without an object
+        return Optional.ofNullable(notFoundAsException(key, () -> calls.get("get_if_changed", () -> timeS3("get_if_changed", () -> amazonS3.getObject(getObjectRequest)), S3StorageBackend::abort)))
+                .map(S3StorageBackend::toStoredObject);
+    }
+
+    @Override
+    public Optional<ObjectMetadata> head(String bucket, String key) {
+        try {
+            return Optional.ofNullable(calls.read("head", () -> timeS3("head", () -> amazonS3.getObjectMetadata(bucket, key)), metadata -> {}));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND.value()) {
+                return empty();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void put(String bucket, String key, ObjectMetadata metadata, InputStream content) {
+        calls.write(() -> timeS3("put", () -> awsS3Template.save(bucket, key, metadata, content)));
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String bucket, String key, ObjectMetadata metadata) {
+        String uploadId = calls.write(() -> timeS3("initiate_multipart", () -> amazonS3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)))).getUploadId();
+        Map<Integer, PartETag> partETags = new ConcurrentSkipListMap<>();
+        return new MultipartUpload() {
+            @Override
+            public void uploadPart(int partNumber, byte[] buffer, int length) {
+                PartETag partETag = calls.write(() -> timeS3("upload_part", () -> amazonS3.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                        .withPartSize(length))))
+                        .getPartETag();
+                partETags.put(partNumber, partETag);
+            }
+
+            @Override
+            public void complete() {
+                calls.write(() -> timeS3("complete_multipart", () -> amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, new ArrayList<>(partETags.values())))));
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not abort multipart upload {} of {}: {}", uploadId, key, e.getMessage());
+                }
+            }
+        };
+    }
+
+    @Override
+    public void delete(String bucket, String key) {
+        calls.write(() -> timeS3("delete", () -> {
+            amazonS3.deleteObject(bucket, key);
+            return null;
+        }));
+    }
+
+    @Override
+    public List<String> list(String bucket, String prefix, int maxKeys) {
+        List<String> keys = new ArrayList<>();
+        ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        ListObjectsV2Result listing;
+        do {
+            listObjectsRequest.setMaxKeys(min(maxKeys - keys.size(), MAX_KEYS_PER_LISTING));
+            listing = calls.read("list", () -> timeS3("list", () -> amazonS3.listObjectsV2(listObjectsRequest)), result -> {});
+            listing.getObjectSummaries().forEach(objectSummary -> keys.add(objectSummary.getKey()));
+            listObjectsRequest.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated() && keys.size() < maxKeys);
+        return keys.size() > maxKeys ? keys.subList(0, maxKeys) : keys;
+    }
+
+    private static <T> T notFoundAsException(String key, Supplier<T> request) {
+        try {
+            return request.get();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND.value()) {
+                throw new ObjectNotFoundException(NAME, key, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the connection of a get answered after its caller gave up on it.
+     */
+    private static void abort(S3Object s3Object) {
+        if (s3Object != null && s3Object.getObjectContent() != null) {
+            s3Object.getObjectContent().abort();
+        }
+    }
+
+    private static StoredObject toStoredObject(S3Object s3Object) {
+        S3ObjectInputStream objectContent = s3Object.getObjectContent();
+        return StoredObject.of(s3Object.getObjectMetadata(), objectContent, objectContent::abort);
+    }
+}
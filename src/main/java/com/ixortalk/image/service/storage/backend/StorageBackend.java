@@ -0,0 +1,84 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The object store images are kept in, selected with {@code ixortalk.image-service.storage.backend}. Objects are
+ * described with S3's {@link ObjectMetadata} whatever the backend, as that is what the rest of the service reads its
+ * content type, validators and user metadata from.
+ */
+public interface StorageBackend {
+
+    /**
+     * Name of the backend, used to label what it serves in the metrics.
+     */
+    String getName();
+
+    /**
+     * @throws ObjectNotFoundException when there is no object at {@code key}
+     */
+    StoredObject get(String bucket, String key) throws IOException;
+
+    /**
+     * Gets the bytes {@code start} to {@code end}, both inclusive, of an object. Returns nothing when
+     * {@code matchingETag} is given and the object no longer has that ETag.
+     *
+     * @throws ObjectNotFoundException when there is no object at {@code key}
+     */
+    Optional<StoredObject> getRange(String bucket, String key, long start, long end, String matchingETag) throws IOException;
+
+    /**
+     * Gets an object unless it still has {@code eTag}, returns nothing when it is unchanged.
+     *
+     * @throws ObjectNotFoundException when there is no object at {@code key}
+     */
+    Optional<StoredObject> getIfChanged(String bucket, String key, String eTag) throws IOException;
+
+    Optional<ObjectMetadata> head(String bucket, String key) throws IOException;
+
+    /**
+     * Stores {@code content}, whose length is to be set in {@code metadata}, replacing any object at {@code key}. The
+     * content is closed once stored, as the S3 client does.
+     */
+    void put(String bucket, String key, ObjectMetadata metadata, InputStream content) throws IOException;
+
+    /**
+     * Starts storing an object of unknown length as a sequence of parts, which may be uploaded concurrently.
+     */
+    MultipartUpload initiateMultipartUpload(String bucket, String key, ObjectMetadata metadata) throws IOException;
+
+    void delete(String bucket, String key) throws IOException;
+
+    /**
+     * Lists the keys starting with {@code prefix} in key order, up to {@code maxKeys} of them.
+     */
+    List<String> list(String bucket, String prefix, int maxKeys) throws IOException;
+}
@@ -0,0 +1,102 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.storage.backend;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * An object read from a {@link StorageBackend}, the content being streamed from the backend. Objects kept in a local
+ * file also expose its path, so they can be written to the client without reading them through the heap.
+ */
+public class StoredObject {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoredObject.class);
+
+    private final ObjectMetadata metadata;
+    private final InputStream content;
+    private final Runnable abort;
+    private final Path path;
+    private final long offset;
+
+    private StoredObject(ObjectMetadata metadata, InputStream content, Runnable abort, Path path, long offset) {
+        this.metadata = metadata;
+        this.content = content;
+        this.abort = abort;
+        this.path = path;
+        this.offset = offset;
+    }
+
+    /**
+     * @param abort releases the content without reading it to the end
+     */
+    public static StoredObject of(ObjectMetadata metadata, InputStream content, Runnable abort) {
+        return new StoredObject(metadata, content, abort, null, 0);
+    }
+
+    /**
+     * @param offset where the object bytes start in the file
+     */
+    public static StoredObject ofFile(ObjectMetadata metadata, InputStream content, Path path, long offset) {
+        return new StoredObject(metadata, content, null, path, offset);
+    }
+
+    public ObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    public Optional<Path> getPath() {
+        return Optional.ofNullable(path);
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Closes the content, aborting it when it was not read to the end.
+     */
+    public void release(boolean fullyRead) {
+        if (!fullyRead && abort != null) {
+            // closing a partially read S3 stream would drain the remainder of the object first
+            abort.run();
+            return;
+        }
+        try {
+            content.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close object stream: {}", e.getMessage());
+        }
+    }
+}
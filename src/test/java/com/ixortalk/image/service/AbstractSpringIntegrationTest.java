@@ -23,9 +23,17 @@
  */
 package com.ixortalk.image.service;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ixortalk.aws.s3.library.config.AwsS3Template;
 import com.ixortalk.image.service.config.IxorTalkConfigProperties;
@@ -52,19 +60,30 @@ import javax.inject.Inject;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
 
+import static com.amazonaws.services.s3.Headers.ETAG;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.jayway.restassured.RestAssured.given;
 import static com.jayway.restassured.config.ObjectMapperConfig.objectMapperConfig;
 import static com.jayway.restassured.config.RestAssuredConfig.config;
+import static java.net.HttpURLConnection.HTTP_CREATED;
 import static java.util.UUID.randomUUID;
 import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.LOCATION;
+import static org.apache.tomcat.util.http.fileupload.FileUploadBase.MULTIPART_FORM_DATA;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.*;
 import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName;
 import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.documentationConfiguration;
 import static org.springframework.restdocs.restassured.operation.preprocess.RestAssuredPreprocessors.modifyUris;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
 
 @SpringBootTest(classes = {ImageServiceApplication.class, OAuth2EmbeddedTestServer.class}, webEnvironment = RANDOM_PORT)
 @ActiveProfiles("test")
@@ -92,9 +111,13 @@ public abstract class AbstractSpringIntegrationTest {
     @MockBean
     protected AwsS3Template awsS3Template;
 
+    @MockBean
+    protected AmazonS3 amazonS3;
+
     public byte[] originalImageBytes;
     public static final String ORIGINAL_IMAGE_FILE_NAME = "original.png";
     public static final String TEST_KEY = "the/key";
+    public static final Date LAST_MODIFIED_DATE = new Date(1546300800000L);
     public String location = TEST_KEY + "/" + randomUUID() + "/original";
 
     @Before
@@ -115,12 +138,66 @@ public abstract class AbstractSpringIntegrationTest {
     public void setupS3Mock() throws IOException {
 
         originalImageBytes = toByteArray(getClass().getClassLoader().getResourceAsStream("test-images/"+ORIGINAL_IMAGE_FILE_NAME));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenReturn(s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+    }
+
+    protected static S3Object s3Object(byte[] content, String contentType) {
         S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(objectMetadata(content, contentType));
+        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+        return s3Object;
+    }
+
+    protected static ObjectMetadata objectMetadata(byte[] content, String contentType) {
         ObjectMetadata objectMetadata = new ObjectMetadata();
-        objectMetadata.setContentType(IMAGE_PNG_VALUE);
-        s3Object.setObjectMetadata(objectMetadata);
-        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(originalImageBytes), null));
-        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenReturn(s3Object);
+        objectMetadata.setContentType(contentType);
+        objectMetadata.setContentLength(content.length);
+        objectMetadata.setHeader(ETAG, md5DigestAsHex(content));
+        objectMetadata.setLastModified(LAST_MODIFIED_DATE);
+        return objectMetadata;
+    }
+
+    protected static AmazonS3Exception s3ObjectNotFound() {
+        AmazonS3Exception amazonS3Exception = new AmazonS3Exception("The provided key does not exist.");
+        amazonS3Exception.setStatusCode(404);
+        return amazonS3Exception;
+    }
+
+    protected static final String MULTIPART_UPLOAD_ID = "the-upload-id";
+
+    /**
+     * Lets the {@link AmazonS3} mock accept multipart uploads, collecting the uploaded parts by part number.
+     */
+    protected void mockMultipartUpload(Map<Integer, byte[]> uploadedParts) {
+        when(amazonS3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(invocation -> {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(MULTIPART_UPLOAD_ID);
+            return result;
+        });
+        when(amazonS3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            uploadedParts.put(request.getPartNumber(), toByteArray(request.getInputStream()));
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+        when(amazonS3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(new CompleteMultipartUploadResult());
+    }
+
+    /**
+     * Uploads the image under {@link #TEST_KEY} as an administrator, returning the location it is stored at.
+     */
+    protected static String uploadImage(String fileName, byte[] content, String contentType) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart("file", fileName, content, contentType)
+                .multiPart("key", TEST_KEY, TEXT_PLAIN_VALUE)
+                .post("/upload")
+                .then()
+                .statusCode(HTTP_CREATED)
+                .extract().header(LOCATION);
     }
 
     protected static UriModifyingOperationPreprocessor staticUris() {
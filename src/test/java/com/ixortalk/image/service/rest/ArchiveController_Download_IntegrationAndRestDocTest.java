@@ -0,0 +1,238 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.jayway.restassured.response.ValidatableResponse;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.google.common.base.Strings.repeat;
+import static com.ixortalk.image.service.rest.ArchiveController.APPLICATION_ZIP_VALUE;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.UUID.randomUUID;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
+import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName;
+import static org.springframework.restdocs.headers.HeaderDocumentation.responseHeaders;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.requestFields;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.download.archive.max-keys=3",
+        "ixortalk.image-service.download.archive.concurrency=2"
+})
+public class ArchiveController_Download_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private final String exportPrefix = "export/" + randomUUID() + "/";
+
+    @Test
+    public void streamsKeysAndPrefixes() throws IOException {
+        String textKey = exportPrefix + "notes.txt";
+        String imageKey = exportPrefix + "image.png";
+        byte[] text = repeat("compressible ", 1000).getBytes();
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(textKey, imageKey));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), textKey)).thenReturn(s3Object(text, TEXT_PLAIN_VALUE));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), imageKey)).thenReturn(s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        InputStream archive = given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .filter(
+                        document("archive/download",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(removeBinaryContent()),
+                                requestFields(
+                                        fieldWithPath("keys").description("Keys to put in the archive."),
+                                        fieldWithPath("prefixes").description("Key prefixes whose keys are to be put in the archive.")
+                                ),
+                                responseHeaders(
+                                        headerWithName(CONTENT_DISPOSITION).description("Suggests a file name for the archive.")
+                                )
+                        )
+                )
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(new ArchiveRequestBody(singletonList(location), singletonList(exportPrefix)))
+                .when()
+                .post("/archive")
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(APPLICATION_ZIP_VALUE)
+                .extract().asInputStream();
+
+        Map<String, ZipEntry> entries = new LinkedHashMap<>();
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(archive)) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                contents.put(zipEntry.getName(), toByteArray(zipInputStream));
+                entries.put(zipEntry.getName(), zipEntry);
+            }
+        }
+        assertThat(entries.keySet()).containsExactly(location, textKey, imageKey);
+        assertThat(contents.get(location)).isEqualTo(originalImageBytes);
+        assertThat(contents.get(textKey)).isEqualTo(text);
+        assertThat(contents.get(imageKey)).isEqualTo(originalImageBytes);
+        assertThat(entries.get(textKey).getCompressedSize()).isLessThan(text.length / 10);
+        assertThat(entries.get(imageKey).getCompressedSize()).isGreaterThanOrEqualTo(originalImageBytes.length);
+        assertThat(entries.get(location).getTime()).isEqualTo(LAST_MODIFIED_DATE.getTime());
+    }
+
+    @Test
+    public void leavesOutMissingKeys() throws IOException {
+        String missingKey = exportPrefix + "missing.png";
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), missingKey)).thenThrow(s3ObjectNotFound());
+
+        InputStream archive = archive(new ArchiveRequestBody(asList(missingKey, location), emptyList()))
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(archive)) {
+            assertThat(zipInputStream.getNextEntry().getName()).isEqualTo(location);
+            assertThat(toByteArray(zipInputStream)).isEqualTo(originalImageBytes);
+            assertThat(zipInputStream.getNextEntry()).isNull();
+        }
+    }
+
+    @Test
+    public void tooManyKeys() {
+        archive(new ArchiveRequestBody(asList("a", "b", "c", "d"), emptyList()))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void tooManyKeysBesidesPrefixes() {
+        archive(new ArchiveRequestBody(asList("a", "b", "c", "d", "e"), singletonList(exportPrefix)))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void keyEscapingTheArchive() {
+        archive(new ArchiveRequestBody(singletonList(exportPrefix + "../../etc/passwd"), emptyList()))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void leavesOutListedKeysEscapingTheArchive() throws IOException {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(exportPrefix + "../escaped.png", "/absolute.png"));
+
+        InputStream archive = archive(new ArchiveRequestBody(singletonList(location), singletonList(exportPrefix)))
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(archive)) {
+            assertThat(zipInputStream.getNextEntry().getName()).isEqualTo(location);
+            assertThat(zipInputStream.getNextEntry()).isNull();
+        }
+    }
+
+    @Test
+    public void prefixWithTooManyKeys() {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(exportPrefix + "a", exportPrefix + "b", exportPrefix + "c"));
+
+        archive(new ArchiveRequestBody(singletonList(location), singletonList(exportPrefix)))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void noKeys() {
+        archive(new ArchiveRequestBody(emptyList(), emptyList()))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void asUser() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(new ArchiveRequestBody(singletonList(location), emptyList()))
+                .when()
+                .post("/archive")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    private static ValidatableResponse archive(ArchiveRequestBody body) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(body)
+                .when()
+                .post("/archive")
+                .then();
+    }
+
+    private static ListObjectsV2Result listing(String... keys) {
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        for (String key : keys) {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setKey(key);
+            listing.getObjectSummaries().add(objectSummary);
+        }
+        return listing;
+    }
+
+    public static class ArchiveRequestBody {
+
+        private final List<String> keys;
+        private final List<String> prefixes;
+
+        ArchiveRequestBody(List<String> keys, List<String> prefixes) {
+            this.keys = keys;
+            this.prefixes = prefixes;
+        }
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public List<String> getPrefixes() {
+            return prefixes;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.jayway.restassured.response.ValidatableResponse;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.List;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static io.prometheus.client.CollectorRegistry.defaultRegistry;
+import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.requestFields;
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.cache.warmup.max-keys=3",
+        "ixortalk.image-service.cache.warmup.concurrency=2"
+})
+public class CacheWarmupController_WarmUp_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    // the disk cache outlives the test run, so keys are unique per run
+    private final String hotPrefix = "hot/" + randomUUID() + "/";
+
+    @Test
+    public void warmsUpKeysAndPrefixes() throws InterruptedException {
+        String hotKey = hotPrefix + "a";
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(hotKey));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), hotKey)).thenReturn(s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+        double loaded = sample("loaded");
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .filter(
+                        document("cache/warmup",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint()),
+                                requestFields(
+                                        fieldWithPath("keys").description("Keys to load into the caches."),
+                                        fieldWithPath("prefixes").description("Key prefixes whose keys are to be loaded into the caches.")
+                                ),
+                                responseFields(
+                                        fieldWithPath("keys").description("The number of keys scheduled to be loaded.")
+                                )
+                        )
+                )
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(new WarmupRequestBody(singletonList(location), singletonList(hotPrefix)))
+                .when()
+                .post("/cache/warmup")
+                .then()
+                .statusCode(HTTP_ACCEPTED)
+                .body("keys", equalTo(2));
+
+        awaitSample("loaded", loaded + 2);
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        given().when().get("/download/" + hotKey).then().statusCode(HTTP_OK);
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), location);
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), hotKey);
+        assertThat(defaultRegistry.getSampleValue("image_service_warmup_pending_keys")).isEqualTo(0);
+    }
+
+    @Test
+    public void leavesCachedKeysAlone() throws InterruptedException {
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        double cached = sample("cached");
+
+        warmUp(new WarmupRequestBody(singletonList(location), asList()))
+                .statusCode(HTTP_ACCEPTED);
+
+        awaitSample("cached", cached + 1);
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), location);
+        awaitWarmedUp();
+    }
+
+    @Test
+    public void listsNoMoreThanMaxKeys() throws InterruptedException {
+        String listedPrefix = "listed/" + randomUUID() + "/";
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(listedPrefix + "a", listedPrefix + "b"));
+
+        warmUp(new WarmupRequestBody(singletonList(location), singletonList(listedPrefix)))
+                .statusCode(HTTP_ACCEPTED)
+                .body("keys", equalTo(3));
+
+        ArgumentCaptor<ListObjectsV2Request> listObjectsRequest = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(amazonS3).listObjectsV2(listObjectsRequest.capture());
+        assertThat(listObjectsRequest.getValue().getPrefix()).isEqualTo(listedPrefix);
+        assertThat(listObjectsRequest.getValue().getMaxKeys()).isEqualTo(2);
+        awaitWarmedUp();
+    }
+
+    @Test
+    public void tooManyKeys() {
+        warmUp(new WarmupRequestBody(asList("a", "b", "c", "d"), singletonList(hotPrefix)))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void noKeys() {
+        warmUp(new WarmupRequestBody(asList(), asList()))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void asUser() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(new WarmupRequestBody(singletonList(location), asList()))
+                .when()
+                .post("/cache/warmup")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    private static ValidatableResponse warmUp(WarmupRequestBody body) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(body)
+                .when()
+                .post("/cache/warmup")
+                .then();
+    }
+
+    private static ListObjectsV2Result listing(String... keys) {
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        for (String key : keys) {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setKey(key);
+            listing.getObjectSummaries().add(objectSummary);
+        }
+        return listing;
+    }
+
+    private static void awaitWarmedUp() throws InterruptedException {
+        for (int i = 0; i < 250 && defaultRegistry.getSampleValue("image_service_warmup_pending_keys") > 0; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static void awaitSample(String result, double expected) throws InterruptedException {
+        for (int i = 0; i < 250 && sample(result) < expected; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(sample(result)).isEqualTo(expected);
+    }
+
+    private static double sample(String result) {
+        Double value = defaultRegistry.getSampleValue("image_service_warmup_keys_total", new String[]{"result"}, new String[]{result});
+        return value == null ? 0 : value;
+    }
+
+    public static class WarmupRequestBody {
+
+        private final List<String> keys;
+        private final List<String> prefixes;
+
+        WarmupRequestBody(List<String> keys, List<String> prefixes) {
+            this.keys = keys;
+            this.prefixes = prefixes;
+        }
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public List<String> getPrefixes() {
+            return prefixes;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.apache.http.HttpHeaders.VARY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName;
+import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders;
+import static org.springframework.restdocs.headers.HeaderDocumentation.responseHeaders;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class ImageController_ContentNegotiation_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private static final String BROWSER_ACCEPT = "image/webp,image/apng,image/*,*/*;q=0.8";
+
+    private String pngEncodingLocation;
+
+    @Before
+    public void setupEncodingLocation() {
+        pngEncodingLocation = location + "@png";
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+    }
+
+    @Test
+    public void servesLosslesslyRecompressedPng() throws IOException {
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation)).thenThrow(s3ObjectNotFound());
+
+        byte[] served = toByteArray(given()
+                .filter(
+                        document("images/get-negotiated",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint(), removeBinaryContent()),
+                                requestHeaders(headerWithName(ACCEPT).description("The image types the client accepts, a more compact encoding is served when the client accepts one.")),
+                                responseHeaders(headerWithName(VARY).description("Always `Accept`, as the served encoding depends on it."))
+                        )
+                )
+                .header(ACCEPT, BROWSER_ACCEPT)
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(IMAGE_PNG_VALUE)
+                .header(VARY, ACCEPT)
+                .extract().asInputStream());
+
+        assertThat(served.length).isLessThanOrEqualTo(originalImageBytes.length);
+        assertSamePixels(ImageIO.read(new ByteArrayInputStream(served)), ImageIO.read(new ByteArrayInputStream(originalImageBytes)));
+
+        ArgumentCaptor<InputStream> argumentCaptor = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(pngEncodingLocation), any(ObjectMetadata.class), argumentCaptor.capture());
+        assertThat(toByteArray(argumentCaptor.getValue())).isEqualTo(served);
+    }
+
+    @Test
+    public void servesStoredEncoding() throws IOException {
+        byte[] storedEncoding = "stored-encoding".getBytes();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation)).thenReturn(s3Object(storedEncoding, IMAGE_PNG_VALUE));
+
+        InputStream inputStream = given()
+                .header(ACCEPT, BROWSER_ACCEPT)
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(storedEncoding);
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+    }
+
+    @Test
+    public void lossyImagesAreNotEncodedLosslessly() throws IOException {
+        byte[] jpegBytes = jpeg();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenReturn(s3Object(jpegBytes, IMAGE_JPEG_VALUE));
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(jpegBytes, IMAGE_JPEG_VALUE));
+
+        InputStream inputStream = given()
+                .header(ACCEPT, BROWSER_ACCEPT)
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(IMAGE_JPEG_VALUE)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(jpegBytes);
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void servesSourceForEncodingThatWasNotSmaller() throws IOException {
+        S3Object sourceMarker = s3Object(new byte[0], null);
+        sourceMarker.getObjectMetadata().addUserMetadata("source-encoding", "true");
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation)).thenReturn(sourceMarker);
+
+        InputStream inputStream = given()
+                .header(ACCEPT, BROWSER_ACCEPT)
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(IMAGE_PNG_VALUE)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void clientsNotAskingForImagesGetStoredBytes() throws IOException {
+        InputStream inputStream = given()
+                .header(ACCEPT, "*/*")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .header(VARY, ACCEPT)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void sixteenBitPngsAreNotQuantized() throws IOException {
+        BufferedImage sixteenBit = new BufferedImage(256, 256, BufferedImage.TYPE_USHORT_GRAY);
+        Random random = new Random(0);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                sixteenBit.getRaster().setSample(x, y, 0, random.nextBoolean() ? 1000 : 1001);
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(sixteenBit, "png", png);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenReturn(s3Object(png.toByteArray(), IMAGE_PNG_VALUE));
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(png.toByteArray(), IMAGE_PNG_VALUE));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), pngEncodingLocation)).thenThrow(s3ObjectNotFound());
+
+        InputStream inputStream = given()
+                .header(ACCEPT, BROWSER_ACCEPT)
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(IMAGE_PNG_VALUE)
+                .extract().asInputStream();
+
+        BufferedImage served = ImageIO.read(inputStream);
+        assertThat(served.getColorModel().getComponentSize(0)).isEqualTo(16);
+        assertThat(served.getRaster().getPixels(0, 0, 256, 256, (int[]) null)).isEqualTo(sixteenBit.getRaster().getPixels(0, 0, 256, 256, (int[]) null));
+    }
+
+    @Test
+    public void encodingsThatAreNotConfiguredAreNotFound() throws IOException {
+        given()
+                .when()
+                .get("/download/" + location + "@jpeg")
+                .then()
+                .statusCode(HTTP_NOT_FOUND);
+
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    private static byte[] jpeg() throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        int width = expected.getWidth();
+        for (int y = 0; y < expected.getHeight(); y++) {
+            assertThat(actual.getRGB(0, y, width, 1, null, 0, width)).isEqualTo(expected.getRGB(0, y, width, 1, null, 0, width));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/**
+ * Keeps the memory cache to images smaller than the test image, so it is cached on disk only.
+ */
+@TestPropertySource(properties = "ixortalk.image-service.cache.memory.max-entry-bytes=65536")
+public class ImageController_DiskCache_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void servesLargeImagesFromDiskCache() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            InputStream inputStream = given()
+                    .when()
+                    .get("/download/" + location)
+                    .then()
+                    .statusCode(HTTP_OK)
+                    .header(CONTENT_LENGTH, String.valueOf(originalImageBytes.length))
+                    .extract().asInputStream();
+            assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        }
+
+        verify(awsS3Template).get(ixorTalkConfigProperties.getBucket(), location);
+        verifyNoMoreInteractions(awsS3Template);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.*;
+import static java.nio.file.Files.exists;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.copyOfRange;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.apache.http.HttpHeaders.CONTENT_RANGE;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.LOCATION;
+import static org.apache.http.HttpHeaders.RANGE;
+import static org.apache.tomcat.util.http.fileupload.FileUploadBase.MULTIPART_FORM_DATA;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.storage.backend=filesystem",
+        "ixortalk.image-service.storage.filesystem.root=" + ImageController_FileSystemStorage_IntegrationAndRestDocTest.STORAGE_ROOT
+})
+public class ImageController_FileSystemStorage_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    static final String STORAGE_ROOT = "target/image-storage";
+
+    @Test
+    public void servesUploadedImageFromTheFileSystem() throws IOException {
+        String location = upload();
+
+        byte[] downloaded = toByteArray(
+                given()
+                        .when()
+                        .get("/download/" + location)
+                        .then()
+                        .statusCode(HTTP_OK)
+                        .header(CONTENT_TYPE, IMAGE_PNG_VALUE)
+                        .header(ETAG, "\"" + md5DigestAsHex(originalImageBytes) + "\"")
+                        .extract().asInputStream());
+
+        assertThat(downloaded).isEqualTo(originalImageBytes);
+        assertThat(exists(Paths.get(STORAGE_ROOT, ixorTalkConfigProperties.getBucket(), location))).isTrue();
+        verifyZeroInteractions(awsS3Template, amazonS3);
+    }
+
+    @Test
+    public void servesRangeFromTheFileSystem() throws IOException {
+        String location = upload();
+
+        byte[] downloaded = toByteArray(
+                given()
+                        .header(RANGE, "bytes=100-199")
+                        .when()
+                        .get("/download/" + location)
+                        .then()
+                        .statusCode(HTTP_PARTIAL)
+                        .header(CONTENT_RANGE, "bytes 100-199/" + originalImageBytes.length)
+                        .extract().asInputStream());
+
+        assertThat(downloaded).isEqualTo(copyOfRange(originalImageBytes, 100, 200));
+    }
+
+    @Test
+    public void storesStreamedUploadInParts() throws IOException {
+        byte[] largeImage = copyOf(originalImageBytes, ixorTalkConfigProperties.getUpload().getPartSizeBytes() * 2 + 100);
+
+        String location =
+                given()
+                        .auth().preemptive().oauth2(adminToken().getValue())
+                        .contentType(IMAGE_PNG_VALUE)
+                        .queryParam("key", TEST_KEY)
+                        .body(largeImage)
+                        .post("/upload/stream")
+                        .then()
+                        .statusCode(HTTP_CREATED)
+                        .extract().header(LOCATION);
+
+        byte[] downloaded = toByteArray(given().when().get("/download/" + location).then().statusCode(HTTP_OK).extract().asInputStream());
+        assertThat(downloaded).isEqualTo(largeImage);
+    }
+
+    @Test
+    public void storesRenditionNextToTheOriginal() {
+        String location = upload();
+        String renditionLocation = substringBeforeLast(location, "/") + "/thumb-128";
+
+        given().when().get("/download/" + renditionLocation).then().statusCode(HTTP_OK);
+
+        assertThat(exists(Paths.get(STORAGE_ROOT, ixorTalkConfigProperties.getBucket(), renditionLocation))).isTrue();
+    }
+
+    @Test
+    public void missingImage() {
+        given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_NOT_FOUND);
+    }
+
+    @Test
+    public void keyOutsideOfTheBucketIsRejected() {
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(IMAGE_PNG_VALUE)
+                .queryParam("key", "../../outside")
+                .body(originalImageBytes)
+                .post("/upload/stream")
+                .then()
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    private String upload() {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart("file", ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, IMAGE_PNG_VALUE)
+                .multiPart("key", TEST_KEY, TEXT_PLAIN_VALUE)
+                .post("/upload")
+                .then()
+                .statusCode(HTTP_CREATED)
+                .extract().header(LOCATION);
+    }
+}
@@ -24,23 +24,53 @@
 package com.ixortalk.image.service.rest;
 
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.ixortalk.image.service.AbstractSpringIntegrationTest;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
 import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.google.common.hash.Hashing.sha256;
+import static com.ixortalk.image.service.storage.ContentAddressedStore.BLOB_METADATA;
 import static com.jayway.restassured.RestAssured.given;
+import static io.prometheus.client.CollectorRegistry.defaultRegistry;
+import static java.lang.System.currentTimeMillis;
 import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.copyOfRange;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.ACCEPT_RANGES;
+import static org.apache.http.HttpHeaders.CACHE_CONTROL;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.http.HttpHeaders.CONTENT_RANGE;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
+import static org.apache.http.HttpHeaders.RANGE;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName;
 import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders;
 import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
 import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
 
 public class ImageController_GetImage_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
 
@@ -59,7 +89,12 @@ public class ImageController_GetImage_IntegrationAndRestDocTest extends Abstract
                 .when()
                 .get("/download/"+ location)
                 .then()
-                .statusCode(HTTP_OK).extract().asInputStream();
+                .statusCode(HTTP_OK)
+                .header(CONTENT_LENGTH, String.valueOf(originalImageBytes.length))
+                .header(ETAG, "\"" + md5DigestAsHex(originalImageBytes) + "\"")
+                .header(LAST_MODIFIED, "Tue, 01 Jan 2019 00:00:00 GMT")
+                .header(CACHE_CONTROL, "max-age=31536000, public, immutable")
+                .extract().asInputStream();
 
         verify(awsS3Template)
                 .get(
@@ -71,6 +106,273 @@ public class ImageController_GetImage_IntegrationAndRestDocTest extends Abstract
         assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
     }
 
+    @Test
+    public void servesRepeatedRequestsFromCache() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            InputStream inputStream = given()
+                    .when()
+                    .get("/download/" + location)
+                    .then()
+                    .statusCode(HTTP_OK)
+                    .extract().asInputStream();
+            assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        }
+
+        verify(awsS3Template).get(ixorTalkConfigProperties.getBucket(), location);
+        verifyNoMoreInteractions(awsS3Template);
+    }
+
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        CountDownLatch allJoined = new CountDownLatch(1);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            allJoined.await(10, SECONDS);
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+        double coalescedBefore = coalescedDownloads();
+
+        ExecutorService clients = newFixedThreadPool(5);
+        try {
+            List<Future<byte[]>> downloads = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                downloads.add(clients.submit(() -> toByteArray(given().when().get("/download/" + location).then().statusCode(HTTP_OK).extract().asInputStream())));
+            }
+            // the single backend call only returns once the other four requests wait for it
+            long deadline = currentTimeMillis() + 10_000;
+            while (coalescedDownloads() - coalescedBefore < 4 && currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            allJoined.countDown();
+            for (Future<byte[]> download : downloads) {
+                assertThat(download.get()).isEqualTo(originalImageBytes);
+            }
+        } finally {
+            clients.shutdown();
+        }
+
+        verify(awsS3Template).get(ixorTalkConfigProperties.getBucket(), location);
+        assertThat(coalescedDownloads() - coalescedBefore).isEqualTo(4);
+    }
+
+    @Test
+    public void coalescedRequestsFailWithALeaderThatFailsWithAnError() throws Exception {
+        CountDownLatch allJoined = new CountDownLatch(1);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            allJoined.await(10, SECONDS);
+            throw new NoClassDefFoundError("failing leader");
+        });
+        double coalescedBefore = coalescedDownloads();
+
+        ExecutorService clients = newFixedThreadPool(3);
+        try {
+            List<Future<Integer>> downloads = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                downloads.add(clients.submit(() -> given().when().get("/download/" + location).then().extract().statusCode()));
+            }
+            long deadline = currentTimeMillis() + 10_000;
+            while (coalescedDownloads() - coalescedBefore < 2 && currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            allJoined.countDown();
+            for (Future<Integer> download : downloads) {
+                assertThat(download.get(10, SECONDS)).isEqualTo(HTTP_INTERNAL_ERROR);
+            }
+        } finally {
+            clients.shutdown();
+        }
+
+        verify(awsS3Template).get(ixorTalkConfigProperties.getBucket(), location);
+    }
+
+    private static double coalescedDownloads() {
+        return sample("image_service_coalesced_requests_total", "operation", "download");
+    }
+
+    @Test
+    public void recordsS3LatencyAndServedBytes() throws IOException {
+        double s3Gets = sample("image_service_s3_request_duration_seconds_count", "operation", "get");
+        double servedBytes = sample("image_service_served_bytes_total", "tier", "memory");
+        double errors = sample("image_service_errors_total", "cause", "s3_not_found");
+        String missingLocation = TEST_KEY + "/" + randomUUID() + "/original";
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), missingLocation)).thenThrow(s3ObjectNotFound());
+
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        given().when().get("/download/" + missingLocation).then().statusCode(HTTP_NOT_FOUND);
+
+        assertThat(sample("image_service_s3_request_duration_seconds_count", "operation", "get")).isEqualTo(s3Gets + 2);
+        assertThat(sample("image_service_served_bytes_total", "tier", "memory")).isEqualTo(servedBytes + originalImageBytes.length);
+        assertThat(sample("image_service_errors_total", "cause", "s3_not_found")).isEqualTo(errors + 1);
+    }
+
+    private static double sample(String name, String labelName, String labelValue) {
+        Double value = defaultRegistry.getSampleValue(name, new String[]{labelName}, new String[]{labelValue});
+        return value == null ? 0 : value;
+    }
+
+    @Test
+    public void fetchesFromS3OffTheRequestThread() throws IOException {
+        AtomicReference<String> fetchingThread = new AtomicReference<>();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            fetchingThread.set(Thread.currentThread().getName());
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+
+        InputStream inputStream = given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        // the download runs on a download thread, which hands the S3 call to the pool it is timed out on
+        assertThat(fetchingThread.get()).startsWith("s3-call-");
+    }
+
+    @Test
+    public void servesDeduplicatedImageFromItsBlobEvenWhenDeduplicationIsDisabled() throws IOException {
+        String pointer = TEST_KEY + "/" + randomUUID() + "/original";
+        String blobDirectory = "blobs/" + sha256().hashBytes(originalImageBytes);
+        ObjectMetadata pointerMetadata = objectMetadata(new byte[0], IMAGE_PNG_VALUE);
+        pointerMetadata.addUserMetadata(BLOB_METADATA, blobDirectory);
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), pointer)).thenReturn(pointerMetadata);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), blobDirectory + "/original")).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        InputStream inputStream = given()
+                .when()
+                .get("/download/" + pointer)
+                .then()
+                .statusCode(HTTP_OK)
+                .header(CACHE_CONTROL, "max-age=31536000, public, immutable")
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), pointer);
+    }
+
+    @Test
+    public void notModified() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+
+        given()
+                .filter(
+                        document("images/get-not-modified",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint()),
+                                requestHeaders(headerWithName(IF_NONE_MATCH).description("The `ETag` of the copy held by the client, answered with `304 Not Modified` when it is still current."))
+                        )
+                )
+                .header(IF_NONE_MATCH, "\"" + md5DigestAsHex(originalImageBytes) + "\"")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_NOT_MODIFIED)
+                .header(CACHE_CONTROL, "max-age=31536000, public, immutable");
+
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+    }
+
+    @Test
+    public void modifiedSinceConditionalRequest() throws IOException {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+
+        InputStream inputStream = given()
+                .header(IF_NONE_MATCH, "\"outdated\"")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void singleRange() throws IOException {
+        mockRangedGets();
+
+        InputStream inputStream = given()
+                .filter(
+                        document("images/get-range",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint(), removeBinaryContent()),
+                                requestHeaders(headerWithName(RANGE).description("One or more byte ranges to download, answered with `206 Partial Content`."))
+                        )
+                )
+                .header(RANGE, "bytes=100-199")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_PARTIAL)
+                .header(CONTENT_RANGE, "bytes 100-199/" + originalImageBytes.length)
+                .header(CONTENT_LENGTH, "100")
+                .header(ACCEPT_RANGES, "bytes")
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(copyOfRange(originalImageBytes, 100, 200));
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+    }
+
+    @Test
+    public void multipleRanges() {
+        mockRangedGets();
+
+        String body = given()
+                .header(RANGE, "bytes=0-9,-10")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_PARTIAL)
+                .contentType(startsWith("multipart/byteranges; boundary="))
+                .extract().asString();
+
+        assertThat(body)
+                .contains(CONTENT_RANGE + ": bytes 0-9/" + originalImageBytes.length)
+                .contains(CONTENT_RANGE + ": bytes " + (originalImageBytes.length - 10) + "-" + (originalImageBytes.length - 1) + "/" + originalImageBytes.length);
+        verify(amazonS3, times(2)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void endsRangesWhenImageChanges() {
+        mockRangedGets();
+        when(amazonS3.getObject(any(GetObjectRequest.class)))
+                .thenAnswer(invocation -> s3Object(copyOfRange(originalImageBytes, 0, 10), IMAGE_PNG_VALUE))
+                .thenReturn(null);
+
+        String body = given()
+                .header(RANGE, "bytes=0-9,-10")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_PARTIAL)
+                .extract().asString();
+
+        assertThat(body)
+                .contains(CONTENT_RANGE + ": bytes 0-9/" + originalImageBytes.length)
+                .doesNotEndWith("--\r\n");
+    }
+
+    @Test
+    public void unsatisfiableRange() {
+        mockRangedGets();
+
+        given()
+                .header(RANGE, "bytes=" + originalImageBytes.length + "-")
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(416)
+                .header(CONTENT_RANGE, "bytes */" + originalImageBytes.length);
+    }
+
+    private void mockRangedGets() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            long[] range = invocation.<GetObjectRequest>getArgument(0).getRange();
+            return s3Object(copyOfRange(originalImageBytes, (int) range[0], (int) range[1] + 1), IMAGE_PNG_VALUE);
+        });
+    }
+
     @Test
     public void wrongKey() {
         AmazonS3Exception amazonS3Exception = new AmazonS3Exception("The provided key does not exist.");
@@ -89,7 +391,8 @@ public class ImageController_GetImage_IntegrationAndRestDocTest extends Abstract
                 )
                 .get("/download/" + location)
                 .then()
-                .statusCode(HTTP_NOT_FOUND);
+                .statusCode(HTTP_NOT_FOUND)
+                .header(CACHE_CONTROL, containsString("no-store"));
     }
 
     @Test
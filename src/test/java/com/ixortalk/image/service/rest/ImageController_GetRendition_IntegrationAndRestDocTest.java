@@ -0,0 +1,119 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class ImageController_GetRendition_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private String thumbnailLocation;
+
+    @Before
+    public void setupRenditionLocation() {
+        thumbnailLocation = substringBeforeLast(location, "/") + "/thumb-128";
+    }
+
+    @Test
+    public void rendersMissingRendition() throws IOException {
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), thumbnailLocation)).thenThrow(s3ObjectNotFound());
+
+        InputStream inputStream = given()
+                .filter(
+                        document("images/get-rendition",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint(), removeBinaryContent())
+                        )
+                )
+                .when()
+                .get("/download/" + thumbnailLocation)
+                .then()
+                .statusCode(HTTP_OK)
+                .contentType(IMAGE_PNG_VALUE)
+                .extract().asInputStream();
+
+        BufferedImage thumbnail = ImageIO.read(inputStream);
+        assertThat(thumbnail.getWidth()).isEqualTo(128);
+        assertThat(thumbnail.getHeight()).isEqualTo(128);
+
+        ArgumentCaptor<InputStream> argumentCaptor = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(thumbnailLocation), any(ObjectMetadata.class), argumentCaptor.capture());
+        assertThat(ImageIO.read(argumentCaptor.getValue()).getWidth()).isEqualTo(128);
+    }
+
+    @Test
+    public void servesStoredRendition() throws IOException {
+        byte[] storedThumbnail = "stored-thumbnail".getBytes();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), thumbnailLocation)).thenReturn(s3Object(storedThumbnail, IMAGE_PNG_VALUE));
+
+        InputStream inputStream = given()
+                .when()
+                .get("/download/" + thumbnailLocation)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(storedThumbnail);
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void unconfiguredVariant() {
+        String unconfiguredLocation = substringBeforeLast(location, "/") + "/w-123";
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), unconfiguredLocation)).thenThrow(s3ObjectNotFound());
+
+        given()
+                .when()
+                .get("/download/" + unconfiguredLocation)
+                .then()
+                .statusCode(HTTP_NOT_FOUND);
+
+        verify(awsS3Template, never()).get(ixorTalkConfigProperties.getBucket(), location);
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+}
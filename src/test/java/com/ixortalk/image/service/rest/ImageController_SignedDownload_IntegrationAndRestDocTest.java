@@ -0,0 +1,241 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.Collections.singletonList;
+import static java.util.UUID.randomUUID;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.StringUtils.substringAfter;
+import static org.apache.commons.lang.StringUtils.substringBefore;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.apache.http.HttpHeaders.CACHE_CONTROL;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields;
+import static org.springframework.restdocs.request.RequestDocumentation.parameterWithName;
+import static org.springframework.restdocs.request.RequestDocumentation.requestParameters;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.download.signing.required=true",
+        "ixortalk.image-service.download.signing.secret=the-signing-secret"
+})
+public class ImageController_SignedDownload_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void servesSignedDownload() throws IOException {
+        String signedUrl =
+                given()
+                        .auth().preemptive().oauth2(adminToken().getValue())
+                        .filter(
+                                document("images/sign",
+                                        preprocessRequest(staticUris()),
+                                        preprocessResponse(prettyPrint()),
+                                        requestParameters(
+                                                parameterWithName("expiresIn").description("Number of seconds the URL remains valid, optional.")
+                                        ),
+                                        responseFields(
+                                                fieldWithPath("url").description("The signed download URL."),
+                                                fieldWithPath("expires").description("The epoch second from which the URL is rejected.")
+                                        )
+                                )
+                        )
+                        .queryParam("expiresIn", 60)
+                        .when()
+                        .get("/sign/" + location)
+                        .then()
+                        .statusCode(HTTP_OK)
+                        .extract().path("url");
+
+        assertThat(signedUrl).startsWith("https://" + HOST_IXORTALK_COM + contextPath + "/download/" + location + "?");
+        byte[] downloaded = toByteArray(given().when().get(pathOf(signedUrl)).then().statusCode(HTTP_OK).extract().asInputStream());
+        assertThat(downloaded).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void signedDownloadOfKeyContainingTheDownloadPath() throws IOException {
+        String key = TEST_KEY + "/download/" + randomUUID() + "/original";
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), key)).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        String signedUrl = sign(key, 60);
+
+        assertThat(signedUrl).startsWith("https://" + HOST_IXORTALK_COM + contextPath + "/download/" + key + "?");
+        byte[] downloaded = toByteArray(given().when().get(pathOf(signedUrl)).then().statusCode(HTTP_OK).extract().asInputStream());
+        assertThat(downloaded).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void rejectsUnsignedDownload() {
+        given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void rejectsSignatureOfAnotherVariant() {
+        String signedUrl = sign(location, 60);
+
+        given()
+                .when()
+                .get("/download/" + location.replace("/original", "/thumb-128") + "?" + substringAfter(signedUrl, "?"))
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void rejectsTamperedParameters() {
+        String signedUrl = sign(location, 60);
+
+        given().when().get(pathOf(signedUrl) + "&width=2048").then().statusCode(HTTP_FORBIDDEN);
+        given().when().get(pathOf(signedUrl).replaceAll("expires=[0-9]+", "expires=9999999999")).then().statusCode(HTTP_FORBIDDEN);
+        given().when().get(substringBefore(pathOf(signedUrl), "signature=") + "signature=AAAA").then().statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void rejectsExpiredSignature() throws InterruptedException {
+        String signedUrl = sign(location, 1);
+
+        Thread.sleep(2000);
+
+        given().when().get(pathOf(signedUrl)).then().statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void capsCacheControlAtExpiry() {
+        String signedUrl = sign(location, 60);
+
+        given()
+                .when()
+                .get(pathOf(signedUrl))
+                .then()
+                .statusCode(HTTP_OK)
+                .header(CACHE_CONTROL, anyOf(startsWith("max-age=60,"), startsWith("max-age=59,")));
+    }
+
+    @Test
+    public void signingRequiresAdmin() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .when()
+                .get("/sign/" + location)
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void signsSpriteUrl() {
+        String reference = substringBeforeLast(location, "/");
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), reference + "/thumb-128")).thenThrow(s3ObjectNotFound());
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body("{\"references\": [\"" + reference + "\"], \"tileSize\": 64}")
+                .when()
+                .post("/sprites")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("url", allOf(containsString("/download/sprites/"), containsString("expires="), containsString("signature=")));
+    }
+
+    @Test
+    public void spritesRequireAdmin() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body("{\"references\": [\"" + substringBeforeLast(location, "/") + "\"], \"tileSize\": 64}")
+                .when()
+                .post("/sprites")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+
+    @Test
+    public void metadataRequiresSignature() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        given().when().get("/metadata/" + location).then().statusCode(HTTP_FORBIDDEN);
+        given().when().get("/metadata/" + substringAfter(pathOf(sign(location, 60)), "/download/")).then().statusCode(HTTP_OK);
+        given().auth().preemptive().oauth2(adminToken().getValue()).when().get("/metadata/" + location).then().statusCode(HTTP_OK);
+    }
+
+    @Test
+    public void bulkMetadataRequiresAdmin() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(singletonList(location))
+                .when()
+                .post("/metadata")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(singletonList(location))
+                .when()
+                .post("/metadata")
+                .then()
+                .statusCode(HTTP_OK);
+    }
+
+    private static String sign(String key, int expiresInSeconds) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .queryParam("expiresIn", expiresInSeconds)
+                .when()
+                .get("/sign/" + key)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().path("url");
+    }
+
+    private String pathOf(String signedUrl) {
+        return substringAfter(signedUrl, contextPath);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static com.jayway.restassured.RestAssured.given;
+import static io.prometheus.client.CollectorRegistry.defaultRegistry;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.CACHE_CONTROL;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.cache.disk.enabled=false",
+        "ixortalk.image-service.cache.memory.ttl-seconds=1",
+        "ixortalk.image-service.cache.memory.stale-while-revalidate-seconds=60",
+        "ixortalk.image-service.cache.memory.stale-if-error-seconds=120"
+})
+public class ImageController_StaleWhileRevalidate_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void sendsStaleDirectivesInCacheControl() {
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), TEST_KEY)).thenReturn(s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        given()
+                .when()
+                .get("/download/" + TEST_KEY)
+                .then()
+                .statusCode(HTTP_OK)
+                .header(CACHE_CONTROL, "max-age=1, stale-if-error=120, stale-while-revalidate=60");
+    }
+
+    @Test
+    public void servesStaleImageAndOnlyExtendsTtlWhenUnchanged() throws IOException, InterruptedException {
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        expire();
+        double staleServed = sample("image_service_stale_served_total", "reason", "revalidate");
+        double unchanged = sample("image_service_cache_revalidations_total", "result", "unchanged");
+
+        assertThat(download()).isEqualTo(originalImageBytes);
+
+        awaitSample("image_service_cache_revalidations_total", "result", "unchanged", unchanged + 1);
+        ArgumentCaptor<GetObjectRequest> getObjectRequest = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(amazonS3).getObject(getObjectRequest.capture());
+        assertThat(getObjectRequest.getValue().getKey()).isEqualTo(location);
+        assertThat(getObjectRequest.getValue().getNonmatchingETagConstraints()).containsExactly(md5DigestAsHex(originalImageBytes));
+
+        assertThat(download()).isEqualTo(originalImageBytes);
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), location);
+        assertThat(sample("image_service_stale_served_total", "reason", "revalidate")).isEqualTo(staleServed + 1);
+    }
+
+    @Test
+    public void revalidationReplacesChangedImage() throws IOException, InterruptedException {
+        byte[] changedImageBytes = "changed".getBytes();
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenReturn(s3Object(changedImageBytes, IMAGE_PNG_VALUE));
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        expire();
+        double changed = sample("image_service_cache_revalidations_total", "result", "changed");
+
+        assertThat(download()).isEqualTo(originalImageBytes);
+
+        awaitSample("image_service_cache_revalidations_total", "result", "changed", changed + 1);
+        assertThat(download()).isEqualTo(changedImageBytes);
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), location);
+    }
+
+    @Test
+    public void revalidatesOncePerImage() throws IOException, InterruptedException {
+        CountDownLatch revalidating = new CountDownLatch(1);
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            revalidating.await(5, SECONDS);
+            return null;
+        });
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        expire();
+        double unchanged = sample("image_service_cache_revalidations_total", "result", "unchanged");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(download()).isEqualTo(originalImageBytes);
+        }
+        revalidating.countDown();
+
+        awaitSample("image_service_cache_revalidations_total", "result", "unchanged", unchanged + 1);
+        verify(amazonS3, times(1)).getObject(any(GetObjectRequest.class));
+    }
+
+    private byte[] download() throws IOException {
+        return toByteArray(given().when().get("/download/" + location).then().statusCode(HTTP_OK).extract().asInputStream());
+    }
+
+    private void expire() throws InterruptedException {
+        Thread.sleep(SECONDS.toMillis(ixorTalkConfigProperties.getCache().getMemory().getTtlSeconds()) + 100);
+    }
+
+    private static void awaitSample(String name, String labelName, String labelValue, double expected) throws InterruptedException {
+        for (int i = 0; i < 250 && sample(name, labelName, labelValue) < expected; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(sample(name, labelName, labelValue)).isEqualTo(expected);
+    }
+
+    private static double sample(String name, String labelName, String labelValue) {
+        Double value = defaultRegistry.getSampleValue(name, new String[]{labelName}, new String[]{labelValue});
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.ixortalk.image.service.storage.backend.CircuitBreaker;
+import com.ixortalk.image.service.storage.backend.S3StorageBackend;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jayway.restassured.RestAssured.given;
+import static io.prometheus.client.CollectorRegistry.defaultRegistry;
+import static java.net.HttpURLConnection.*;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.CACHE_CONTROL;
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+import static org.apache.http.HttpHeaders.WARNING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.cache.disk.enabled=false",
+        "ixortalk.image-service.cache.memory.ttl-seconds=1",
+        "ixortalk.image-service.cache.memory.stale-if-error-seconds=60",
+        "ixortalk.image-service.storage.s3.timeout-millis=500",
+        "ixortalk.image-service.storage.s3.circuit-breaker.failure-threshold=2",
+        "ixortalk.image-service.storage.s3.circuit-breaker.open-millis=500",
+        "ixortalk.image-service.storage.s3.hedge.enabled=true",
+        "ixortalk.image-service.storage.s3.hedge.percentile=0.5",
+        "ixortalk.image-service.storage.s3.hedge.min-delay-millis=50",
+        "ixortalk.image-service.storage.s3.hedge.min-samples=10"
+})
+public class ImageController_StorageResilience_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private static final long SLOW_MILLIS = 2000;
+
+    @Inject
+    private S3StorageBackend s3StorageBackend;
+
+    @After
+    public void resetCircuitBreaker() {
+        s3StorageBackend.getCircuitBreaker().ifPresent(CircuitBreaker::reset);
+    }
+
+    @Test
+    public void slowGetTimesOut() {
+        double timeouts = sample("image_service_storage_timeouts_total", "operation", "get");
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            Thread.sleep(SLOW_MILLIS);
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+
+        given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_UNAVAILABLE)
+                .header(RETRY_AFTER, "1")
+                .header(CACHE_CONTROL, containsString("no-store"));
+
+        assertThat(sample("image_service_storage_timeouts_total", "operation", "get")).isEqualTo(timeouts + 1);
+    }
+
+    @Test
+    public void circuitBreakerFailsFastOnceOpen() {
+        double rejected = sample("image_service_circuit_breaker_rejected_total", "backend", S3StorageBackend.NAME);
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenThrow(s3ServerError());
+
+        given().when().get("/download/" + location).then().statusCode(HTTP_INTERNAL_ERROR);
+        given().when().get("/download/" + location).then().statusCode(HTTP_INTERNAL_ERROR);
+        given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_UNAVAILABLE)
+                .header(RETRY_AFTER, "1");
+
+        verify(awsS3Template, times(2)).get(ixorTalkConfigProperties.getBucket(), location);
+        assertThat(sample("image_service_circuit_breaker_state", "backend", S3StorageBackend.NAME)).isEqualTo(CircuitBreaker.State.OPEN.ordinal());
+        assertThat(sample("image_service_circuit_breaker_rejected_total", "backend", S3StorageBackend.NAME)).isEqualTo(rejected + 1);
+    }
+
+    @Test
+    public void circuitBreakerClosesAfterSuccessfulTrialCall() throws InterruptedException {
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location))
+                .thenThrow(s3ServerError())
+                .thenThrow(s3ServerError())
+                .thenReturn(s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+        given().when().get("/download/" + location).then().statusCode(HTTP_INTERNAL_ERROR);
+        given().when().get("/download/" + location).then().statusCode(HTTP_INTERNAL_ERROR);
+
+        Thread.sleep(ixorTalkConfigProperties.getStorage().getS3().getCircuitBreaker().getOpenMillis() + 100);
+
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        assertThat(sample("image_service_circuit_breaker_state", "backend", S3StorageBackend.NAME)).isEqualTo(CircuitBreaker.State.CLOSED.ordinal());
+    }
+
+    @Test
+    public void missingKeysDoNotOpenCircuitBreaker() {
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenThrow(s3ObjectNotFound());
+
+        for (int i = 0; i < 3; i++) {
+            given().when().get("/download/" + location).then().statusCode(HTTP_NOT_FOUND);
+        }
+
+        verify(awsS3Template, times(3)).get(ixorTalkConfigProperties.getBucket(), location);
+        assertThat(s3StorageBackend.getCircuitBreaker().get().getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void slowGetIsHedged() throws IOException {
+        when(awsS3Template.get(eq(ixorTalkConfigProperties.getBucket()), startsWith("warm-up/")))
+                .thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+        for (int i = 0; i < 10; i++) {
+            given().when().get("/download/warm-up/" + i).then().statusCode(HTTP_OK);
+        }
+        double hedged = sample("image_service_hedged_requests_total", "operation", "get");
+        double hedgeWins = sample("image_service_hedge_wins_total", "operation", "get");
+        AtomicInteger attempts = new AtomicInteger();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            if (attempts.getAndIncrement() == 0) {
+                Thread.sleep(SLOW_MILLIS);
+            }
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+
+        byte[] downloaded = toByteArray(given().when().get("/download/" + location).then().statusCode(HTTP_OK).extract().asInputStream());
+
+        assertThat(downloaded).isEqualTo(originalImageBytes);
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(sample("image_service_hedged_requests_total", "operation", "get")).isEqualTo(hedged + 1);
+        assertThat(sample("image_service_hedge_wins_total", "operation", "get")).isEqualTo(hedgeWins + 1);
+    }
+
+    @Test
+    public void servesStaleImageWhenStorageIsUnavailable() throws IOException, InterruptedException {
+        given().when().get("/download/" + location).then().statusCode(HTTP_OK);
+        Thread.sleep(ixorTalkConfigProperties.getCache().getMemory().getTtlSeconds() * 1000 + 100);
+        double staleServed = sample("image_service_stale_served_total", "reason", "error");
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            Thread.sleep(SLOW_MILLIS);
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+
+        byte[] downloaded = toByteArray(
+                given()
+                        .when()
+                        .get("/download/" + location)
+                        .then()
+                        .statusCode(HTTP_OK)
+                        .header(WARNING, "111 - \"Revalidation Failed\"")
+                        .extract().asInputStream());
+
+        assertThat(downloaded).isEqualTo(originalImageBytes);
+        assertThat(sample("image_service_stale_served_total", "reason", "error")).isEqualTo(staleServed + 1);
+    }
+
+    private static AmazonS3Exception s3ServerError() {
+        AmazonS3Exception amazonS3Exception = new AmazonS3Exception("We encountered an internal error. Please try again.");
+        amazonS3Exception.setStatusCode(HTTP_INTERNAL_ERROR);
+        return amazonS3Exception;
+    }
+
+    private static double sample(String name, String labelName, String labelValue) {
+        Double value = defaultRegistry.getSampleValue(name, new String[]{labelName}, new String[]{labelValue});
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+@TestPropertySource(properties = "ixortalk.image-service.download.async.enabled=false")
+public class ImageController_SyncDownload_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void servesOnTheRequestThreadWhenAsyncIsDisabled() throws IOException {
+        AtomicReference<String> fetchingThread = new AtomicReference<>();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> {
+            fetchingThread.set(Thread.currentThread().getName());
+            return s3Object(originalImageBytes, IMAGE_PNG_VALUE);
+        });
+
+        InputStream inputStream = given()
+                .when()
+                .get("/download/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .extract().asInputStream();
+
+        assertThat(toByteArray(inputStream)).isEqualTo(originalImageBytes);
+        assertThat(fetchingThread.get()).doesNotStartWith("download-");
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.Arrays.asList;
+import static java.util.Collections.nCopies;
+import static java.util.UUID.randomUUID;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class MetadataController_GetMetadata_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private BufferedImage originalImage;
+
+    @Before
+    public void readOriginalImage() throws IOException {
+        originalImage = ImageIO.read(new ByteArrayInputStream(originalImageBytes));
+    }
+
+    @Test
+    public void success() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(withImageInfo(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE)));
+
+        given()
+                .filter(
+                        document("metadata/get",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint()),
+                                responseFields(
+                                        fieldWithPath("width").description("The width of the image in pixels."),
+                                        fieldWithPath("height").description("The height of the image in pixels."),
+                                        fieldWithPath("format").description("The image format, e.g. `png` or `jpeg`."),
+                                        fieldWithPath("contentType").description("The content type the image is served with."),
+                                        fieldWithPath("size").description("The size of the image in bytes.")
+                                )
+                        )
+                )
+                .when()
+                .get("/metadata/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .body("width", equalTo(originalImage.getWidth()))
+                .body("height", equalTo(originalImage.getHeight()))
+                .body("format", equalTo("png"))
+                .body("contentType", equalTo(IMAGE_PNG_VALUE))
+                .body("size", equalTo(originalImageBytes.length));
+
+        verify(amazonS3, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void readsTheHeaderOfImagesStoredWithoutInfo() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        given()
+                .when()
+                .get("/metadata/" + location)
+                .then()
+                .statusCode(HTTP_OK)
+                .body("width", equalTo(originalImage.getWidth()))
+                .body("height", equalTo(originalImage.getHeight()))
+                .body("size", equalTo(originalImageBytes.length));
+    }
+
+    @Test
+    public void bulkLookup() {
+        String otherLocation = TEST_KEY + "/" + randomUUID() + "/original";
+        String missingLocation = TEST_KEY + "/" + randomUUID() + "/original";
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenReturn(withImageInfo(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE)));
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), otherLocation)).thenReturn(withImageInfo(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE)));
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), missingLocation)).thenThrow(s3ObjectNotFound());
+
+        given()
+                .filter(
+                        document("metadata/bulk",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint())
+                        )
+                )
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(asList(location, otherLocation, missingLocation))
+                .when()
+                .post("/metadata")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("'" + location + "'.width", equalTo(originalImage.getWidth()))
+                .body("'" + otherLocation + "'.width", equalTo(originalImage.getWidth()))
+                .body("$", not(hasKey(missingLocation)));
+    }
+
+    @Test
+    public void tooManyKeys() {
+        given()
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(nCopies(ixorTalkConfigProperties.getMetadata().getMaxBulkKeys() + 1, location))
+                .when()
+                .post("/metadata")
+                .then()
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void wrongKey() {
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), location)).thenThrow(s3ObjectNotFound());
+
+        given()
+                .when()
+                .get("/metadata/" + location)
+                .then()
+                .statusCode(HTTP_NOT_FOUND);
+    }
+
+    private ObjectMetadata withImageInfo(ObjectMetadata objectMetadata) {
+        objectMetadata.addUserMetadata("width", String.valueOf(originalImage.getWidth()));
+        objectMetadata.addUserMetadata("height", String.valueOf(originalImage.getHeight()));
+        objectMetadata.addUserMetadata("format", "png");
+        return objectMetadata;
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.jayway.restassured.response.ExtractableResponse;
+import com.jayway.restassured.response.Response;
+import com.jayway.restassured.response.ValidatableResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.requestFields;
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.renditions.sprites.compose-pool-size=1",
+        "ixortalk.image-service.renditions.sprites.compose-queue-capacity=1"
+})
+public class SpriteController_Compose_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private String reference;
+    private String redReference;
+    private byte[] redThumbnail;
+
+    @Before
+    public void setupReferences() throws IOException {
+        reference = substringBeforeLast(location, "/");
+        redReference = TEST_KEY + "/" + randomUUID();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), reference + "/thumb-128")).thenThrow(s3ObjectNotFound());
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), location)).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+        redThumbnail = redSquare(128);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), redReference + "/thumb-128")).thenAnswer(invocation -> s3Object(redThumbnail, IMAGE_PNG_VALUE));
+    }
+
+    @Test
+    public void composesSprite() throws IOException {
+        int redX = reference.compareTo(redReference) < 0 ? 64 : 0;
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .filter(
+                        document("sprites/compose",
+                                preprocessRequest(staticUris(), prettyPrint()),
+                                preprocessResponse(prettyPrint()),
+                                requestFields(
+                                        fieldWithPath("references").description("Uploaded images to compose, as `<key>/<uuid>`."),
+                                        fieldWithPath("tileSize").description("Width and height of the square tile of every image, in pixels.")
+                                ),
+                                responseFields(
+                                        fieldWithPath("url").description("Download URL of the sprite image."),
+                                        fieldWithPath("width").description("Width of the sprite image, in pixels."),
+                                        fieldWithPath("height").description("Height of the sprite image, in pixels."),
+                                        fieldWithPath("tiles").description("Cell of every reference in the sprite image, as `x`, `y`, `width` and `height` in pixels.")
+                                )
+                        )
+                )
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(new SpriteRequestBody(asList(reference, redReference), 64))
+                .when()
+                .post("/sprites")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("url", startsWith("https://" + HOST_IXORTALK_COM + contextPath + "/download/sprites/"))
+                .body("width", equalTo(128))
+                .body("height", equalTo(64))
+                .body("tiles.'" + reference + "'.x", equalTo(64 - redX))
+                .body("tiles.'" + redReference + "'.x", equalTo(redX))
+                .body("tiles.'" + redReference + "'.y", equalTo(0))
+                .body("tiles.'" + redReference + "'.width", equalTo(64));
+
+        ArgumentCaptor<InputStream> argumentCaptor = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), spriteKey(), any(ObjectMetadata.class), argumentCaptor.capture());
+        BufferedImage sprite = ImageIO.read(argumentCaptor.getValue());
+        assertThat(sprite.getWidth()).isEqualTo(128);
+        assertThat(sprite.getHeight()).isEqualTo(64);
+        Color redTile = new Color(sprite.getRGB(redX + 32, 32));
+        assertThat(redTile.getRed()).isGreaterThan(200);
+        assertThat(redTile.getGreen()).isLessThan(60);
+    }
+
+    @Test
+    public void storedSpriteIsNotComposedAgain() {
+        String url = sprite(new SpriteRequestBody(asList(reference, redReference), 64))
+                .statusCode(HTTP_OK)
+                .extract().path("url");
+        String key = url.substring(url.indexOf("/download/") + "/download/".length());
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), key)).thenReturn(new ObjectMetadata());
+
+        sprite(new SpriteRequestBody(asList(reference, redReference, reference), 64))
+                .statusCode(HTTP_OK)
+                .body("url", equalTo(url));
+
+        verify(awsS3Template, times(1)).save(eq(ixorTalkConfigProperties.getBucket()), eq(key), any(ObjectMetadata.class), any(InputStream.class));
+        verify(awsS3Template, times(1)).get(ixorTalkConfigProperties.getBucket(), redReference + "/thumb-128");
+    }
+
+    @Test
+    public void referencesInAnotherOrderShareTheSprite() {
+        String url = sprite(new SpriteRequestBody(asList(reference, redReference), 64))
+                .statusCode(HTTP_OK)
+                .extract().path("url");
+
+        sprite(new SpriteRequestBody(asList(redReference, reference), 64))
+                .statusCode(HTTP_OK)
+                .body("url", equalTo(url));
+    }
+
+    @Test
+    public void canvasOutOfBounds() {
+        long maxPixels = ixorTalkConfigProperties.getRenditions().getSprites().getMaxPixels();
+        int tileSize = ixorTalkConfigProperties.getRenditions().getSprites().getMaxTileSize();
+        List<String> references = new ArrayList<>();
+        while ((long) references.size() * tileSize * tileSize <= maxPixels) {
+            references.add(TEST_KEY + "/" + randomUUID());
+        }
+
+        sprite(new SpriteRequestBody(references, tileSize))
+                .statusCode(HTTP_BAD_REQUEST);
+
+        verify(awsS3Template, never()).save(anyString(), spriteKey(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void rejectsSpritesWhenComposePoolIsSaturated() throws Exception {
+        String slowReference = TEST_KEY + "/" + randomUUID();
+        CountDownLatch release = new CountDownLatch(1);
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), slowReference + "/thumb-128")).thenAnswer(invocation -> {
+            release.await(10, SECONDS);
+            return s3Object(redThumbnail, IMAGE_PNG_VALUE);
+        });
+
+        // one sprite is composed, one waits in the queue and the third does not fit
+        ExecutorService clients = newFixedThreadPool(3);
+        List<CompletableFuture<ExtractableResponse<Response>>> responses = new ArrayList<>();
+        ExtractableResponse<Response> rejected;
+        try {
+            for (int tileSize : new int[]{64, 32, 16}) {
+                responses.add(CompletableFuture.supplyAsync(() -> sprite(new SpriteRequestBody(singletonList(slowReference), tileSize)).extract(), clients));
+            }
+            rejected = (ExtractableResponse<Response>) CompletableFuture.anyOf(responses.toArray(new CompletableFuture[0])).get(10, SECONDS);
+        } finally {
+            release.countDown();
+            clients.shutdown();
+        }
+
+        assertThat(rejected.statusCode()).isEqualTo(HTTP_UNAVAILABLE);
+        assertThat(rejected.header(RETRY_AFTER)).isEqualTo(String.valueOf(ixorTalkConfigProperties.getRenditions().getSprites().getRetryAfterSeconds()));
+        assertThat(responses.stream().map(CompletableFuture::join).filter(response -> response.statusCode() == HTTP_OK)).hasSize(2);
+    }
+
+    @Test
+    public void otherTileSizeIsAnotherSprite() {
+        String url = sprite(new SpriteRequestBody(asList(reference, redReference), 64))
+                .statusCode(HTTP_OK)
+                .extract().path("url");
+
+        sprite(new SpriteRequestBody(asList(reference, redReference), 32))
+                .statusCode(HTTP_OK)
+                .body("url", startsWith(substringBeforeLast(url, "/sprites/")))
+                .body("width", equalTo(64));
+
+        verify(awsS3Template, times(2)).save(eq(ixorTalkConfigProperties.getBucket()), spriteKey(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void missingReference() {
+        String missingReference = TEST_KEY + "/" + randomUUID();
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), missingReference + "/thumb-128")).thenThrow(s3ObjectNotFound());
+        when(awsS3Template.get(ixorTalkConfigProperties.getBucket(), missingReference + "/original")).thenThrow(s3ObjectNotFound());
+
+        sprite(new SpriteRequestBody(asList(reference, missingReference), 64))
+                .statusCode(HTTP_NOT_FOUND);
+
+        verify(awsS3Template, never()).save(anyString(), spriteKey(), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    @Test
+    public void invalidReference() {
+        sprite(new SpriteRequestBody(asList(reference, location), 64))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void tileSizeOutOfBounds() {
+        sprite(new SpriteRequestBody(asList(reference, redReference), 0))
+                .statusCode(HTTP_BAD_REQUEST);
+        sprite(new SpriteRequestBody(asList(reference, redReference), ixorTalkConfigProperties.getRenditions().getSprites().getMaxTileSize() + 1))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    @Test
+    public void noReferences() {
+        sprite(new SpriteRequestBody(asList(), 64))
+                .statusCode(HTTP_BAD_REQUEST);
+    }
+
+    private static ValidatableResponse sprite(SpriteRequestBody body) {
+        return given()
+                .contentType(APPLICATION_JSON_VALUE)
+                .body(body)
+                .when()
+                .post("/sprites")
+                .then();
+    }
+
+    private static String spriteKey() {
+        return ArgumentMatchers.startsWith("sprites/");
+    }
+
+    private static byte[] redSquare(int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, size, size);
+        graphics.dispose();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    public static class SpriteRequestBody {
+
+        private final List<String> references;
+        private final int tileSize;
+
+        SpriteRequestBody(List<String> references, int tileSize) {
+            this.references = references;
+            this.tileSize = tileSize;
+        }
+
+        public List<String> getReferences() {
+            return references;
+        }
+
+        public int getTileSize() {
+            return tileSize;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.copyOf;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.apache.tomcat.util.http.fileupload.FileUploadBase.MULTIPART_FORM_DATA;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.*;
+import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.request.RequestDocumentation.partWithName;
+import static org.springframework.restdocs.request.RequestDocumentation.requestParts;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+public class UploadImageController_BatchUpload_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private static final String FILE_REQUEST_PART_NAME = "file";
+    private static final String KEY_REQUEST_PART_NAME = "key";
+    private static final String APPLICATION_ZIP = "application/zip";
+
+    private byte[] smallImageBytes;
+
+    private Map<Integer, byte[]> uploadedParts = new ConcurrentSkipListMap<>();
+
+    @Before
+    public void createSmallImage() {
+        smallImageBytes = copyOf(originalImageBytes, 1024);
+        mockMultipartUpload(uploadedParts);
+    }
+
+    @Test
+    public void multipleFiles() {
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .filter(
+                        document("images/upload-batch",
+                                preprocessRequest(staticUris(), prettyPrint(), removeBinaryContent()),
+                                preprocessResponse(prettyPrint()),
+                                requestHeaders(describeAuthorizationTokenHeader()),
+                                requestParts(
+                                        partWithName(FILE_REQUEST_PART_NAME).description("One part per image file."),
+                                        partWithName(KEY_REQUEST_PART_NAME).description("The key to store all images of the batch under, a UUID will be generated for every image under the specified path.")
+                                )
+                        )
+                )
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart(FILE_REQUEST_PART_NAME, "first.png", originalImageBytes, IMAGE_PNG_VALUE)
+                .multiPart(FILE_REQUEST_PART_NAME, "second.png", smallImageBytes, IMAGE_PNG_VALUE)
+                .multiPart(KEY_REQUEST_PART_NAME, TEST_KEY, TEXT_PLAIN_VALUE)
+                .post("/upload/batch")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("name", contains("first.png", "second.png"))
+                .body("location", everyItem(startsWith(TEST_KEY + "/")))
+                .body("success", contains(true, true))
+                .body("error", everyItem(nullValue()));
+
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), anyString(), objectMetadataWithContentTypeAndLength(originalImageBytes.length, IMAGE_PNG_VALUE), any(InputStream.class));
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), anyString(), objectMetadataWithContentTypeAndLength(smallImageBytes.length, IMAGE_PNG_VALUE), any(InputStream.class));
+    }
+
+    @Test
+    public void zipArchive() throws IOException {
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(APPLICATION_ZIP)
+                .queryParam(KEY_REQUEST_PART_NAME, TEST_KEY)
+                .body(zip("large.png", originalImageBytes, "small.png", smallImageBytes))
+                .post("/upload/batch")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("name", contains("large.png", "small.png"))
+                .body("success", contains(true, true));
+
+        verify(amazonS3).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), anyString(), objectMetadataWithContentTypeAndLength(smallImageBytes.length, IMAGE_PNG_VALUE), any(InputStream.class));
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (byte[] part : uploadedParts.values()) {
+            reassembled.write(part);
+        }
+        assertThat(reassembled.toByteArray()).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void failuresAreReportedPerImage() {
+        AmazonS3Exception saveFailed = new AmazonS3Exception("Save failed");
+        saveFailed.setStatusCode(HTTP_INTERNAL_ERROR);
+        doThrow(saveFailed).when(awsS3Template).save(anyString(), anyString(), argThat((ObjectMetadata objectMetadata) -> objectMetadata.getContentLength() == smallImageBytes.length), any(InputStream.class));
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart(FILE_REQUEST_PART_NAME, "first.png", originalImageBytes, IMAGE_PNG_VALUE)
+                .multiPart(FILE_REQUEST_PART_NAME, "second.png", smallImageBytes, IMAGE_PNG_VALUE)
+                .multiPart(KEY_REQUEST_PART_NAME, TEST_KEY, TEXT_PLAIN_VALUE)
+                .post("/upload/batch")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("success", contains(true, false))
+                .body("error[1]", startsWith("Save failed"));
+    }
+
+    @Test
+    public void noAdminRights() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart(FILE_REQUEST_PART_NAME, "first.png", originalImageBytes, IMAGE_PNG_VALUE)
+                .multiPart(KEY_REQUEST_PART_NAME, TEST_KEY, TEXT_PLAIN_VALUE)
+                .post("/upload/batch")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+
+        verifyZeroInteractions(awsS3Template);
+    }
+
+    private static byte[] zip(String firstName, byte[] first, String secondName, byte[] second) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(firstName));
+            zip.write(first);
+            zip.putNextEntry(new ZipEntry("folder/"));
+            zip.putNextEntry(new ZipEntry(secondName));
+            zip.write(second);
+        }
+        return bytes.toByteArray();
+    }
+}
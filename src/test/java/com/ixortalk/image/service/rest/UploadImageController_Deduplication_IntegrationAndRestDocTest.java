@@ -0,0 +1,76 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.hash.Hashing.sha256;
+import static com.ixortalk.image.service.storage.ContentAddressedStore.BLOB_METADATA;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+@TestPropertySource(properties = "ixortalk.image-service.upload.deduplication.enabled=true")
+public class UploadImageController_Deduplication_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void storesIdenticalUploadsOnceWhenDeduplicating() throws IOException {
+        String blobKey = "blobs/" + sha256().hashBytes(originalImageBytes) + "/original";
+
+        String firstLocation = upload();
+        when(amazonS3.getObjectMetadata(ixorTalkConfigProperties.getBucket(), blobKey)).thenReturn(objectMetadata(originalImageBytes, IMAGE_PNG_VALUE));
+        String secondLocation = upload();
+
+        ArgumentCaptor<InputStream> blob = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(blobKey), objectMetadataWithContentTypeAndLength(originalImageBytes.length, IMAGE_PNG_VALUE), blob.capture());
+        assertThat(toByteArray(blob.getValue())).isEqualTo(originalImageBytes);
+
+        for (String location : asList(firstLocation, secondLocation)) {
+            ArgumentCaptor<ObjectMetadata> pointer = forClass(ObjectMetadata.class);
+            verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), pointer.capture(), any(InputStream.class));
+            assertThat(pointer.getValue().getContentLength()).isZero();
+            assertThat(pointer.getValue().getUserMetaDataOf(BLOB_METADATA)).isEqualTo(substringBeforeLast(blobKey, "/"));
+        }
+        verifyNoMoreInteractions(awsS3Template);
+    }
+
+    private String upload() {
+        return uploadImage(ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, IMAGE_PNG_VALUE);
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.awt.color.ColorSpace.CS_LINEAR_RGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.upload.optimization.enabled=true",
+        "ixortalk.image-service.upload.optimization.max-dimension=200",
+        "ixortalk.image-service.upload.optimization.keep-source=true"
+})
+public class UploadImageController_Optimization_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void optimizesUploadWhenEnabled() throws IOException {
+        String location = uploadImage(ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, IMAGE_PNG_VALUE);
+
+        ArgumentCaptor<InputStream> optimized = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), any(ObjectMetadata.class), optimized.capture());
+        BufferedImage optimizedImage = ImageIO.read(optimized.getValue());
+        assertThat(Math.max(optimizedImage.getWidth(), optimizedImage.getHeight())).isEqualTo(200);
+
+        ArgumentCaptor<InputStream> source = forClass(InputStream.class);
+        verify(awsS3Template).save(
+                eq(ixorTalkConfigProperties.getBucket()),
+                eq(substringBeforeLast(location, "/") + "/source"),
+                objectMetadataWithContentTypeAndLength(originalImageBytes.length, IMAGE_PNG_VALUE),
+                source.capture());
+        assertThat(toByteArray(source.getValue())).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void appliesExifOrientationWhenOptimizing() throws IOException {
+        byte[] rotatedJpeg = jpegWithOrientation(40, 20, 6);
+
+        String location = uploadImage("camera.jpg", rotatedJpeg, IMAGE_JPEG_VALUE);
+
+        ArgumentCaptor<InputStream> optimized = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), any(ObjectMetadata.class), optimized.capture());
+        BufferedImage uprightImage = ImageIO.read(optimized.getValue());
+        assertThat(uprightImage.getWidth()).isEqualTo(20);
+        assertThat(uprightImage.getHeight()).isEqualTo(40);
+    }
+
+    @Test
+    public void convertsPngColourProfileToSrgb() throws IOException {
+        byte[] linearPng = pngWithProfile(40, 20, 0x808080, ICC_Profile.getInstance(CS_LINEAR_RGB));
+
+        String location = uploadImage("linear.png", linearPng, IMAGE_PNG_VALUE);
+
+        ArgumentCaptor<InputStream> optimized = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), any(ObjectMetadata.class), optimized.capture());
+        BufferedImage srgbImage = ImageIO.read(optimized.getValue());
+        assertThat(srgbImage.getRGB(0, 0) & 0xff).isBetween(0xb8, 0xc0);
+    }
+
+    @Test
+    public void storesGifsAsReceived() throws IOException {
+        byte[] animatedGif = animatedGif(40, 20, 0xff0000, 0x0000ff);
+
+        String location = uploadImage("animated.gif", animatedGif, IMAGE_GIF_VALUE);
+
+        ArgumentCaptor<InputStream> stored = forClass(InputStream.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), any(ObjectMetadata.class), stored.capture());
+        assertThat(toByteArray(stored.getValue())).isEqualTo(animatedGif);
+        verify(awsS3Template, never()).save(eq(ixorTalkConfigProperties.getBucket()), eq(substringBeforeLast(location, "/") + "/source"), any(ObjectMetadata.class), any(InputStream.class));
+    }
+
+    /**
+     * Writes a single coloured PNG with an {@code iCCP} chunk, right after the header chunk.
+     */
+    private static byte[] pngWithProfile(int width, int height, int rgb, ICC_Profile profile) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(filled(width, height, rgb), "png", png);
+        byte[] pngBytes = png.toByteArray();
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write("iCCP".getBytes(US_ASCII));
+        chunk.write("profile\0\0".getBytes(US_ASCII));
+        try (DeflaterOutputStream compressedProfile = new DeflaterOutputStream(chunk)) {
+            compressedProfile.write(profile.getData());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(chunk.toByteArray());
+
+        ByteArrayOutputStream withProfile = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(withProfile);
+        int afterHeader = 8 + 25;
+        output.write(pngBytes, 0, afterHeader);
+        output.writeInt(chunk.size() - 4);
+        chunk.writeTo(output);
+        output.writeInt((int) crc.getValue());
+        output.write(pngBytes, afterHeader, pngBytes.length - afterHeader);
+        return withProfile.toByteArray();
+    }
+
+    private static byte[] animatedGif(int width, int height, int... frameColors) throws IOException {
+        ImageWriter gifWriter = ImageIO.getImageWritersByFormatName("gif").next();
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(gif)) {
+            gifWriter.setOutput(imageOutputStream);
+            gifWriter.prepareWriteSequence(null);
+            for (int frameColor : frameColors) {
+                gifWriter.writeToSequence(new IIOImage(filled(width, height, frameColor), null, null), null);
+            }
+            gifWriter.endWriteSequence();
+        } finally {
+            gifWriter.dispose();
+        }
+        return gif.toByteArray();
+    }
+
+    private static BufferedImage filled(int width, int height, int rgb) {
+        BufferedImage image = new BufferedImage(width, height, TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(rgb));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Writes a JPEG with a minimal EXIF block holding only the orientation tag, right after the start of image marker.
+     */
+    private static byte[] jpegWithOrientation(int width, int height, int orientation) throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, TYPE_INT_RGB), "jpg", jpeg);
+        byte[] jpegBytes = jpeg.toByteArray();
+
+        ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        DataOutputStream exifData = new DataOutputStream(exif);
+        exifData.writeBytes("Exif\0\0MM");
+        exifData.writeShort(42);
+        exifData.writeInt(8);
+        exifData.writeShort(1);
+        exifData.writeShort(0x0112);
+        exifData.writeShort(3);
+        exifData.writeInt(1);
+        exifData.writeShort(orientation);
+        exifData.writeShort(0);
+        exifData.writeInt(0);
+
+        ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(withExif);
+        output.write(jpegBytes, 0, 2);
+        output.writeShort(0xffe1);
+        output.writeShort(exif.size() + 2);
+        exif.writeTo(output);
+        output.write(jpegBytes, 2, jpegBytes.length - 2);
+        return withExif.toByteArray();
+    }
+}
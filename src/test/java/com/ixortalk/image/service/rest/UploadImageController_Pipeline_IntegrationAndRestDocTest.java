@@ -0,0 +1,61 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.InputStream;
+
+import static org.apache.commons.lang.StringUtils.substringBeforeLast;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.endsWith;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+
+@TestPropertySource(properties = "ixortalk.image-service.renditions.pipeline.enabled=true")
+public class UploadImageController_Pipeline_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    @Test
+    public void rendersVariantsAfterUpload() {
+        when(awsS3Template.get(eq(ixorTalkConfigProperties.getBucket()), endsWith("/original"))).thenAnswer(invocation -> s3Object(originalImageBytes, IMAGE_PNG_VALUE));
+
+        String location = uploadImage(ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, IMAGE_PNG_VALUE);
+
+        for (String variant : ixorTalkConfigProperties.getRenditions().getVariants()) {
+            verify(awsS3Template, timeout(5000))
+                    .save(
+                            eq(ixorTalkConfigProperties.getBucket()),
+                            eq(substringBeforeLast(location, "/") + "/" + variant),
+                            any(ObjectMetadata.class),
+                            any(InputStream.class)
+                    );
+        }
+    }
+}
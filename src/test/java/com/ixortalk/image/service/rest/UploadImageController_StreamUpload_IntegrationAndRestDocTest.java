@@ -0,0 +1,234 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.jayway.restassured.config.RestAssuredConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.userToken;
+import static com.jayway.restassured.RestAssured.given;
+import static com.jayway.restassured.config.EncoderConfig.encoderConfig;
+import static com.jayway.restassured.config.RestAssuredConfig.config;
+import static java.net.HttpURLConnection.*;
+import static java.util.Arrays.copyOf;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.LOCATION;
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.restdocs.headers.HeaderDocumentation.*;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.request.RequestDocumentation.parameterWithName;
+import static org.springframework.restdocs.request.RequestDocumentation.requestParameters;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.upload.part-buffers=2",
+        "ixortalk.image-service.upload.part-buffer-wait-millis=500"
+})
+public class UploadImageController_StreamUpload_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private Map<Integer, byte[]> uploadedParts = new ConcurrentSkipListMap<>();
+
+    @Before
+    public void mockMultipartUpload() {
+        mockMultipartUpload(uploadedParts);
+    }
+
+    private static RestAssuredConfig withoutDefaultCharset() {
+        return config().encoderConfig(encoderConfig().appendDefaultContentCharsetToContentTypeIfUndefined(false));
+    }
+
+    @Test
+    public void success() throws IOException {
+        String location =
+                given()
+                        .auth().preemptive().oauth2(adminToken().getValue())
+                        .config(withoutDefaultCharset())
+                        .filter(
+                                document("images/upload-stream",
+                                        preprocessRequest(staticUris(), removeBinaryContent()),
+                                        preprocessResponse(prettyPrint()),
+                                        requestHeaders(
+                                                describeAuthorizationTokenHeader(),
+                                                headerWithName(CONTENT_TYPE).description("The content type of the image, the original is stored with the type told from the image itself.")
+                                        ),
+                                        requestParameters(
+                                                parameterWithName("key").description("The key to use for this image, the key is a directory path in which the image will be stored.  A UUID will be generated for the image under the specified path.")
+                                        ),
+                                        responseHeaders(headerWithName(LOCATION).description("Contains the actual path to the stored original image."))
+                                )
+                        )
+                        .contentType(IMAGE_PNG_VALUE)
+                        .queryParam("key", TEST_KEY)
+                        .body(originalImageBytes)
+                        .post("/upload/stream")
+                        .then()
+                        .statusCode(HTTP_CREATED)
+                        .extract().header(LOCATION);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = forClass(CompleteMultipartUploadRequest.class);
+        verify(amazonS3).initiateMultipartUpload(argThat(request ->
+                request.getBucketName().equals(ixorTalkConfigProperties.getBucket())
+                        && request.getKey().equals(location)
+                        && request.getObjectMetadata().getContentType().equals(IMAGE_PNG_VALUE)));
+        verify(amazonS3).completeMultipartUpload(completeRequest.capture());
+        verify(amazonS3, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verifyZeroInteractions(awsS3Template);
+
+        int partSize = ixorTalkConfigProperties.getUpload().getPartSizeBytes();
+        assertThat(uploadedParts).hasSize((originalImageBytes.length + partSize - 1) / partSize);
+        assertThat(completeRequest.getValue().getUploadId()).isEqualTo(MULTIPART_UPLOAD_ID);
+        assertThat(completeRequest.getValue().getPartETags())
+                .extracting(PartETag::getPartNumber)
+                .containsExactlyElementsOf(uploadedParts.keySet());
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (byte[] part : uploadedParts.values()) {
+            reassembled.write(part);
+        }
+        assertThat(reassembled.toByteArray()).isEqualTo(originalImageBytes);
+    }
+
+    @Test
+    public void smallImageIsStoredWithSinglePut() throws IOException {
+        byte[] smallImage = copyOf(originalImageBytes, 1024);
+
+        String location =
+                given()
+                        .auth().preemptive().oauth2(adminToken().getValue())
+                        .config(withoutDefaultCharset())
+                        .contentType(IMAGE_PNG_VALUE)
+                        .queryParam("key", TEST_KEY)
+                        .body(smallImage)
+                        .post("/upload/stream")
+                        .then()
+                        .statusCode(HTTP_CREATED)
+                        .extract().header(LOCATION);
+
+        ArgumentCaptor<InputStream> argumentCaptor = forClass(InputStream.class);
+        verify(awsS3Template)
+                .save(
+                        eq(ixorTalkConfigProperties.getBucket()),
+                        eq(location),
+                        objectMetadataWithContentTypeAndLength(smallImage.length, IMAGE_PNG_VALUE),
+                        argumentCaptor.capture()
+                );
+        verify(amazonS3, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+
+        assertThat(toByteArray(argumentCaptor.getValue())).isEqualTo(smallImage);
+    }
+
+    @Test
+    public void failedPartAbortsUpload() {
+        AmazonS3Exception partFailed = new AmazonS3Exception("Part failed");
+        partFailed.setStatusCode(HTTP_INTERNAL_ERROR);
+        doThrow(partFailed).when(amazonS3).uploadPart(argThat(request -> request.getPartNumber() == 3));
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .config(withoutDefaultCharset())
+                .contentType(IMAGE_PNG_VALUE)
+                .queryParam("key", TEST_KEY)
+                .body(originalImageBytes)
+                .post("/upload/stream")
+                .then()
+                .statusCode(HTTP_INTERNAL_ERROR);
+
+        verify(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals(MULTIPART_UPLOAD_ID)));
+        verify(amazonS3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void uploadWithoutFreePartBufferIsRejected() {
+        when(amazonS3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(3000);
+            return new UploadPartResult();
+        });
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .config(withoutDefaultCharset())
+                .contentType(IMAGE_PNG_VALUE)
+                .queryParam("key", TEST_KEY)
+                .body(originalImageBytes)
+                .post("/upload/stream")
+                .then()
+                .statusCode(HTTP_UNAVAILABLE)
+                .header(RETRY_AFTER, "5");
+
+        verify(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals(MULTIPART_UPLOAD_ID)));
+        verify(amazonS3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void keyMissing() {
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .config(withoutDefaultCharset())
+                .contentType(IMAGE_PNG_VALUE)
+                .body(originalImageBytes)
+                .post("/upload/stream")
+                .then()
+                .statusCode(HTTP_BAD_REQUEST);
+
+        verifyZeroInteractions(awsS3Template);
+        verify(amazonS3, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void noAdminRights() {
+        given()
+                .auth().preemptive().oauth2(userToken().getValue())
+                .contentType(IMAGE_PNG_VALUE)
+                .queryParam("key", TEST_KEY)
+                .body(originalImageBytes)
+                .post("/upload/stream")
+                .then()
+                .statusCode(HTTP_FORBIDDEN);
+    }
+}
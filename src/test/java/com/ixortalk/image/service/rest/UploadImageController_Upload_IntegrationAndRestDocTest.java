@@ -23,10 +23,14 @@
  */
 package com.ixortalk.image.service.rest;
 
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.ixortalk.image.service.AbstractSpringIntegrationTest;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -39,6 +43,7 @@ import static org.apache.http.HttpHeaders.LOCATION;
 import static org.apache.tomcat.util.http.fileupload.FileUploadBase.MULTIPART_FORM_DATA;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentCaptor.forClass;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.http.MediaType.*;
@@ -96,6 +101,19 @@ public class UploadImageController_Upload_IntegrationAndRestDocTest extends Abst
         assertThat(toByteArray(argumentCaptor.getValue())).isEqualTo(originalImageBytes);
     }
 
+    @Test
+    public void recordsImageInfoWithTheOriginal() throws IOException {
+        BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(originalImageBytes));
+
+        String location = uploadImage(ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, ORIGINAL_IMAGE_CONTENT_TYPE);
+
+        ArgumentCaptor<ObjectMetadata> objectMetadata = forClass(ObjectMetadata.class);
+        verify(awsS3Template).save(eq(ixorTalkConfigProperties.getBucket()), eq(location), objectMetadata.capture(), any(InputStream.class));
+        assertThat(objectMetadata.getValue().getUserMetaDataOf("width")).isEqualTo(String.valueOf(originalImage.getWidth()));
+        assertThat(objectMetadata.getValue().getUserMetaDataOf("height")).isEqualTo(String.valueOf(originalImage.getHeight()));
+        assertThat(objectMetadata.getValue().getUserMetaDataOf("format")).isEqualTo("png");
+    }
+
     @Test
     public void fileMissing() {
         given()
@@ -0,0 +1,282 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-present IxorTalk CVBA
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ixortalk.image.service.rest;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.ixortalk.image.service.AbstractSpringIntegrationTest;
+import com.jayway.restassured.filter.Filter;
+import com.jayway.restassured.response.ValidatableResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.ixortalk.test.oauth2.OAuth2TestTokens.adminToken;
+import static com.jayway.restassured.RestAssured.given;
+import static java.net.HttpURLConnection.HTTP_CREATED;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Arrays.asList;
+import static java.util.Arrays.copyOf;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.apache.tomcat.util.http.fileupload.FileUploadBase.MULTIPART_FORM_DATA;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.http.HttpHeaders.AUTHORIZATION;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
+import static org.springframework.http.HttpStatus.UNSUPPORTED_MEDIA_TYPE;
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
+import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document;
+
+@TestPropertySource(properties = {
+        "ixortalk.image-service.upload.validation.max-bytes=1000000",
+        "ixortalk.image-service.upload.validation.max-pixels=1000000"
+})
+public class UploadImageController_Validation_IntegrationAndRestDocTest extends AbstractSpringIntegrationTest {
+
+    private static final String FILE_REQUEST_PART_NAME = "file";
+    private static final String KEY_REQUEST_PART_NAME = "key";
+
+    private Map<Integer, byte[]> uploadedParts = new ConcurrentSkipListMap<>();
+
+    @Before
+    public void mockMultipartUpload() {
+        mockMultipartUpload(uploadedParts);
+    }
+
+    @Test
+    public void rejectsTooManyPixels() {
+        upload("bomb.png", pngHeader(50000, 50000), IMAGE_PNG_VALUE,
+                document("images/upload-too-large",
+                        preprocessRequest(staticUris(), removeBinaryContent()),
+                        preprocessResponse(prettyPrint())
+                ))
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void rejectsTooManyPixelsOfJpeg() throws IOException {
+        upload("large.jpg", jpeg(2000, 1000), IMAGE_JPEG_VALUE)
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void rejectsGifFrameLargerThanItsScreen() throws IOException {
+        upload("frames.gif", gif(10, 10, 2000, 1000), IMAGE_GIF_VALUE)
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void rejectsUnsupportedFormat() {
+        upload("image.png", "not an image".getBytes(), IMAGE_PNG_VALUE,
+                document("images/upload-unsupported",
+                        preprocessRequest(staticUris(), removeBinaryContent()),
+                        preprocessResponse(prettyPrint())
+                ))
+                .statusCode(UNSUPPORTED_MEDIA_TYPE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void rejectsTooManyBytes() {
+        upload(ORIGINAL_IMAGE_FILE_NAME, copyOf(originalImageBytes, 1000001), IMAGE_PNG_VALUE)
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void storesSniffedContentType() {
+        upload(ORIGINAL_IMAGE_FILE_NAME, originalImageBytes, IMAGE_JPEG_VALUE)
+                .statusCode(HTTP_CREATED);
+
+        verify(awsS3Template, atLeastOnce()).save(anyString(), anyString(), argThat(metadata -> IMAGE_PNG_VALUE.equals(metadata.getContentType())), any(InputStream.class));
+        verify(awsS3Template, never()).save(anyString(), anyString(), argThat(metadata -> IMAGE_JPEG_VALUE.equals(metadata.getContentType())), any(InputStream.class));
+    }
+
+    @Test
+    public void streamRejectsTooManyPixels() {
+        stream(pngHeader(50000, 50000))
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void streamRejectsAnnouncedSize() {
+        stream(copyOf(originalImageBytes, 1000001))
+                .statusCode(PAYLOAD_TOO_LARGE.value());
+
+        verifyNothingStored();
+    }
+
+    @Test
+    public void streamCutOffBeyondMaxBytes() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + contextPath + "/upload/stream?key=" + TEST_KEY).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty(AUTHORIZATION, "Bearer " + adminToken().getValue());
+        connection.setRequestProperty(CONTENT_TYPE, IMAGE_PNG_VALUE);
+        connection.setChunkedStreamingMode(8192);
+        connection.setDoOutput(true);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(copyOf(originalImageBytes, 1000001));
+        } catch (IOException e) {
+            // the server may answer before the whole body is sent
+        }
+
+        assertThat(connection.getResponseCode()).isEqualTo(PAYLOAD_TOO_LARGE.value());
+        verify(amazonS3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(amazonS3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void batchRejectsSingleEntry() throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(zip)) {
+            zipOutputStream.putNextEntry(new ZipEntry("notes.png"));
+            zipOutputStream.write("not an image".getBytes());
+            zipOutputStream.putNextEntry(new ZipEntry("small.png"));
+            zipOutputStream.write(copyOf(originalImageBytes, 1024));
+        }
+
+        given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType("application/zip")
+                .queryParam("key", TEST_KEY)
+                .body(zip.toByteArray())
+                .when()
+                .post("/upload/batch")
+                .then()
+                .statusCode(HTTP_OK)
+                .body("success", contains(false, true))
+                .body("error[0]", startsWith("Not a supported image"));
+    }
+
+    private ValidatableResponse upload(String fileName, byte[] content, String contentType, Filter... documentation) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .filters(asList(documentation))
+                .contentType(MULTIPART_FORM_DATA)
+                .multiPart(FILE_REQUEST_PART_NAME, fileName, content, contentType)
+                .multiPart(KEY_REQUEST_PART_NAME, TEST_KEY, TEXT_PLAIN_VALUE)
+                .when()
+                .post("/upload")
+                .then();
+    }
+
+    private ValidatableResponse stream(byte[] content) {
+        return given()
+                .auth().preemptive().oauth2(adminToken().getValue())
+                .contentType(IMAGE_PNG_VALUE)
+                .queryParam("key", TEST_KEY)
+                .body(content)
+                .when()
+                .post("/upload/stream")
+                .then();
+    }
+
+    private void verifyNothingStored() {
+        verify(awsS3Template, never()).save(anyString(), anyString(), any(ObjectMetadata.class), any(InputStream.class));
+        verify(amazonS3, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    /**
+     * Just the signature and header of a PNG, which is all it takes to claim any dimensions.
+     */
+    private byte[] pngHeader(int width, int height) {
+        byte[] header = copyOf(originalImageBytes, 33);
+        header[16] = (byte) (width >>> 24);
+        header[17] = (byte) (width >>> 16);
+        header[18] = (byte) (width >>> 8);
+        header[19] = (byte) width;
+        header[20] = (byte) (height >>> 24);
+        header[21] = (byte) (height >>> 16);
+        header[22] = (byte) (height >>> 8);
+        header[23] = (byte) height;
+        return header;
+    }
+
+    /**
+     * A GIF with a small logical screen and a single, empty, frame of the given dimensions.
+     */
+    private static byte[] gif(int screenWidth, int screenHeight, int frameWidth, int frameHeight) throws IOException {
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        gif.write("GIF89a".getBytes(US_ASCII));
+        writeUint16LittleEndian(gif, screenWidth);
+        writeUint16LittleEndian(gif, screenHeight);
+        gif.write(new byte[]{0, 0, 0});
+        gif.write(0x2c);
+        writeUint16LittleEndian(gif, 0);
+        writeUint16LittleEndian(gif, 0);
+        writeUint16LittleEndian(gif, frameWidth);
+        writeUint16LittleEndian(gif, frameHeight);
+        gif.write(new byte[]{0, 2, 0, 0x3b});
+        return gif.toByteArray();
+    }
+
+    private static void writeUint16LittleEndian(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write(value & 0xff);
+        outputStream.write(value >>> 8);
+    }
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+}